@@ -0,0 +1,27 @@
+package hegemone.sensors;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/* shared fixture: a simulated bus that completes conversions immediately
+   and a fake 1-Wire master with one DS18B20 in it */
+class BenchmarkRig {
+    private static final String W1_SLAVE =
+            "6f 01 4b 46 7f ff 01 10 67 : crc=67 YES\n6f 01 4b 46 7f ff 01 10 67 t=22937\n";
+
+    static SimulatedI2CTransport bus() {
+        return SimulatedI2CTransport.withDefaultDevices(false);
+    }
+
+    /* must run before Settings is first touched */
+    static void fakeOneWire() throws IOException {
+        var w1 = Files.createTempDirectory("hegemone-w1").toFile();
+        var probe = new File(w1, DeviceTree.DS18B20_SERIAL);
+        probe.mkdirs();
+        Files.writeString(new File(probe, "w1_slave").toPath(), W1_SLAVE);
+        Files.writeString(new File(probe, "temperature").toPath(), "22937\n");
+        Files.writeString(new File(w1, "therm_bulk_read").toPath(), "0\n");
+        System.setProperty("hegemone.w1", w1.getAbsolutePath());
+    }
+}
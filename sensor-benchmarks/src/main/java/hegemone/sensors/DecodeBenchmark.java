@@ -0,0 +1,41 @@
+package hegemone.sensors;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/* register level decoding and the generic register read helper */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+    private SimulatedI2CTransport bus;
+    private byte[] channel;
+    private byte[] block;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        bus = BenchmarkRig.bus();
+        channel = new byte[]{(byte) 0xE0, 0x01};
+        block = new byte[]{0x40, (byte) 0xE0, 0x01, (byte) 0xC8, 0x03, 0x41, 0x05, 0x3D, 0x06};
+    }
+
+    @Benchmark
+    public int getUnsignedIntFromLittleEndianByte2() {
+        return Spectrometer.getUnsignedIntFromLittleEndianByte2(channel);
+    }
+
+    @Benchmark
+    public byte[] readRegister() throws IOException {
+        return Utils.read_register(bus, DeviceTree.ADAFRUIT_AMBIENT_LIGHT_SENSOR, 0x05, 2);
+    }
+
+    @Benchmark
+    public String byteString() {
+        return Utils.byteString(block);
+    }
+}
@@ -0,0 +1,39 @@
+package hegemone.sensors;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* one full frame: every sensor read over the simulated bus, then JSON.
+   Run with -prof gc for bytes allocated per published frame. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameBenchmark {
+    private Sensors sensors;
+    private SensorFrame frame;
+    private FrameJsonWriter writer;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkRig.fakeOneWire();
+        sensors = new Sensors(BenchmarkRig.bus());
+        frame = new SensorFrame();
+        writer = new FrameJsonWriter();
+    }
+
+    @Benchmark
+    public String sensorsToJSON() {
+        return sensors.sensorsToJSON();
+    }
+
+    /* what the publishing loop does once the samplers have run */
+    @Benchmark
+    public int publishLatest() {
+        sensors.latestFrame(frame);
+        return writer.write(frame);
+    }
+}
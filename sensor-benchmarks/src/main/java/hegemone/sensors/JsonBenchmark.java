@@ -0,0 +1,81 @@
+package hegemone.sensors;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/* serialization of an already acquired frame: the Gson map the daemon used
+   to build per frame against FrameJsonWriter on a reused SensorFrame */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+    private Map<String, Object> frame;
+    private Gson pretty;
+    private Gson compact;
+    private SensorFrame sensorFrame;
+    private FrameJsonWriter writer;
+    private FrameBinaryWriter binaryWriter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var spectrometer = new Spectrometer(BenchmarkRig.bus());
+        spectrometer.configure();
+        var spectralData = spectrometer.spectralData();
+        frame = Map.of(
+                "moisture", 612,
+                "soil_temp", 21.499987230720002,
+                "ambient_temp", 22.937,
+                "spectral_data", spectralData,
+                "lux", 1240,
+                "rlqi", spectrometer.getRLQI(spectralData));
+        pretty = new GsonBuilder().setPrettyPrinting().create();
+        compact = new Gson();
+        sensorFrame = new SensorFrame();
+        sensorFrame.moisture = 612;
+        sensorFrame.soilTemp = 21.499987230720002;
+        sensorFrame.ambientTemp = 22.937;
+        sensorFrame.lux = 1240;
+        int i = 0;
+        for (int v : spectralData.values()) {
+            sensorFrame.spectral[i++] = v;
+        }
+        sensorFrame.spectralSampledAt = System.currentTimeMillis();
+        writer = new FrameJsonWriter();
+        binaryWriter = new FrameBinaryWriter();
+    }
+
+    /* what sensorsToJSON() used to do: a new pretty printer per frame */
+    @Benchmark
+    public String newPrettyGson() {
+        return new GsonBuilder().setPrettyPrinting().create().toJson(frame);
+    }
+
+    @Benchmark
+    public String reusedPrettyGson() {
+        return pretty.toJson(frame);
+    }
+
+    @Benchmark
+    public String reusedCompactGson() {
+        return compact.toJson(frame);
+    }
+
+    @Benchmark
+    public int frameJsonWriter() {
+        return writer.write(sensorFrame);
+    }
+
+    /* one self-contained binary frame, header included */
+    @Benchmark
+    public int frameBinaryWriter() {
+        binaryWriter.begin();
+        return binaryWriter.write(sensorFrame);
+    }
+}
@@ -0,0 +1,42 @@
+package hegemone.sensors;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/* AS7341 acquisition (both SMUX phases) and the spectral post-processing */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpectrometerBenchmark {
+    private Spectrometer spectrometer;
+    private Map<String, Integer> spectralData;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        spectrometer = new Spectrometer(BenchmarkRig.bus());
+        spectrometer.configure();
+        spectralData = spectrometer.spectralData();
+    }
+
+    @Benchmark
+    public LinkedHashMap<String, Integer> spectralData() {
+        return spectrometer.spectralData();
+    }
+
+    @Benchmark
+    public int[] getPhotonFlux() {
+        return spectrometer.getPhotonFlux();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Map<String, Integer> getRLQI() {
+        return spectrometer.getRLQI(spectralData);
+    }
+}
@@ -0,0 +1,98 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/* one full frame with the conversions overlapped instead of back to back.
+ *
+ * The AS7341 needs two ~100 ms integrations per frame and the bus is idle
+ * while it integrates. We start the first integration, read the ambient
+ * light and soil sensors in that window, and run the DS18B20 read (a
+ * ~750 ms conversion behind a sysfs file, no I2C involved) on its own
+ * thread for the whole frame. Frame time drops from the sum of the
+ * conversions to roughly the longest one.
+ *
+ * Each frame has a deadline. A spectrometer that gives no result within
+ * its integration time and hegemone.read.budget is given up on, and a
+ * DS18B20 read still running at the deadline is left to finish on its
+ * thread, no new one starting until it has; the frame goes out with the
+ * last good values, which Sensors flags stale once they are too old.
+ */
+class AcquisitionPipeline implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.pipeline");
+    private final Sensors sensors;
+    private final Spectrometer spectrometer;
+    private final ExecutorService oneWire;
+    private final int[] flux = new int[10];
+    private long lastFrameNanos;
+    /* the DS18B20 read in progress, it may outlive a frame */
+    private Future<?> temperature;
+    private final LongAdder detached;
+
+    AcquisitionPipeline(Sensors sensors) {
+        this.sensors = sensors;
+        this.spectrometer = sensors.getSpectralSensor();
+        this.oneWire = Executors.newSingleThreadExecutor(r -> {
+            var t = new Thread(r, "pipeline-w1");
+            t.setDaemon(true);
+            return t;
+        });
+        var station = sensors.getStation() == null ? "" : sensors.getStation();
+        detached = Metrics.counter("hegemone_detached_reads_total", "Reads still running at their frame's deadline",
+                "station", station, "sensor", "ds18b20");
+    }
+
+    /* one frame's readings, waiting for the DS18B20 until deadline (nanoTime) */
+    void acquire(long deadline) {
+        long start = System.nanoTime();
+        if (temperature == null || temperature.isDone()) {
+            temperature = oneWire.submit(sensors::sampleTemperature);
+        }
+
+        long spectrumStart = System.nanoTime();
+        spectrometer.startF1F6Measurement();
+        /* bus is free while F1-F6 integrate */
+        sensors.sampleAmbientLight();
+        sensors.sampleSoil();
+        if (spectrometer.awaitMeasurement()) {
+            spectrometer.readF1F6(flux);
+            spectrometer.startF7F8NIRClearMeasurement();
+            if (spectrometer.awaitMeasurement()) {
+                spectrometer.readF7F8NIRClear(flux);
+                if (spectrometer.sweepComplete()) {
+                    sensors.updateSpectrum(flux);
+                }
+            }
+        }
+        sensors.recordSpectralSweep(System.nanoTime() - spectrumStart);
+
+        try {
+            temperature.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            detached.increment();
+            logger.debug("DS18B20 read still running at the frame deadline, going on without it");
+        } catch (ExecutionException e) {
+            logger.warn("DS18B20 read failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lastFrameNanos = System.nanoTime() - start;
+    }
+
+    long lastFrameNanos() {
+        return lastFrameNanos;
+    }
+
+    @Override
+    public void close() {
+        oneWire.shutdownNow();
+    }
+}
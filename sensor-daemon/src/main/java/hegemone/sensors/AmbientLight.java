@@ -3,18 +3,17 @@ package hegemone.sensors;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import io.helins.linux.i2c.*;
+import java.util.concurrent.atomic.LongAdder;
 
 import hegemone.sensors.DeviceTree;
 import hegemone.sensors.Utils;
 
 
 class AmbientLight {
-	private static I2CBuffer oneBuf;
-	private static I2CBuffer twoBuf;
-	private static I2CBuffer threeBuf;
-	private static I2CBuffer fourBuf;
-	private static volatile I2CBus i2cBus;
+	private final byte[] twoBuf = new byte[2];
+	private final byte[] threeBuf = new byte[3];
+	private final I2CTransport i2cBus;
+	private final int address;
 	private static final long I2C_WAIT = 500l;
 	private static final int ALS_CONFIG = 0x00;
 	private static final int WHITE_REG = 0x05;
@@ -22,52 +21,57 @@ class AmbientLight {
 	/* merged into 0x12 0x13 configuration */
 	private static final int ALS_INTEGRATION_25 = 0x0C;
 	private static final int ALS_GAIN_1_8 = 0x02;
+	private boolean whiteValid;
+	/* white light reads that failed */
+	private final LongAdder failures = new LongAdder();
 		
-	static {
-		try {
-			oneBuf = new I2CBuffer(1);
-			twoBuf = new I2CBuffer(2);
-			threeBuf = new I2CBuffer(3);
-			fourBuf = new I2CBuffer(4);
-		} catch (Exception e) {
-			System.err.println("Failed to initialize read-write buffers");
-			System.exit(1);
-		}
+
+	public AmbientLight(I2CTransport bus) {
+		this(bus, DeviceTree.ADAFRUIT_AMBIENT_LIGHT_SENSOR);
 	}
-				
-	public AmbientLight(I2CBus bus) {
+	public AmbientLight(I2CTransport bus, int i2cAddress) {
 		i2cBus = bus;
+		address = i2cAddress;
 	}
 	public void configure() {
 		/* set 1/8 gain, integration time 25 ms */
-		threeBuf.set(0,ALS_CONFIG)
-			.set(1,0x12)
-			.set(2,0x13);
+		threeBuf[0] = ALS_CONFIG;
+		threeBuf[1] = 0x12;
+		threeBuf[2] = 0x13;
 		try {
 			synchronized(i2cBus) {
-				i2cBus.selectSlave(DeviceTree.ADAFRUIT_AMBIENT_LIGHT_SENSOR);
-				i2cBus.write(threeBuf);
+				i2cBus.write(address, threeBuf, 3);
 				Utils.suspend(I2C_WAIT);
 			}
 		} catch (IOException e) {
 			System.err.println("Could not write configuration to ambient light sensor.");
 		}
 	}
+	/* white light count, 0 (and whiteValid() false) if the read failed */
 	public int getWhiteLight() {
 		int ret=0;
+		whiteValid = false;
 		try {
-			ByteBuffer buf = ByteBuffer.allocate(2);
-			// returned data is always little endian
-			buf.order(ByteOrder.LITTLE_ENDIAN);
-			buf.put(Utils.read_register(i2cBus,
-					      DeviceTree.ADAFRUIT_AMBIENT_LIGHT_SENSOR,
-					      WHITE_REG,
-					      2));
-			// get from index 0 as position advances using put()
-			ret = Short.toUnsignedInt(buf.getShort(0));
+			synchronized(i2cBus) {
+				Utils.read_register(i2cBus,
+						    address,
+						    WHITE_REG,
+						    twoBuf, 2);
+				// returned data is always little endian
+				ret = (twoBuf[1] & 0xFF) << 8 | (twoBuf[0] & 0xFF);
+				whiteValid = true;
+			}
 		} catch (IOException e) {
+			failures.increment();
 			System.err.println("Could not get white light data from ambient light sensor.");
 		}
 		return ret;
 	}
+	/* whether the last getWhiteLight() read the sensor */
+	public boolean whiteValid() {
+		return whiteValid;
+	}
+	public long failures() {
+		return failures.sum();
+	}
 }
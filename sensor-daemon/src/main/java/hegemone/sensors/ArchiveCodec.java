@@ -0,0 +1,299 @@
+package hegemone.sensors;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* the column encodings of a FrameArchive block, after Facebook's Gorilla.
+ *
+ * Each column of a block is a stream of its own, so a column of values that
+ * barely move stays small however noisy its neighbours are:
+ *
+ *   Times      delta of delta, bit packed: '0' for the same step as before,
+ *              '10' + 7 bits, '110' + 9 bits, '1110' + 12 bits, else
+ *              '1111' + 64 bits. Frames a period apart take one bit each.
+ *   Doubles    XOR with the previous value, bit packed: '0' if unchanged,
+ *              '10' + the meaningful bits if they fit the previous window,
+ *              else '11' + 5 bits of leading zeros, 6 bits of length and
+ *              the meaningful bits.
+ *   Integers   zigzag varint of the difference to the previous value, bytes.
+ *
+ * Every stream starts from zero. Encoders grow their buffer as needed and
+ * are reset and reused for the next block; decoders read straight out of
+ * a (mapped) ByteBuffer and allocate nothing.
+ */
+final class ArchiveCodec {
+    private ArchiveCodec() {
+    }
+
+    /* a growable byte buffer written a bit or a byte at a time */
+    static class Column {
+        private byte[] buf = new byte[64];
+        private int pos;
+        /* bits still free in buf[pos - 1], 0 when the next bit starts a byte */
+        private int free;
+
+        void reset() {
+            pos = 0;
+            free = 0;
+        }
+
+        int length() {
+            return pos;
+        }
+
+        void copyTo(ByteBuffer out) {
+            out.put(buf, 0, pos);
+        }
+
+        private void ensure(int bytes) {
+            if (pos + bytes > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + bytes));
+            }
+        }
+
+        /* the low n bits of value, most significant first */
+        void bits(long value, int n) {
+            ensure((n + 7) / 8 + 1);
+            while (n > 0) {
+                if (free == 0) {
+                    buf[pos++] = 0;
+                    free = 8;
+                }
+                int take = Math.min(free, n);
+                int chunk = (int) (value >>> (n - take)) & ((1 << take) - 1);
+                buf[pos - 1] |= (byte) (chunk << (free - take));
+                free -= take;
+                n -= take;
+            }
+        }
+
+        void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+    }
+
+    static final class TimeEncoder extends Column {
+        private long last;
+        private long lastDelta;
+
+        @Override
+        void reset() {
+            super.reset();
+            last = 0;
+            lastDelta = 0;
+        }
+
+        void add(long time) {
+            long delta = time - last;
+            long dod = delta - lastDelta;
+            if (dod == 0) {
+                bits(0, 1);
+            } else if (dod >= -64 && dod <= 63) {
+                bits(0b10, 2);
+                bits(dod, 7);
+            } else if (dod >= -256 && dod <= 255) {
+                bits(0b110, 3);
+                bits(dod, 9);
+            } else if (dod >= -2048 && dod <= 2047) {
+                bits(0b1110, 4);
+                bits(dod, 12);
+            } else {
+                bits(0b1111, 4);
+                bits(dod, 64);
+            }
+            last = time;
+            lastDelta = delta;
+        }
+    }
+
+    static final class DoubleEncoder extends Column {
+        private long last;
+        private int lastLeading = -1;
+        private int lastTrailing;
+
+        @Override
+        void reset() {
+            super.reset();
+            last = 0;
+            lastLeading = -1;
+            lastTrailing = 0;
+        }
+
+        void add(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            long xor = bits ^ last;
+            last = bits;
+            if (xor == 0) {
+                bits(0, 1);
+                return;
+            }
+            int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (lastLeading >= 0 && leading >= lastLeading && trailing >= lastTrailing) {
+                bits(0b10, 2);
+                bits(xor >>> lastTrailing, 64 - lastLeading - lastTrailing);
+                return;
+            }
+            int meaningful = 64 - leading - trailing;
+            bits(0b11, 2);
+            bits(leading, 5);
+            /* 64 meaningful bits don't fit in 6, and 0 can't happen */
+            bits(meaningful & 0x3F, 6);
+            bits(xor >>> trailing, meaningful);
+            lastLeading = leading;
+            lastTrailing = trailing;
+        }
+    }
+
+    static final class IntEncoder extends Column {
+        private long last;
+
+        @Override
+        void reset() {
+            super.reset();
+            last = 0;
+        }
+
+        void add(long value) {
+            long delta = value - last;
+            last = value;
+            varint((delta << 1) ^ (delta >> 63));
+        }
+    }
+
+    /* reads a column from in[offset, offset + length) */
+    static class ColumnReader {
+        ByteBuffer in;
+        int pos;
+        int end;
+        /* bits of in[pos - 1] not read yet */
+        private int left;
+
+        void reset(ByteBuffer in, int offset, int length) {
+            this.in = in;
+            pos = offset;
+            end = offset + length;
+            left = 0;
+        }
+
+        long bits(int n) {
+            long value = 0;
+            while (n > 0) {
+                if (left == 0) {
+                    if (pos >= end) {
+                        throw new IllegalStateException("Archive column ends early");
+                    }
+                    pos++;
+                    left = 8;
+                }
+                int take = Math.min(left, n);
+                int b = in.get(pos - 1) & 0xFF;
+                value = (value << take) | ((b >>> (left - take)) & ((1 << take) - 1));
+                left -= take;
+                n -= take;
+            }
+            return value;
+        }
+
+        /* '1' bits before the first '0', up to max */
+        int ones(int max) {
+            int n = 0;
+            while (n < max && bits(1) == 1) {
+                n++;
+            }
+            return n;
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= end) {
+                    throw new IllegalStateException("Archive column ends early");
+                }
+                byte b = in.get(pos++);
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Archive varint too long");
+        }
+    }
+
+    static final class TimeDecoder extends ColumnReader {
+        private static final int[] WIDTHS = {0, 7, 9, 12, 64};
+        private long last;
+        private long lastDelta;
+
+        @Override
+        void reset(ByteBuffer in, int offset, int length) {
+            super.reset(in, offset, length);
+            last = 0;
+            lastDelta = 0;
+        }
+
+        long next() {
+            int width = WIDTHS[ones(4)];
+            long dod = 0;
+            if (width > 0) {
+                dod = bits(width);
+                /* sign extend */
+                dod = width == 64 ? dod : (dod << (64 - width)) >> (64 - width);
+            }
+            lastDelta += dod;
+            last += lastDelta;
+            return last;
+        }
+    }
+
+    static final class DoubleDecoder extends ColumnReader {
+        private long last;
+        private int lastLeading;
+        private int lastTrailing;
+
+        @Override
+        void reset(ByteBuffer in, int offset, int length) {
+            super.reset(in, offset, length);
+            last = 0;
+            lastLeading = 0;
+            lastTrailing = 0;
+        }
+
+        double next() {
+            if (bits(1) == 1) {
+                if (bits(1) == 1) {
+                    lastLeading = (int) bits(5);
+                    int meaningful = (int) bits(6);
+                    if (meaningful == 0) {
+                        meaningful = 64;
+                    }
+                    lastTrailing = 64 - lastLeading - meaningful;
+                }
+                int meaningful = 64 - lastLeading - lastTrailing;
+                last ^= bits(meaningful) << lastTrailing;
+            }
+            return Double.longBitsToDouble(last);
+        }
+    }
+
+    static final class IntDecoder extends ColumnReader {
+        private long last;
+
+        @Override
+        void reset(ByteBuffer in, int offset, int length) {
+            super.reset(in, offset, length);
+            last = 0;
+        }
+
+        long next() {
+            long zigzag = varint();
+            last += (zigzag >>> 1) ^ -(zigzag & 1);
+            return last;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/* hands frames from the publishing thread to one DataConsumer on a thread
+ * of its own, so a slow consumer never stretches the acquisition loop.
+ *
+ * A single producer, single consumer ring of preallocated frames, in the
+ * manner of a Disruptor: the producer copies the frame into the next slot
+ * and publishes it by moving its sequence, the worker copies it out and
+ * moves the consumed sequence. No locks on either side, the worker parks
+ * when the ring is empty and the producer only unparks it then.
+ *
+ * When the ring is full the overflow policy decides. DROP_OLDEST has the
+ * producer take the oldest slot back with a CAS on the consumed sequence;
+ * a worker that was copying that slot then loses its own CAS and throws
+ * the copy away, so a frame is never delivered torn.
+ */
+class ConsumerRing implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.submitter");
+    /* how long BLOCK and close() wait between checks */
+    private static final long PAUSE_NANOS = 50_000L;
+
+    enum OverflowPolicy {
+        DROP_OLDEST, DROP_NEWEST, BLOCK;
+
+        /* "drop-oldest", "drop-newest" or "block" */
+        static OverflowPolicy forName(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final DataConsumer consumer;
+    private final String name;
+    private final OverflowPolicy policy;
+    private final SensorFrame[] slots;
+    private final long[] publishedAt;
+    private final int mask;
+    /* next sequence the producer writes, and the next the worker reads */
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private volatile boolean waiting;
+    private volatile boolean closed;
+    private final Thread worker;
+
+    /* owned by the worker */
+    private final SensorFrame current = new SensorFrame();
+    private final FrameJsonWriter jsonWriter = new FrameJsonWriter();
+    private final FrameBinaryWriter binaryWriter = new FrameBinaryWriter();
+
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile long maxLag;
+    private volatile long lastLatencyNanos;
+    private volatile long maxLatencyNanos;
+    private final LatencyHistogram latencies;
+
+    ConsumerRing(DataConsumer consumer, int capacity, OverflowPolicy policy) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two, got " + capacity);
+        }
+        this.consumer = consumer;
+        var simpleName = consumer.getClass().getSimpleName();
+        this.name = simpleName.isEmpty() ? consumer.getClass().getName() : simpleName;
+        this.policy = policy;
+        slots = new SensorFrame[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new SensorFrame();
+        }
+        publishedAt = new long[capacity];
+        mask = capacity - 1;
+        latencies = Metrics.histogram("hegemone_consumer_latency_seconds",
+                "Time from publishing a frame to a consumer having taken it", "consumer", name);
+        Metrics.counter("hegemone_consumer_frames_total", "Frames per consumer and outcome",
+                delivered::sum, "consumer", name, "outcome", "delivered");
+        Metrics.counter("hegemone_consumer_frames_total", "Frames per consumer and outcome",
+                dropped::sum, "consumer", name, "outcome", "dropped");
+        Metrics.counter("hegemone_consumer_frames_total", "Frames per consumer and outcome",
+                failures::sum, "consumer", name, "outcome", "failed");
+        Metrics.gauge("hegemone_consumer_lag_frames", "Frames published but not yet taken", this::lag, "consumer", name);
+        Metrics.nanosCounter("hegemone_consumer_blocked_seconds_total", "Time publishing waited on a full ring",
+                blockedNanos::sum, "consumer", name);
+        worker = new Thread(this::run, "consumer-" + name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /* producer side, one thread only */
+    void publish(SensorFrame frame) {
+        long seq = published.get();
+        while (seq - consumed.get() >= slots.length) {
+            if (policy == OverflowPolicy.DROP_NEWEST) {
+                dropped.increment();
+                return;
+            }
+            if (policy == OverflowPolicy.DROP_OLDEST) {
+                long oldest = consumed.get();
+                if (seq - oldest >= slots.length && consumed.compareAndSet(oldest, oldest + 1)) {
+                    dropped.increment();
+                }
+                continue;
+            }
+            long start = System.nanoTime();
+            LockSupport.parkNanos(PAUSE_NANOS);
+            blockedNanos.add(System.nanoTime() - start);
+            if (closed) {
+                return;
+            }
+        }
+        int slot = (int) seq & mask;
+        slots[slot].copyFrom(frame);
+        publishedAt[slot] = System.nanoTime();
+        /* a full fence, so the waiting read below can't move ahead of it
+           and miss a worker that parked after its own recheck */
+        published.set(seq + 1);
+        long lag = seq + 1 - consumed.get();
+        if (lag > maxLag) {
+            maxLag = lag;
+        }
+        if (waiting) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            long seq = consumed.get();
+            if (seq >= published.get()) {
+                if (closed) {
+                    return;
+                }
+                waiting = true;
+                /* recheck, a publish may have missed the flag */
+                if (seq >= published.get() && !closed) {
+                    LockSupport.park(this);
+                }
+                waiting = false;
+                continue;
+            }
+            int slot = (int) seq & mask;
+            current.copyFrom(slots[slot]);
+            long at = publishedAt[slot];
+            if (!consumed.compareAndSet(seq, seq + 1)) {
+                /* the producer dropped this slot while we copied it */
+                continue;
+            }
+            deliver(current);
+            long latency = System.nanoTime() - at;
+            latencies.record(latency);
+            lastLatencyNanos = latency;
+            if (latency > maxLatencyNanos) {
+                maxLatencyNanos = latency;
+            }
+        }
+    }
+
+    private void deliver(SensorFrame frame) {
+        try {
+            var format = consumer.format();
+            if (format == null) {
+                consumer.accept(frame, null, 0);
+            } else if (format == FrameFormat.BINARY) {
+                binaryWriter.begin();
+                int length = binaryWriter.write(frame);
+                consumer.accept(frame, binaryWriter.buffer(), length);
+            } else {
+                int length = jsonWriter.write(frame);
+                consumer.accept(frame, jsonWriter.buffer(), length);
+            }
+            delivered.increment();
+        } catch (RuntimeException e) {
+            /* keep the worker alive for the next frame */
+            failures.increment();
+            logger.warn("Consumer {} failed on a frame", name, e);
+        }
+    }
+
+    DataConsumer consumer() {
+        return consumer;
+    }
+
+    /* frames published but not yet taken by the worker */
+    long lag() {
+        return Math.max(0, published.get() - consumed.get());
+    }
+
+    String report() {
+        return String.format("%s delivered=%d dropped=%d failed=%d lag=%d max=%d latency=%dus max=%dus blocked=%dms",
+                name, delivered.sum(), dropped.sum(), failures.sum(), lag(), maxLag,
+                lastLatencyNanos / 1000, maxLatencyNanos / 1000, blockedNanos.sum() / 1_000_000);
+    }
+
+    /* let the worker finish what's queued, for at most timeoutMs */
+    void close(long timeoutMs) throws InterruptedException {
+        closed = true;
+        LockSupport.unpark(worker);
+        worker.join(timeoutMs);
+    }
+
+    @Override
+    public void close() {
+        try {
+            close(1_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,6 +1,21 @@
 package hegemone.sensors;
 
+import java.nio.charset.StandardCharsets;
+
 public interface DataConsumer {
 
     public void accept(String data);
+
+    /* the encoding this consumer is handed in accept(SensorFrame, byte[], int),
+       null for the frame alone and no encoding at all */
+    default FrameFormat format() {
+        return FrameFormat.JSON;
+    }
+
+    /* a frame and its encoding in format() in data[0..length). Both are
+       reused once this returns, so copy whatever must outlive the call.
+       The default hands JSON text to accept(String); override to avoid that. */
+    default void accept(SensorFrame frame, byte[] data, int length) {
+        accept(new String(data, 0, length, StandardCharsets.US_ASCII));
+    }
 }
@@ -3,6 +3,8 @@ package hegemone.sensors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
+
 public class DataLogger implements DataConsumer {
     private static final Logger log = LoggerFactory.getLogger("hegemone.sensors.datalogger");
 
@@ -10,4 +12,12 @@ public class DataLogger implements DataConsumer {
     public void accept(String data) {
         log.debug(data);
     }
+
+    @Override
+    public void accept(SensorFrame frame, byte[] json, int length) {
+        /* don't build the string unless it's going to be logged */
+        if (log.isDebugEnabled()) {
+            log.debug(new String(json, 0, length, StandardCharsets.US_ASCII));
+        }
+    }
 }
@@ -1,20 +1,60 @@
 package hegemone.sensors;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.CompletableFuture;
-import java.util.function.Consumer;
+import java.util.Arrays;
 
+/* fans frames out to the registered consumers. Every consumer gets its own
+   ConsumerRing and worker thread, so submit() only copies the frame into
+   each ring and never waits on a consumer (unless its ring is set to BLOCK). */
 public class DataSubmitter {
-    static List<DataConsumer> consumerList = new ArrayList<>();
+    /* copied on register, so submit() can walk it without a lock */
+    private static volatile ConsumerRing[] rings = new ConsumerRing[0];
     /**
-     * Submit data to some kind of data consumer
+     * Submit data to some kind of data consumer, synchronously on the caller's thread
      */
     public static void submit(String data) {
-        consumerList.forEach(c -> c.accept(data));
+        for (var ring : rings) {
+            ring.consumer().accept(data);
+        }
+    }
+
+    /**
+     * Submit a frame to every consumer's ring. One publishing thread only.
+     */
+    public static void submit(SensorFrame frame) {
+        for (var ring : rings) {
+            ring.publish(frame);
+        }
     }
 
     public static void register(DataConsumer consumer) {
-        consumerList.add(consumer);
+        register(consumer, Settings.SUBMIT_RING, Settings.SUBMIT_OVERFLOW);
+    }
+
+    public static synchronized void register(DataConsumer consumer, int capacity,
+                                             ConsumerRing.OverflowPolicy policy) {
+        var ring = new ConsumerRing(consumer, capacity, policy);
+        var grown = Arrays.copyOf(rings, rings.length + 1);
+        grown[rings.length] = ring;
+        rings = grown;
+    }
+
+    /* per consumer delivery and lag statistics */
+    public static String report() {
+        var sb = new StringBuilder();
+        for (var ring : rings) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(ring.report());
+        }
+        return sb.toString();
+    }
+
+    /* deliver what's queued and stop the workers, for at most timeoutMs each */
+    public static synchronized void shutdown(long timeoutMs) throws InterruptedException {
+        for (var ring : rings) {
+            ring.close(timeoutMs);
+        }
+        rings = new ConsumerRing[0];
     }
 }
@@ -0,0 +1,154 @@
+package hegemone.sensors;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/* holds back frames that only repeat the last one within sensor noise.
+ *
+ * Every field has a deadband, absolute or relative to the value last sent,
+ * and a frame is only sent once some field of its station moved past its
+ * deadband since the station's last sent frame. So that a quiet station
+ * isn't taken for a dead one, a frame also goes out when the last one is
+ * heartbeat ms old. Fields are the JSON names, "spectral" sets every
+ * spectral channel at once; a field without a deadband counts any change,
+ * one with both bands has to move past both.
+ * Only the publishing thread calls pass().
+ */
+class DeadbandFilter {
+    private static final int MOISTURE = 0;
+    private static final int SOIL_TEMP = 1;
+    private static final int AMBIENT_TEMP = 2;
+    private static final int LUX = 3;
+    private static final int SPECTRAL = 4;
+    private static final int FIELDS = SPECTRAL + SensorFrame.CHANNELS;
+
+    /* the last frame sent for a station, if any */
+    private static final class Station {
+        final SensorFrame sent = new SensorFrame();
+        boolean any;
+    }
+
+    private final double[] absolute = new double[FIELDS];
+    private final double[] relative = new double[FIELDS];
+    private final long heartbeat;
+    private final Map<String, Station> stations = new HashMap<>();
+    private long passed;
+    private long held;
+    private long heartbeats;
+
+    /* spec is comma separated field=band, band a number or a percentage, e.g. "moisture=5,lux=10%" */
+    DeadbandFilter(String spec, long heartbeat) {
+        this.heartbeat = heartbeat;
+        for (var entry : spec.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int eq = entry.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Deadband " + entry.trim() + " isn't field=band");
+            }
+            var field = entry.substring(0, eq).trim();
+            var band = entry.substring(eq + 1).trim();
+            boolean percent = band.endsWith("%");
+            double value = Double.parseDouble(percent ? band.substring(0, band.length() - 1) : band);
+            var target = percent ? relative : absolute;
+            if (percent) {
+                value /= 100;
+            }
+            if (field.equals("spectral")) {
+                Arrays.fill(target, SPECTRAL, FIELDS, value);
+            } else {
+                target[field(field)] = value;
+            }
+        }
+    }
+
+    /* the bands in hegemone.deadband, null if there are none */
+    static DeadbandFilter fromSettings() {
+        if (Settings.DEADBAND.isBlank()) {
+            return null;
+        }
+        return new DeadbandFilter(Settings.DEADBAND, Settings.DEADBAND_HEARTBEAT);
+    }
+
+    private static int field(String name) {
+        switch (name) {
+            case "moisture" -> {
+                return MOISTURE;
+            }
+            case "soil_temp" -> {
+                return SOIL_TEMP;
+            }
+            case "ambient_temp" -> {
+                return AMBIENT_TEMP;
+            }
+            case "lux" -> {
+                return LUX;
+            }
+            default -> {
+                for (int i = 0; i < SensorFrame.CHANNELS; i++) {
+                    if (SensorFrame.CHANNEL_NAMES[i].equals(name)) {
+                        return SPECTRAL + i;
+                    }
+                }
+                throw new IllegalArgumentException("No frame field " + name + " for a deadband");
+            }
+        }
+    }
+
+    /* whether frame should be sent, and if so it becomes its station's last sent frame */
+    boolean pass(SensorFrame frame) {
+        var station = stations.computeIfAbsent(frame.station, s -> new Station());
+        var sent = station.sent;
+        boolean pass = !station.any || moved(frame, sent);
+        if (!pass && frame.timestamp - sent.timestamp >= heartbeat) {
+            heartbeats++;
+            pass = true;
+        }
+        if (!pass) {
+            held++;
+            return false;
+        }
+        sent.copyFrom(frame);
+        station.any = true;
+        passed++;
+        return true;
+    }
+
+    private boolean moved(SensorFrame frame, SensorFrame sent) {
+        /* a sensor going stale or coming back is news even if its value isn't */
+        if (frame.stale != sent.stale) {
+            return true;
+        }
+        if (moved(MOISTURE, frame.moisture, sent.moisture)
+                || moved(SOIL_TEMP, frame.soilTemp, sent.soilTemp)
+                || moved(AMBIENT_TEMP, frame.ambientTemp, sent.ambientTemp)
+                || moved(LUX, frame.lux, sent.lux)) {
+            return true;
+        }
+        /* a spectrum that appears or changes range isn't comparable to the last */
+        if (frame.hasSpectrum() != sent.hasSpectrum() || frame.spectralGain != sent.spectralGain
+                || frame.spectralSteps != sent.spectralSteps) {
+            return true;
+        }
+        for (int i = 0; i < SensorFrame.CHANNELS; i++) {
+            if (moved(SPECTRAL + i, frame.spectral[i], sent.spectral[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean moved(int field, double value, double sent) {
+        double change = Math.abs(value - sent);
+        if (change == 0) {
+            return false;
+        }
+        return change > absolute[field] && change > relative[field] * Math.abs(sent);
+    }
+
+    String report() {
+        return "passed=" + passed + " held=" + held + " heartbeats=" + heartbeats;
+    }
+}
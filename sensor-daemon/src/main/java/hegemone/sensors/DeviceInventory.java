@@ -0,0 +1,504 @@
+package hegemone.sensors;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/* the stations this daemon samples and where their boards sit, read from
+ * the file given by -Dhegemone.inventory instead of being fixed in DeviceTree.
+ *
+ * One device per line, blank lines and # comments ignored:
+ *
+ *   # station  device    bus                 address          options
+ *   bed1       spectral  /dev/i2c-1@0x70:0   0x39             int=/dev/gpiochip0:4
+ *   bed1       light     /dev/i2c-1@0x70:0   -
+ *   bed1       soil      /dev/i2c-1@0x70:0   0x36
+ *   bed1       ds18b20   w1                  28-0033c3000096  res=9
+ *   bed2       spectral  /dev/i2c-3          0x39
+ *
+ * device is spectral (AS7341), light (VEML7700), soil (seesaw) or ds18b20.
+ * bus is an I2CTransport spec, optionally followed by @<mux address>:<channel>
+ * for a TCA9548A channel, repeated for cascaded muxes; each spec is opened
+ * once and shared by every device on it. "-" as address means the DeviceTree
+ * default. For a ds18b20 the bus is the 1-Wire master directory ("w1" for
+ * hegemone.w1) and the address the probe's serial, "-" taking the next probe
+ * the master found that no line names; res= and conv= set the probe's
+ * resolution and conversion time (see OneWireBus).
+ *
+ * Without a file the inventory is the single unnamed station of DeviceTree on
+ * hegemone.i2c. Stations are grouped by the bus their devices hang off, so
+ * each bus can be sampled by its own threads.
+ */
+class DeviceInventory {
+    static final String DEFAULT_W1 = "w1";
+    private static final Pattern STATION_NAME = Pattern.compile("[A-Za-z0-9_.-]{1,64}");
+    private static final Pattern MUX_HOP = Pattern.compile("0x[0-9A-Fa-f]{2}:[0-7]");
+
+    /* the stations with a device of each kind on one physical bus */
+    static final class Bus {
+        private final String name;
+        private final I2CTransport transport;
+        private final List<Sensors> spectral = new ArrayList<>();
+        private final List<Sensors> light = new ArrayList<>();
+        private final List<Sensors> soil = new ArrayList<>();
+        /* per station spectra of the sweep in progress, and whether each is still in it */
+        private int[][] flux = new int[0][];
+        private boolean[] measuring = new boolean[0];
+
+        Bus(String name, I2CTransport transport) {
+            this.name = name;
+            this.transport = transport;
+        }
+
+        String name() {
+            return name;
+        }
+
+        I2CTransport transport() {
+            return transport;
+        }
+
+        List<Sensors> spectral() {
+            return spectral;
+        }
+
+        List<Sensors> light() {
+            return light;
+        }
+
+        List<Sensors> soil() {
+            return soil;
+        }
+
+        /* every spectrometer on the bus at once: all chips integrate
+           together and the bus only carries their SMUX loads and reads,
+           so a sweep takes about as long for one station as for twenty.
+           A chip that gives no result within its budget drops out of the
+           sweep, its station keeps the last spectrum */
+        void sampleSpectra() {
+            int n = spectral.size();
+            if (flux.length != n) {
+                flux = new int[n][SensorFrame.CHANNELS];
+                measuring = new boolean[n];
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                spectral.get(i).getSpectralSensor().startF1F6Measurement();
+                measuring[i] = true;
+            }
+            for (int i = 0; i < n; i++) {
+                var spectrometer = spectral.get(i).getSpectralSensor();
+                measuring[i] = spectrometer.awaitMeasurement();
+                if (measuring[i]) {
+                    spectrometer.readF1F6(flux[i]);
+                    spectrometer.startF7F8NIRClearMeasurement();
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                var spectrometer = spectral.get(i).getSpectralSensor();
+                if (measuring[i] && spectrometer.awaitMeasurement()) {
+                    spectrometer.readF7F8NIRClear(flux[i]);
+                    if (spectrometer.sweepComplete()) {
+                        spectral.get(i).updateSpectrum(flux[i]);
+                    }
+                }
+                spectral.get(i).recordSpectralSweep(System.nanoTime() - start);
+            }
+        }
+
+        /* continuous spectrometers, no waiting */
+        void drainSpectra() {
+            for (var s : spectral) {
+                s.drainSpectrum();
+            }
+        }
+
+        void sampleAmbientLight() {
+            for (var s : light) {
+                s.sampleAmbientLight();
+            }
+        }
+
+        /* every seesaw on the bus at once, each converting while the
+           others are asked or read, so the bus is never held idle */
+        void sampleSoil() {
+            long start = System.nanoTime();
+            for (var s : soil) {
+                s.getSoilSensor().startMoisture();
+            }
+            awaitSoil(true);
+            long read = System.nanoTime();
+            for (var s : soil) {
+                s.getSoilSensor().startTemperature();
+            }
+            awaitSoil(false);
+            long end = System.nanoTime();
+            for (var s : soil) {
+                s.updateSoil(read - start, end - read);
+            }
+        }
+
+        /* poll the seesaws until each has its moisture (or temperature) in,
+           sleeping until the next is due */
+        private void awaitSoil(boolean moisture) {
+            while (true) {
+                long next = Long.MAX_VALUE;
+                for (var s : soil) {
+                    var sensor = s.getSoilSensor();
+                    if (!(moisture ? sensor.pollMoisture() : sensor.pollTemperature())) {
+                        next = Math.min(next, sensor.readyInNanos());
+                    }
+                }
+                if (next == Long.MAX_VALUE) {
+                    return;
+                }
+                if (next > 0) {
+                    Utils.suspend((next + 999) / 1000);
+                }
+            }
+        }
+    }
+
+    /* one parsed line */
+    private static final class Entry {
+        final int line;
+        final String station;
+        final String device;
+        final String bus;
+        final String address;
+        final String interrupt;
+        /* DS18B20 bits and conv_time in ms, 0 for the hegemone.w1 defaults */
+        final int resolution;
+        final int conv;
+
+        Entry(int line, String station, String device, String bus, String address, String interrupt,
+              int resolution, int conv) {
+            this.line = line;
+            this.station = station;
+            this.device = device;
+            this.bus = bus;
+            this.address = address;
+            this.interrupt = interrupt;
+            this.resolution = resolution;
+            this.conv = conv;
+        }
+    }
+
+    private final List<Sensors> stations = new ArrayList<>();
+    private final Map<String, Bus> buses = new LinkedHashMap<>();
+    /* every opened transport by spec, roots and mux channels */
+    private final Map<String, I2CTransport> transports = new LinkedHashMap<>();
+    private final Map<String, MuxedI2CTransport.Mux> muxes = new LinkedHashMap<>();
+    /* 1-Wire masters by sysfs directory */
+    private final Map<String, OneWireBus> oneWire = new LinkedHashMap<>();
+
+    private DeviceInventory() {
+    }
+
+    /* the inventory file if configured, otherwise the DeviceTree station */
+    static DeviceInventory load() throws IOException {
+        if (Settings.INVENTORY == null || Settings.INVENTORY.isEmpty()) {
+            return single(new InstrumentedI2CTransport(I2CTransport.open(Settings.I2C_TRANSPORT)));
+        }
+        return load(new File(Settings.INVENTORY));
+    }
+
+    /* one unnamed station with every board, as before there were inventories */
+    static DeviceInventory single(I2CTransport transport) {
+        var inventory = new DeviceInventory();
+        inventory.transports.put(transport.name(), transport);
+        var bus = inventory.bus(transport.name(), transport);
+        var w1 = inventory.oneWire(Settings.W1_BUS);
+        var probe = w1.attach(unclaimed(w1, List.of()), Settings.W1_RESOLUTION, Settings.W1_CONV_TIME);
+        var sensors = new Sensors(transport, probe);
+        inventory.stations.add(sensors);
+        bus.spectral.add(sensors);
+        bus.light.add(sensors);
+        bus.soil.add(sensors);
+        return inventory;
+    }
+
+    static DeviceInventory load(File file) throws IOException {
+        var entries = new ArrayList<Entry>();
+        try (var reader = new BufferedReader(new FileReader(file))) {
+            int n = 0;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                n++;
+                int hash = line.indexOf('#');
+                if (hash >= 0) {
+                    line = line.substring(0, hash);
+                }
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                entries.add(parse(n, line.split("\\s+")));
+            }
+        }
+        if (entries.isEmpty()) {
+            throw new IOException("Inventory " + file + " lists no devices");
+        }
+        var inventory = new DeviceInventory();
+        try {
+            inventory.build(entries);
+        } catch (IOException | RuntimeException e) {
+            inventory.close();
+            throw e;
+        }
+        return inventory;
+    }
+
+    private static Entry parse(int line, String[] fields) throws IOException {
+        if (fields.length < 4) {
+            throw new IOException("Inventory line " + line + ": expected station device bus address");
+        }
+        if (!STATION_NAME.matcher(fields[0]).matches()) {
+            throw new IOException("Inventory line " + line + ": station names are letters, digits, '_', '.' and '-'");
+        }
+        String interrupt = null;
+        int resolution = 0;
+        int conv = 0;
+        for (int i = 4; i < fields.length; i++) {
+            if (fields[i].startsWith("int=")) {
+                interrupt = fields[i].substring(4);
+            } else if (fields[i].startsWith("res=")) {
+                resolution = option(line, fields[i]);
+                if (resolution < 9 || resolution > 12) {
+                    throw new IOException("Inventory line " + line + ": DS18B20 resolution is 9 to 12 bits");
+                }
+            } else if (fields[i].startsWith("conv=")) {
+                conv = option(line, fields[i]);
+            } else {
+                throw new IOException("Inventory line " + line + ": unknown option " + fields[i]);
+            }
+        }
+        return new Entry(line, fields[0], fields[1], fields[2], fields[3], interrupt, resolution, conv);
+    }
+
+    private static int option(int line, String field) throws IOException {
+        try {
+            int value = Integer.parseInt(field.substring(field.indexOf('=') + 1));
+            if (value < 0) {
+                throw new NumberFormatException();
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            throw new IOException("Inventory line " + line + ": " + field + " is not a count");
+        }
+    }
+
+    private void build(List<Entry> entries) throws IOException {
+        /* a simulated bus only gets the default boards if something sits on it directly,
+           otherwise they would shadow the ones behind its muxes */
+        var direct = new HashSet<String>();
+        for (var e : entries) {
+            if (!e.device.equals("ds18b20") && e.bus.indexOf('@') < 0) {
+                direct.add(e.bus);
+            }
+        }
+        var devices = new LinkedHashMap<String, Map<String, Object>>();
+        var stationBuses = new LinkedHashMap<String, Map<String, Bus>>();
+        for (var e : entries) {
+            if (e.interrupt != null && !e.device.equals("spectral")) {
+                throw new IOException("Inventory line " + e.line + ": only a spectral device has an int= line");
+            }
+            if ((e.resolution != 0 || e.conv != 0) && !e.device.equals("ds18b20")) {
+                throw new IOException("Inventory line " + e.line + ": only a ds18b20 has res= and conv=");
+            }
+            var station = devices.computeIfAbsent(e.station, k -> new LinkedHashMap<>());
+            if (station.containsKey(e.device)) {
+                throw new IOException("Inventory line " + e.line + ": station " + e.station + " already has a " + e.device);
+            }
+            switch (e.device) {
+                case "ds18b20" -> {
+                    var w1 = oneWire(e.bus.equals(DEFAULT_W1) ? Settings.W1_BUS : e.bus);
+                    var serial = e.address.equals("-") ? unclaimed(w1, entries) : e.address;
+                    try {
+                        station.put(e.device, w1.attach(serial,
+                                e.resolution != 0 ? e.resolution : Settings.W1_RESOLUTION,
+                                e.conv != 0 ? e.conv : Settings.W1_CONV_TIME));
+                    } catch (IllegalArgumentException x) {
+                        throw new IOException("Inventory line " + e.line + ": " + x.getMessage());
+                    }
+                }
+                case "spectral", "light", "soil" -> {
+                    var transport = open(e, direct.contains(root(e.bus)));
+                    int address = address(e);
+                    var root = root(e.bus);
+                    var bus = bus(root, transports.get(root));
+                    stationBuses.computeIfAbsent(e.station, k -> new LinkedHashMap<>()).put(e.device, bus);
+                    if (e.device.equals("spectral")) {
+                        var interrupt = Sensors.openInterrupt(e.interrupt, transport, address);
+                        station.put(e.device, new Spectrometer(transport, address, interrupt));
+                    } else if (e.device.equals("light")) {
+                        station.put(e.device, new AmbientLight(transport, address));
+                    } else {
+                        station.put(e.device, new Soil(transport, address));
+                    }
+                }
+                default -> throw new IOException("Inventory line " + e.line + ": unknown device " + e.device
+                        + ", expected spectral, light, soil or ds18b20");
+            }
+        }
+        for (var s : devices.entrySet()) {
+            var d = s.getValue();
+            var sensors = new Sensors(s.getKey(), (Soil) d.get("soil"), (AmbientLight) d.get("light"),
+                    (Spectrometer) d.get("spectral"), (OneWireBus.Probe) d.get("ds18b20"));
+            stations.add(sensors);
+            var on = stationBuses.getOrDefault(s.getKey(), Map.of());
+            if (on.containsKey("spectral")) {
+                on.get("spectral").spectral.add(sensors);
+            }
+            if (on.containsKey("light")) {
+                on.get("light").light.add(sensors);
+            }
+            if (on.containsKey("soil")) {
+                on.get("soil").soil.add(sensors);
+            }
+        }
+    }
+
+    /* the transport for an entry's bus spec, opening the root and muxes on first use */
+    private I2CTransport open(Entry e, boolean populated) throws IOException {
+        var existing = transports.get(e.bus);
+        if (existing != null) {
+            return existing;
+        }
+        var hops = e.bus.split("@");
+        var spec = hops[0];
+        var transport = transports.get(spec);
+        if (transport == null) {
+            transport = new InstrumentedI2CTransport(
+                    I2CTransport.isSimulated(spec) && !populated ? SimulatedI2CTransport.empty() : I2CTransport.open(spec));
+            transports.put(spec, transport);
+        }
+        for (int i = 1; i < hops.length; i++) {
+            if (!MUX_HOP.matcher(hops[i]).matches()) {
+                throw new IOException("Inventory line " + e.line + ": mux should be @0x<address>:<channel 0-7>, got @" + hops[i]);
+            }
+            int colon = hops[i].indexOf(':');
+            int muxAddress = Integer.parseInt(hops[i].substring(2, colon), 16);
+            int channel = Integer.parseInt(hops[i].substring(colon + 1));
+            var upstream = transport;
+            var mux = muxes.computeIfAbsent(spec + "@" + hops[i].substring(0, colon),
+                    k -> new MuxedI2CTransport.Mux(upstream, muxAddress));
+            var root = InstrumentedI2CTransport.unwrap(transport);
+            if (i == 1 && root instanceof SimulatedI2CTransport) {
+                ((SimulatedI2CTransport) root).attachMuxed(muxAddress, channel, true);
+            }
+            spec = spec + "@" + hops[i];
+            var channelTransport = transports.get(spec);
+            if (channelTransport == null) {
+                channelTransport = mux.channel(channel);
+                transports.put(spec, channelTransport);
+            }
+            transport = channelTransport;
+        }
+        return transport;
+    }
+
+    private static String root(String bus) {
+        int at = bus.indexOf('@');
+        return at < 0 ? bus : bus.substring(0, at);
+    }
+
+    private static int address(Entry e) throws IOException {
+        if (e.address.equals("-")) {
+            switch (e.device) {
+                case "spectral":
+                    return DeviceTree.ADAFRUIT_SPECTROMETER;
+                case "light":
+                    return DeviceTree.ADAFRUIT_AMBIENT_LIGHT_SENSOR;
+                default:
+                    return DeviceTree.ADAFRUIT_SOIL_SENSOR;
+            }
+        }
+        try {
+            int address = Integer.decode(e.address);
+            if (address < 0x08 || address > 0x77) {
+                throw new NumberFormatException();
+            }
+            return address;
+        } catch (NumberFormatException x) {
+            throw new IOException("Inventory line " + e.line + ": " + e.address + " is not a 7-bit I2C address");
+        }
+    }
+
+    private OneWireBus oneWire(String master) {
+        return oneWire.computeIfAbsent(master, OneWireBus::new);
+    }
+
+    /* the first probe found on w1 that no entry names and none took yet,
+       the DeviceTree serial if the master found none */
+    private static String unclaimed(OneWireBus w1, List<Entry> entries) {
+        var named = new HashSet<String>();
+        for (var e : entries) {
+            if (e.device.equals("ds18b20")) {
+                named.add(e.address);
+            }
+        }
+        for (var p : w1.probes()) {
+            named.add(p.serial());
+        }
+        for (var serial : w1.discover()) {
+            if (!named.contains(serial)) {
+                return serial;
+            }
+        }
+        return DeviceTree.DS18B20_SERIAL;
+    }
+
+    private Bus bus(String name, I2CTransport transport) {
+        return buses.computeIfAbsent(name, k -> new Bus(name, transport));
+    }
+
+    List<Sensors> stations() {
+        return Collections.unmodifiableList(stations);
+    }
+
+    List<Bus> buses() {
+        return List.copyOf(buses.values());
+    }
+
+    /* every station's DS18B20: one conversion on each master for all of them, then each is read */
+    void sampleTemperatures() {
+        for (var w1 : oneWire.values()) {
+            w1.convert();
+        }
+        for (var s : stations) {
+            s.sampleTemperature();
+        }
+    }
+
+    List<OneWireBus> oneWireBuses() {
+        return List.copyOf(oneWire.values());
+    }
+
+    boolean hasTemperatureProbes() {
+        for (var s : stations) {
+            if (s.hasTemperatureProbe()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* the root buses, mux channels close with them */
+    void close() {
+        for (var t : transports.values()) {
+            try {
+                t.close();
+            } catch (IOException e) {
+                System.err.println("Couldn't close I2C bus " + t.name() + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,631 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/* every frame for months, compressed into daily files on the SD card.
+ *
+ * Frames are gathered per station into blocks of hegemone.archive.block
+ * frames, each field a column of its own (see ArchiveCodec): times as
+ * delta of delta, temperatures as XOR'd doubles, counts as zigzag varint
+ * deltas. A full block goes to the file of its UTC day in one write, so
+ * the card sees a few kilobytes every few minutes rather than a write per
+ * frame; a block never spans days. A frame takes 15 to 30 bytes against
+ * about 300 as JSON.
+ *
+ *   <dir>/YYYY-MM-DD.hga   'HGAR' version, then blocks:
+ *                          length, crc32 of the body, first and last
+ *                          timestamp, frames, then the body: station
+ *                          (length byte, ASCII), column count, column
+ *                          lengths, columns
+ *   <dir>/YYYY-MM-DD.hgi   'HGAI' version, then per block: first and last
+ *                          timestamp, offset in the .hga, station hash,
+ *                          frames
+ *
+ * The index is sparse, one entry per block, and written after its block.
+ * Nothing is forced to the card: a power cut loses the open blocks and
+ * whatever the kernel hadn't written back, and reopening a day drops a
+ * torn last block and rebuilds its index if needed. Reader maps the files
+ * of the days asked for and only decodes blocks in range, frame by frame.
+ * Days older than hegemone.archive.days are deleted as new ones start.
+ * accept() and close() run on one thread (the archive's ConsumerRing).
+ */
+class FrameArchive implements DataConsumer, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.archive");
+    private static final int DATA_MAGIC = 0x48474152; /* "HGAR" */
+    private static final int INDEX_MAGIC = 0x48474149; /* "HGAI" */
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER = 8;
+    /* length, crc, first, last, frames */
+    private static final int BLOCK_HEADER = 28;
+    private static final int INDEX_ENTRY = 32;
+    private static final long DAY = 86_400_000L;
+    private static final String DATA = ".hga";
+    private static final String INDEX = ".hgi";
+    /* timestamp, moisture, soil_temp and when, ambient_temp and when,
+       lux and when, the spectral channels and when, gain, steps */
+    private static final int COLUMNS = 11 + SensorFrame.CHANNELS;
+
+    /* the columns of one station's open block */
+    private static final class Block {
+        final String station;
+        final ArchiveCodec.TimeEncoder timestamp = new ArchiveCodec.TimeEncoder();
+        final ArchiveCodec.IntEncoder moisture = new ArchiveCodec.IntEncoder();
+        final ArchiveCodec.DoubleEncoder soilTemp = new ArchiveCodec.DoubleEncoder();
+        final ArchiveCodec.TimeEncoder soilAt = new ArchiveCodec.TimeEncoder();
+        final ArchiveCodec.DoubleEncoder ambientTemp = new ArchiveCodec.DoubleEncoder();
+        final ArchiveCodec.TimeEncoder ambientAt = new ArchiveCodec.TimeEncoder();
+        final ArchiveCodec.IntEncoder lux = new ArchiveCodec.IntEncoder();
+        final ArchiveCodec.TimeEncoder luxAt = new ArchiveCodec.TimeEncoder();
+        final ArchiveCodec.IntEncoder[] spectral = new ArchiveCodec.IntEncoder[SensorFrame.CHANNELS];
+        final ArchiveCodec.TimeEncoder spectralAt = new ArchiveCodec.TimeEncoder();
+        final ArchiveCodec.IntEncoder gain = new ArchiveCodec.IntEncoder();
+        final ArchiveCodec.IntEncoder steps = new ArchiveCodec.IntEncoder();
+        /* in file order */
+        final ArchiveCodec.Column[] columns;
+        int frames;
+        long first;
+        long last;
+
+        Block(String station) {
+            this.station = station;
+            for (int i = 0; i < spectral.length; i++) {
+                spectral[i] = new ArchiveCodec.IntEncoder();
+            }
+            columns = new ArchiveCodec.Column[COLUMNS];
+            int c = 0;
+            for (var column : new ArchiveCodec.Column[] {timestamp, moisture, soilTemp, soilAt, ambientTemp,
+                    ambientAt, lux, luxAt}) {
+                columns[c++] = column;
+            }
+            for (var column : spectral) {
+                columns[c++] = column;
+            }
+            columns[c++] = spectralAt;
+            columns[c++] = gain;
+            columns[c] = steps;
+        }
+
+        void add(SensorFrame frame) {
+            if (frames == 0) {
+                first = frame.timestamp;
+            }
+            last = frame.timestamp;
+            frames++;
+            timestamp.add(frame.timestamp);
+            moisture.add(frame.moisture);
+            soilTemp.add(frame.soilTemp);
+            soilAt.add(frame.soilSampledAt);
+            ambientTemp.add(frame.ambientTemp);
+            ambientAt.add(frame.ambientSampledAt);
+            lux.add(frame.lux);
+            luxAt.add(frame.luxSampledAt);
+            for (int i = 0; i < spectral.length; i++) {
+                spectral[i].add(frame.spectral[i]);
+            }
+            spectralAt.add(frame.spectralSampledAt);
+            gain.add(frame.spectralGain);
+            steps.add(frame.spectralSteps);
+        }
+
+        void reset() {
+            for (var column : columns) {
+                column.reset();
+            }
+            frames = 0;
+        }
+    }
+
+    private final File dir;
+    private final int blockFrames;
+    private final int keepDays;
+    private final Map<String, Block> blocks = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer out = ByteBuffer.allocate(16384);
+    private final ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+    /* the day being written, its files and where the next block goes */
+    private long day = Long.MIN_VALUE;
+    private FileChannel data;
+    private FileChannel index;
+    private long dataEnd;
+    /* written by the archiving thread, read for report() */
+    private volatile long frames;
+    private volatile long framesWritten;
+    private volatile long blocksWritten;
+    private volatile long bytesWritten;
+
+    private FrameArchive(File dir, int blockFrames, int keepDays) {
+        this.dir = dir;
+        this.blockFrames = blockFrames;
+        this.keepDays = keepDays;
+    }
+
+    static FrameArchive open(String dir, int blockFrames, int keepDays) throws IOException {
+        var file = new File(dir);
+        if (!file.isDirectory() && !file.mkdirs()) {
+            throw new IOException("Can't create archive directory " + dir);
+        }
+        if (blockFrames < 1 || blockFrames > 65_535) {
+            throw new IllegalArgumentException("Archive blocks hold 1 to 65535 frames, got " + blockFrames);
+        }
+        return new FrameArchive(file, blockFrames, keepDays);
+    }
+
+    /* frames only, nothing to encode */
+    @Override
+    public FrameFormat format() {
+        return null;
+    }
+
+    @Override
+    public void accept(String data) {
+    }
+
+    @Override
+    public void accept(SensorFrame frame, byte[] ignored, int length) {
+        long frameDay = Math.floorDiv(frame.timestamp, DAY);
+        if (frameDay != day) {
+            /* blocks never span days, nor a clock that jumped */
+            flushAll();
+            switchDay(frameDay);
+        }
+        var block = blocks.computeIfAbsent(frame.station, Block::new);
+        block.add(frame);
+        frames++;
+        if (block.frames >= blockFrames) {
+            flush(block);
+        }
+    }
+
+    private void flushAll() {
+        for (var block : blocks.values()) {
+            flush(block);
+        }
+    }
+
+    private void flush(Block block) {
+        if (block.frames == 0 || data == null) {
+            block.reset();
+            return;
+        }
+        var station = block.station == null ? new byte[0] : block.station.getBytes(StandardCharsets.US_ASCII);
+        int body = 1 + station.length + 1 + 4 * COLUMNS;
+        for (var column : block.columns) {
+            body += column.length();
+        }
+        if (out.capacity() < BLOCK_HEADER + body) {
+            out = ByteBuffer.allocate(Math.max(out.capacity() * 2, BLOCK_HEADER + body));
+        }
+        out.clear();
+        out.position(BLOCK_HEADER);
+        out.put((byte) station.length);
+        out.put(station);
+        out.put((byte) COLUMNS);
+        for (var column : block.columns) {
+            out.putInt(column.length());
+        }
+        for (var column : block.columns) {
+            column.copyTo(out);
+        }
+        crc.reset();
+        crc.update(out.array(), BLOCK_HEADER, body);
+        out.putInt(0, body);
+        out.putInt(4, (int) crc.getValue());
+        out.putLong(8, block.first);
+        out.putLong(16, block.last);
+        out.putInt(24, block.frames);
+        out.flip();
+        try {
+            long offset = dataEnd;
+            while (out.hasRemaining()) {
+                dataEnd += data.write(out, dataEnd);
+            }
+            entry.clear();
+            entry.putLong(block.first).putLong(block.last).putLong(offset)
+                    .putInt(stationHash(block.station)).putInt(block.frames).flip();
+            index.write(entry, index.size());
+            framesWritten += block.frames;
+            blocksWritten++;
+            bytesWritten += BLOCK_HEADER + body;
+        } catch (IOException e) {
+            logger.warn("Couldn't archive {} frames of {}: {}", block.frames, day(day), e.toString());
+        }
+        block.reset();
+    }
+
+    private static int stationHash(String station) {
+        return station == null ? 0 : station.hashCode();
+    }
+
+    private void switchDay(long next) {
+        closeFiles();
+        boolean forward = next > day;
+        day = next;
+        try {
+            var recovered = recover(new File(dir, day(day) + DATA), new File(dir, day(day) + INDEX));
+            data = recovered[0];
+            index = recovered[1];
+            dataEnd = data.size();
+        } catch (IOException e) {
+            logger.warn("Couldn't open archive for {}, its frames are lost: {}", day(day), e.toString());
+            closeFiles();
+        }
+        if (forward && keepDays > 0) {
+            expire(day - keepDays);
+        }
+    }
+
+    /* delete the files of days before first */
+    private void expire(long first) {
+        var names = dir.list((d, name) -> name.endsWith(DATA) || name.endsWith(INDEX));
+        if (names == null) {
+            return;
+        }
+        for (var name : names) {
+            try {
+                if (LocalDate.parse(name.substring(0, name.length() - DATA.length())).toEpochDay() < first
+                        && new File(dir, name).delete()) {
+                    logger.info("Archive {} expired", name);
+                }
+            } catch (RuntimeException e) {
+                /* not one of ours */
+            }
+        }
+    }
+
+    /* open a day for appending: drop a torn or corrupt tail of the data,
+       rebuild the index if it doesn't list exactly the blocks there are */
+    private static FileChannel[] recover(File dataFile, File indexFile) throws IOException {
+        var data = new RandomAccessFile(dataFile, "rw").getChannel();
+        try {
+            var header = ByteBuffer.allocate(FILE_HEADER);
+            if (data.size() < FILE_HEADER || data.read(header, 0) < FILE_HEADER
+                    || header.getInt(0) != DATA_MAGIC || header.getInt(4) != VERSION) {
+                if (data.size() > 0) {
+                    logger.warn("Archive {} isn't one, starting it over", dataFile);
+                }
+                data.truncate(0);
+                header.clear();
+                header.putInt(DATA_MAGIC).putInt(VERSION).flip();
+                data.write(header, 0);
+            }
+            /* every good block as an index entry */
+            var entries = ByteBuffer.allocate(4096);
+            var blockHeader = ByteBuffer.allocate(BLOCK_HEADER);
+            var crc = new CRC32();
+            long pos = FILE_HEADER;
+            long size = data.size();
+            while (pos + BLOCK_HEADER <= size) {
+                blockHeader.clear();
+                data.read(blockHeader, pos);
+                int body = blockHeader.getInt(0);
+                if (body <= 0 || pos + BLOCK_HEADER + body > size) {
+                    break;
+                }
+                var bytes = ByteBuffer.allocate(body);
+                data.read(bytes, pos + BLOCK_HEADER);
+                crc.reset();
+                crc.update(bytes.array(), 0, body);
+                if ((int) crc.getValue() != blockHeader.getInt(4)) {
+                    break;
+                }
+                int stationLength = bytes.get(0) & 0xFF;
+                var station = stationLength == 0 ? null
+                        : new String(bytes.array(), 1, stationLength, StandardCharsets.US_ASCII);
+                if (entries.remaining() < INDEX_ENTRY) {
+                    entries = ByteBuffer.allocate(entries.capacity() * 2).put(entries.flip());
+                }
+                entries.putLong(blockHeader.getLong(8)).putLong(blockHeader.getLong(16)).putLong(pos)
+                        .putInt(stationHash(station)).putInt(blockHeader.getInt(24));
+                pos += BLOCK_HEADER + body;
+            }
+            if (pos < size) {
+                logger.warn("Archive {} has {} bytes of a torn or corrupt block at its end, dropped", dataFile,
+                        size - pos);
+                data.truncate(pos);
+            }
+            entries.flip();
+            var index = new RandomAccessFile(indexFile, "rw").getChannel();
+            try {
+                if (!indexMatches(index, entries)) {
+                    index.truncate(0);
+                    header.clear();
+                    header.putInt(INDEX_MAGIC).putInt(VERSION).flip();
+                    index.write(header, 0);
+                    index.write(entries, FILE_HEADER);
+                }
+                return new FileChannel[] {data, index};
+            } catch (IOException | RuntimeException e) {
+                index.close();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            data.close();
+            throw e;
+        }
+    }
+
+    private static boolean indexMatches(FileChannel index, ByteBuffer entries) throws IOException {
+        if (index.size() != FILE_HEADER + entries.remaining()) {
+            return false;
+        }
+        var existing = ByteBuffer.allocate((int) index.size());
+        index.read(existing, 0);
+        return existing.getInt(0) == INDEX_MAGIC && existing.getInt(4) == VERSION
+                && existing.slice(FILE_HEADER, entries.remaining()).equals(entries);
+    }
+
+    private static String day(long day) {
+        return LocalDate.ofEpochDay(day).toString();
+    }
+
+    private void closeFiles() {
+        for (var channel : new FileChannel[] {data, index}) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.warn("Couldn't close archive of {}: {}", day(day), e.toString());
+                }
+            }
+        }
+        data = null;
+        index = null;
+    }
+
+    String report() {
+        long written = framesWritten;
+        return String.format("frames=%d written=%d blocks=%d bytes=%d (%.1f per frame)", frames, written,
+                blocksWritten, bytesWritten, written == 0 ? 0.0 : (double) bytesWritten / written);
+    }
+
+    /* write out the open blocks */
+    @Override
+    public void close() {
+        flushAll();
+        try {
+            if (data != null) {
+                data.force(false);
+                index.force(false);
+            }
+        } catch (IOException e) {
+            logger.warn("Couldn't sync archive: {}", e.toString());
+        }
+        closeFiles();
+        logger.info("Archive closed: {}", report());
+    }
+
+    /* a field of a frame as QueryServer and WindowAggregator name it, see WindowAggregator.FIELD_NAMES */
+    static int field(String name) {
+        for (int i = 0; i < WindowAggregator.FIELD_NAMES.length; i++) {
+            if (WindowAggregator.FIELD_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static double value(SensorFrame frame, int field) {
+        return switch (field) {
+            case 0 -> frame.moisture;
+            case 1 -> frame.soilTemp;
+            case 2 -> frame.ambientTemp;
+            case 3 -> frame.lux;
+            default -> frame.spectral[field - 4];
+        };
+    }
+
+    /* when the reading of field in frame was taken, 0 if never */
+    static long sampledAt(SensorFrame frame, int field) {
+        return switch (field) {
+            case 0, 1 -> frame.soilSampledAt;
+            case 2 -> frame.ambientSampledAt;
+            case 3 -> frame.luxSampledAt;
+            default -> frame.spectralSampledAt;
+        };
+    }
+
+    /* archived frames, in order, until it returns false */
+    interface Visitor {
+        boolean frame(SensorFrame frame);
+    }
+
+    /* range queries over the files of an archive directory, on one thread at a time */
+    static final class Reader {
+        private final File dir;
+        private final SensorFrame frame = new SensorFrame();
+        private final ArchiveCodec.TimeDecoder timestamp = new ArchiveCodec.TimeDecoder();
+        private final ArchiveCodec.IntDecoder moisture = new ArchiveCodec.IntDecoder();
+        private final ArchiveCodec.DoubleDecoder soilTemp = new ArchiveCodec.DoubleDecoder();
+        private final ArchiveCodec.TimeDecoder soilAt = new ArchiveCodec.TimeDecoder();
+        private final ArchiveCodec.DoubleDecoder ambientTemp = new ArchiveCodec.DoubleDecoder();
+        private final ArchiveCodec.TimeDecoder ambientAt = new ArchiveCodec.TimeDecoder();
+        private final ArchiveCodec.IntDecoder lux = new ArchiveCodec.IntDecoder();
+        private final ArchiveCodec.TimeDecoder luxAt = new ArchiveCodec.TimeDecoder();
+        private final ArchiveCodec.IntDecoder[] spectral = new ArchiveCodec.IntDecoder[SensorFrame.CHANNELS];
+        private final ArchiveCodec.TimeDecoder spectralAt = new ArchiveCodec.TimeDecoder();
+        private final ArchiveCodec.IntDecoder gain = new ArchiveCodec.IntDecoder();
+        private final ArchiveCodec.IntDecoder steps = new ArchiveCodec.IntDecoder();
+        private final ArchiveCodec.ColumnReader[] columns;
+        private final CRC32 crc = new CRC32();
+        private long corrupt;
+
+        Reader(String dir) {
+            this.dir = new File(dir);
+            for (int i = 0; i < spectral.length; i++) {
+                spectral[i] = new ArchiveCodec.IntDecoder();
+            }
+            columns = new ArchiveCodec.ColumnReader[COLUMNS];
+            int c = 0;
+            for (var column : new ArchiveCodec.ColumnReader[] {timestamp, moisture, soilTemp, soilAt, ambientTemp,
+                    ambientAt, lux, luxAt}) {
+                columns[c++] = column;
+            }
+            for (var column : spectral) {
+                columns[c++] = column;
+            }
+            columns[c++] = spectralAt;
+            columns[c++] = gain;
+            columns[c] = steps;
+        }
+
+        /* blocks that failed their crc, or didn't decode, so far */
+        long corrupt() {
+            return corrupt;
+        }
+
+        /* station's frames from from to to (epoch ms, inclusive) to visitor, returns how many */
+        long read(String station, long from, long to, Visitor visitor) throws IOException {
+            long n = 0;
+            int hash = stationHash(station);
+            for (long d : days(Math.floorDiv(from, DAY), Math.floorDiv(to, DAY))) {
+                var dataFile = new File(dir, day(d) + DATA);
+                var indexFile = new File(dir, day(d) + INDEX);
+                if (!dataFile.exists() || !indexFile.exists()) {
+                    continue;
+                }
+                MappedByteBuffer data;
+                MappedByteBuffer index;
+                /* the index first: whatever block it lists is in the data by then */
+                try (var indexChannel = FileChannel.open(indexFile.toPath());
+                     var dataChannel = FileChannel.open(dataFile.toPath())) {
+                    index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+                    data = dataChannel.map(FileChannel.MapMode.READ_ONLY, 0, dataChannel.size());
+                }
+                for (int e = FILE_HEADER; e + INDEX_ENTRY <= index.limit(); e += INDEX_ENTRY) {
+                    if (index.getLong(e + 8) < from || index.getLong(e) > to || index.getInt(e + 24) != hash) {
+                        continue;
+                    }
+                    long offset = index.getLong(e + 16);
+                    long visited = block(data, offset, station, from, to, visitor);
+                    if (visited < 0) {
+                        return n - visited - 1;
+                    }
+                    n += visited;
+                }
+            }
+            return n;
+        }
+
+        /* the days from first to last there are files of, in order */
+        private long[] days(long first, long last) {
+            var names = dir.list((d, name) -> name.endsWith(DATA));
+            if (names == null) {
+                return new long[0];
+            }
+            var days = new long[names.length];
+            int n = 0;
+            for (var name : names) {
+                try {
+                    long day = LocalDate.parse(name.substring(0, name.length() - DATA.length())).toEpochDay();
+                    if (day >= first && day <= last) {
+                        days[n++] = day;
+                    }
+                } catch (RuntimeException e) {
+                    /* not one of ours */
+                }
+            }
+            days = Arrays.copyOf(days, n);
+            Arrays.sort(days);
+            return days;
+        }
+
+        /* frames of the block at offset in range, -1 - frames if the visitor stopped */
+        private long block(ByteBuffer data, long offset, String station, long from, long to, Visitor visitor) {
+            if (offset < FILE_HEADER || offset + BLOCK_HEADER > data.limit()) {
+                corrupt++;
+                return 0;
+            }
+            int pos = (int) offset;
+            int body = data.getInt(pos);
+            int start = pos + BLOCK_HEADER;
+            if (body <= 0 || start + body > data.limit()) {
+                corrupt++;
+                return 0;
+            }
+            crc.reset();
+            crc.update(data.slice(start, body));
+            if ((int) crc.getValue() != data.getInt(pos + 4)) {
+                corrupt++;
+                return 0;
+            }
+            int frames = data.getInt(pos + 24);
+            int stationLength = data.get(start) & 0xFF;
+            if (!sameStation(data, start + 1, stationLength, station) || data.get(start + 1 + stationLength) != COLUMNS) {
+                return 0;
+            }
+            int lengths = start + 2 + stationLength;
+            int column = lengths + 4 * COLUMNS;
+            for (int c = 0; c < COLUMNS; c++) {
+                int length = data.getInt(lengths + 4 * c);
+                columns[c].reset(data, column, length);
+                column += length;
+            }
+            frame.station = station;
+            long n = 0;
+            try {
+                for (int i = 0; i < frames; i++) {
+                    next();
+                    if (frame.timestamp > to) {
+                        break;
+                    }
+                    if (frame.timestamp < from) {
+                        continue;
+                    }
+                    n++;
+                    if (!visitor.frame(frame)) {
+                        return -1 - n;
+                    }
+                }
+            } catch (IllegalStateException e) {
+                corrupt++;
+            }
+            return n;
+        }
+
+        private static boolean sameStation(ByteBuffer data, int at, int length, String station) {
+            if (station == null) {
+                return length == 0;
+            }
+            if (station.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (data.get(at + i) != station.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void next() {
+            frame.timestamp = timestamp.next();
+            frame.moisture = (int) moisture.next();
+            frame.soilTemp = soilTemp.next();
+            frame.soilSampledAt = soilAt.next();
+            frame.ambientTemp = ambientTemp.next();
+            frame.ambientSampledAt = ambientAt.next();
+            frame.lux = (int) lux.next();
+            frame.luxSampledAt = luxAt.next();
+            for (int i = 0; i < spectral.length; i++) {
+                frame.spectral[i] = (int) spectral[i].next();
+            }
+            frame.spectralSampledAt = spectralAt.next();
+            frame.spectralGain = (int) gain.next();
+            frame.spectralSteps = steps.next();
+        }
+    }
+}
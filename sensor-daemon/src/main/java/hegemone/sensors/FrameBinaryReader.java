@@ -0,0 +1,132 @@
+package hegemone.sensors;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/* decodes a stream written by FrameBinaryWriter, frame by frame into a
+   caller's SensorFrame. Temperatures left out of a record read as NaN,
+   a record without a station leaves it null. A stale reading gets its
+   sample time back from its age. */
+class FrameBinaryReader {
+    private final byte[] data;
+    private final int end;
+    private int pos;
+    private long lastTimestamp;
+    private long lastMoisture;
+    private long lastSoilTemp;
+    private long lastAmbientTemp;
+    private long lastLux;
+    private final long[] lastSpectral;
+
+    FrameBinaryReader(byte[] data, int offset, int length) throws IOException {
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+        if (length < FrameBinaryWriter.HEADER_SIZE) {
+            throw new IOException("Binary frame stream too short for a header");
+        }
+        for (byte b : FrameBinaryWriter.MAGIC) {
+            if (data[pos++] != b) {
+                throw new IOException("Not a binary frame stream");
+            }
+        }
+        int version = data[pos++] & 0xFF;
+        if (version < FrameBinaryWriter.MIN_VERSION || version > FrameBinaryWriter.VERSION) {
+            throw new IOException("Unsupported binary frame version " + version);
+        }
+        int channels = data[pos++] & 0xFF;
+        if (channels != SensorFrame.CHANNELS) {
+            throw new IOException("Binary frame stream has " + channels + " spectral channels, expected "
+                    + SensorFrame.CHANNELS);
+        }
+        lastSpectral = new long[channels];
+    }
+
+    /* false at the end of the stream */
+    boolean next(SensorFrame frame) throws IOException {
+        if (pos >= end) {
+            return false;
+        }
+        int flags = data[pos++] & 0xFF;
+        frame.station = (flags & FrameBinaryWriter.FLAG_STATION) != 0 ? getStation(frame.station) : null;
+        frame.timestamp = lastTimestamp += getDelta();
+        frame.moisture = (int) (lastMoisture += getDelta());
+        frame.soilTemp = (flags & FrameBinaryWriter.FLAG_NO_SOIL_TEMP) != 0 ? Double.NaN
+                : (lastSoilTemp += getDelta()) / FrameBinaryWriter.TEMP_SCALE;
+        frame.ambientTemp = (flags & FrameBinaryWriter.FLAG_NO_AMBIENT_TEMP) != 0 ? Double.NaN
+                : (lastAmbientTemp += getDelta()) / FrameBinaryWriter.TEMP_SCALE;
+        frame.lux = (int) (lastLux += getDelta());
+        if ((flags & FrameBinaryWriter.FLAG_SPECTRUM) != 0) {
+            for (int i = 0; i < lastSpectral.length; i++) {
+                frame.spectral[i] = (int) (lastSpectral[i] += getDelta());
+            }
+            /* the stream doesn't carry sample times, mark the spectrum present */
+            frame.spectralSampledAt = frame.timestamp;
+        } else {
+            java.util.Arrays.fill(frame.spectral, 0);
+            frame.spectralSampledAt = 0;
+        }
+        if ((flags & FrameBinaryWriter.FLAG_RANGE) != 0) {
+            frame.spectralGain = (int) getVarint();
+            frame.spectralSteps = getVarint();
+        } else {
+            frame.spectralGain = 0;
+            frame.spectralSteps = 0;
+        }
+        frame.stale = 0;
+        if ((flags & FrameBinaryWriter.FLAG_STALE) != 0) {
+            frame.stale = (int) getVarint();
+            if (frame.stale >>> SensorFrame.STALE_NAMES.length != 0) {
+                throw new IOException("Unknown stale bits in binary frame stream");
+            }
+            if ((frame.stale & SensorFrame.STALE_SOIL) != 0) {
+                frame.soilSampledAt = frame.timestamp - getVarint();
+            }
+            if ((frame.stale & SensorFrame.STALE_AMBIENT) != 0) {
+                frame.ambientSampledAt = frame.timestamp - getVarint();
+            }
+            if ((frame.stale & SensorFrame.STALE_LUX) != 0) {
+                frame.luxSampledAt = frame.timestamp - getVarint();
+            }
+            if ((frame.stale & SensorFrame.STALE_SPECTRAL) != 0) {
+                frame.spectralSampledAt = frame.timestamp - getVarint();
+            }
+        }
+        return true;
+    }
+
+    /* the name that follows, previous if it's the same so a stream of one station doesn't allocate */
+    private String getStation(String previous) throws IOException {
+        if (pos >= end || pos + 1 + (data[pos] & 0xFF) > end) {
+            throw new IOException("Binary frame stream truncated");
+        }
+        int n = data[pos++] & 0xFF;
+        boolean same = previous != null && previous.length() == n;
+        for (int i = 0; same && i < n; i++) {
+            same = previous.charAt(i) == (data[pos + i] & 0xFF);
+        }
+        var station = same ? previous : new String(data, pos, n, StandardCharsets.US_ASCII);
+        pos += n;
+        return station;
+    }
+
+    private long getDelta() throws IOException {
+        long v = getVarint();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private long getVarint() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= end) {
+                throw new IOException("Binary frame stream truncated");
+            }
+            int b = data[pos++];
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint in binary frame stream");
+    }
+}
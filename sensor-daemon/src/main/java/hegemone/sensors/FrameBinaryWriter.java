@@ -0,0 +1,162 @@
+package hegemone.sensors;
+
+import java.util.Arrays;
+
+/* compact binary encoding of a stream of SensorFrames.
+ *
+ * A stream is a header followed by frame records. Every value in a record
+ * is a zigzag varint of its difference to the previous record of the
+ * stream, the first record after the header is relative to zero. Readings
+ * barely move between frames, so most values take one or two bytes and a
+ * frame is around 40 bytes on its own, far less inside a longer stream.
+ *
+ *   header  'H' 'G' 'F' version channels
+ *   record  flags
+ *           station                      length byte and ASCII name, only with FLAG_STATION
+ *           timestamp                    epoch ms
+ *           moisture
+ *           soil_temp, ambient_temp      millidegrees, absent if flagged
+ *           lux
+ *           channels x spectral count    absent without FLAG_SPECTRUM
+ *           gain, integration steps      AGAIN code and (ATIME+1)(ASTEP+1), plain
+ *                                        varints, only with FLAG_RANGE
+ *           stale, ages                  SensorFrame.STALE_* bits, then the age in
+ *                                        ms of each set, plain varints, only with
+ *                                        FLAG_STALE (version 4)
+ *
+ * RLQI is left out, the reader derives it from the channels as the JSON
+ * writer does. Bump VERSION on any change to this layout; FrameBinaryReader
+ * is the reference decoder.
+ * Not thread safe, one writer per stream.
+ */
+class FrameBinaryWriter {
+    static final byte[] MAGIC = {'H', 'G', 'F'};
+    static final int VERSION = 4;
+    /* oldest version FrameBinaryReader still takes, e.g. from a spool written before an upgrade */
+    static final int MIN_VERSION = 1;
+    static final int HEADER_SIZE = MAGIC.length + 2;
+    /* record flags */
+    static final int FLAG_SPECTRUM = 0x01;
+    static final int FLAG_NO_SOIL_TEMP = 0x02;
+    static final int FLAG_NO_AMBIENT_TEMP = 0x04;
+    static final int FLAG_STATION = 0x08;
+    static final int FLAG_RANGE = 0x10;
+    static final int FLAG_STALE = 0x20;
+    static final int MAX_STATION_LENGTH = 255;
+    static final double TEMP_SCALE = 1000.0;
+
+    private byte[] buf = new byte[256];
+    private int pos;
+    /* values of the previous record, what the next one is relative to */
+    private long lastTimestamp;
+    private long lastMoisture;
+    private long lastSoilTemp;
+    private long lastAmbientTemp;
+    private long lastLux;
+    private final long[] lastSpectral = new long[SensorFrame.CHANNELS];
+
+    /* start a new stream at the beginning of the buffer */
+    int begin() {
+        pos = 0;
+        lastTimestamp = 0;
+        lastMoisture = 0;
+        lastSoilTemp = 0;
+        lastAmbientTemp = 0;
+        lastLux = 0;
+        Arrays.fill(lastSpectral, 0);
+        ensure(HEADER_SIZE);
+        for (byte b : MAGIC) {
+            buf[pos++] = b;
+        }
+        buf[pos++] = (byte) VERSION;
+        buf[pos++] = (byte) SensorFrame.CHANNELS;
+        return pos;
+    }
+
+    /* append a record, returns the length of the stream so far */
+    int write(SensorFrame frame) {
+        int flags = 0;
+        if (frame.hasSpectrum()) {
+            flags |= FLAG_SPECTRUM;
+        }
+        if (!Double.isFinite(frame.soilTemp)) {
+            flags |= FLAG_NO_SOIL_TEMP;
+        }
+        if (!Double.isFinite(frame.ambientTemp)) {
+            flags |= FLAG_NO_AMBIENT_TEMP;
+        }
+        if (frame.station != null) {
+            flags |= FLAG_STATION;
+        }
+        if (frame.hasSpectrum() && frame.hasSpectralRange()) {
+            flags |= FLAG_RANGE;
+        }
+        if (frame.stale != 0) {
+            flags |= FLAG_STALE;
+        }
+        ensure(1 + (12 + SensorFrame.CHANNELS) * 10 + 1 + MAX_STATION_LENGTH);
+        buf[pos++] = (byte) flags;
+        if ((flags & FLAG_STATION) != 0) {
+            int n = Math.min(frame.station.length(), MAX_STATION_LENGTH);
+            buf[pos++] = (byte) n;
+            for (int i = 0; i < n; i++) {
+                buf[pos++] = (byte) frame.station.charAt(i);
+            }
+        }
+        lastTimestamp = putDelta(frame.timestamp, lastTimestamp);
+        lastMoisture = putDelta(frame.moisture, lastMoisture);
+        if ((flags & FLAG_NO_SOIL_TEMP) == 0) {
+            lastSoilTemp = putDelta(Math.round(frame.soilTemp * TEMP_SCALE), lastSoilTemp);
+        }
+        if ((flags & FLAG_NO_AMBIENT_TEMP) == 0) {
+            lastAmbientTemp = putDelta(Math.round(frame.ambientTemp * TEMP_SCALE), lastAmbientTemp);
+        }
+        lastLux = putDelta(frame.lux, lastLux);
+        if ((flags & FLAG_SPECTRUM) != 0) {
+            for (int i = 0; i < SensorFrame.CHANNELS; i++) {
+                lastSpectral[i] = putDelta(frame.spectral[i], lastSpectral[i]);
+            }
+        }
+        if ((flags & FLAG_RANGE) != 0) {
+            putVarint(frame.spectralGain);
+            putVarint(frame.spectralSteps);
+        }
+        if ((flags & FLAG_STALE) != 0) {
+            putVarint(frame.stale);
+            for (int i = 0; i < SensorFrame.STALE_NAMES.length; i++) {
+                if ((frame.stale & (1 << i)) != 0) {
+                    putVarint(Math.max(0, frame.age(i)));
+                }
+            }
+        }
+        return pos;
+    }
+
+    byte[] buffer() {
+        return buf;
+    }
+
+    int length() {
+        return pos;
+    }
+
+    private long putDelta(long value, long last) {
+        long delta = value - last;
+        putVarint((delta << 1) ^ (delta >> 63));
+        return value;
+    }
+
+    private void putVarint(long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+    }
+
+    private void ensure(int n) {
+        if (pos + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+        }
+    }
+}
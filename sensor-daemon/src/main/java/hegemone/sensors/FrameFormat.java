@@ -0,0 +1,27 @@
+package hegemone.sensors;
+
+/* how a frame goes on the wire or to disk, see FrameJsonWriter and FrameBinaryWriter */
+enum FrameFormat {
+    JSON("application/json"),
+    BINARY("application/vnd.hegemone.frame");
+
+    private final String contentType;
+
+    FrameFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    String contentType() {
+        return contentType;
+    }
+
+    /* "json" or "binary", as given in hegemone.frame.format */
+    static FrameFormat forName(String name) {
+        for (var f : values()) {
+            if (f.name().equalsIgnoreCase(name)) {
+                return f;
+            }
+        }
+        throw new IllegalArgumentException("Unknown frame format " + name + ", expected json or binary");
+    }
+}
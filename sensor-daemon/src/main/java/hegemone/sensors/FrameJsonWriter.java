@@ -0,0 +1,112 @@
+package hegemone.sensors;
+
+import java.nio.charset.StandardCharsets;
+
+/* compact JSON encoding of a SensorFrame into a reused byte buffer.
+ *
+ * Writes the same fields as the Gson frame it replaces (moisture, soil_temp,
+ * ambient_temp, lux, spectral_data, rlqi), plus basic_counts when the
+ * spectrum's gain and integration time are known, without building a map, boxing a
+ * value or formatting through String (numbers as JsonBuffer writes them). A frame with
+ * stale readings ends with "stale", the age in ms of each, e.g. {"lux":4021}. A frame from a
+ * named station leads with "station", DeviceInventory keeps names to plain
+ * ASCII so they go out unescaped.
+ * Not thread safe, one writer per encoding thread.
+ */
+class FrameJsonWriter extends JsonBuffer {
+    private static final byte[] STATION = ascii("{\"station\":\"");
+    private static final byte[] MOISTURE = ascii("{\"moisture\":");
+    private static final byte[] STATION_MOISTURE = ascii("\",\"moisture\":");
+    private static final byte[] SOIL_TEMP = ascii(",\"soil_temp\":");
+    private static final byte[] AMBIENT_TEMP = ascii(",\"ambient_temp\":");
+    private static final byte[] LUX = ascii(",\"lux\":");
+    private static final byte[] SPECTRAL = ascii(",\"spectral_data\":{");
+    private static final byte[] BASIC = ascii(",\"basic_counts\":{");
+    private static final byte[] RLQI_BLUE = ascii(",\"rlqi\":{\"blue\":");
+    private static final byte[] RLQI_GREEN = ascii(",\"green\":");
+    private static final byte[] RLQI_RED = ascii(",\"red\":");
+    private static final byte[] STALE = ascii(",\"stale\":{");
+    private static final byte[][] STALE_KEYS = new byte[SensorFrame.STALE_NAMES.length][];
+    private static final byte[][] CHANNEL_KEYS = new byte[SensorFrame.CHANNELS][];
+
+    static {
+        for (int i = 0; i < CHANNEL_KEYS.length; i++) {
+            CHANNEL_KEYS[i] = ascii("\"" + SensorFrame.CHANNEL_NAMES[i] + "\":");
+        }
+        for (int i = 0; i < STALE_KEYS.length; i++) {
+            STALE_KEYS[i] = ascii("\"" + SensorFrame.STALE_NAMES[i] + "\":");
+        }
+    }
+
+    /* encode the frame, the result is buffer()[0..length) until the next call */
+    int write(SensorFrame frame) {
+        reset();
+        if (frame.station != null) {
+            put(STATION);
+            putAscii(frame.station);
+            put(STATION_MOISTURE);
+        } else {
+            put(MOISTURE);
+        }
+        putInt(frame.moisture);
+        put(SOIL_TEMP);
+        putDouble(frame.soilTemp);
+        put(AMBIENT_TEMP);
+        putDouble(frame.ambientTemp);
+        put(LUX);
+        putInt(frame.lux);
+        put(SPECTRAL);
+        if (frame.hasSpectrum()) {
+            for (int i = 0; i < SensorFrame.CHANNELS; i++) {
+                if (i > 0) {
+                    putByte(',');
+                }
+                put(CHANNEL_KEYS[i]);
+                putInt(frame.spectral[i]);
+            }
+        }
+        putByte('}');
+        if (frame.hasSpectrum() && frame.hasSpectralRange()) {
+            put(BASIC);
+            for (int i = 0; i < SensorFrame.CHANNELS; i++) {
+                if (i > 0) {
+                    putByte(',');
+                }
+                put(CHANNEL_KEYS[i]);
+                putDouble(frame.basicCount(i));
+            }
+            putByte('}');
+        }
+        put(RLQI_BLUE);
+        putInt(frame.rlqiBlue());
+        put(RLQI_GREEN);
+        putInt(frame.rlqiGreen());
+        put(RLQI_RED);
+        putInt(frame.rlqiRed());
+        putByte('}');
+        if (frame.stale != 0) {
+            put(STALE);
+            boolean first = true;
+            for (int i = 0; i < STALE_KEYS.length; i++) {
+                if ((frame.stale & (1 << i)) == 0) {
+                    continue;
+                }
+                if (!first) {
+                    putByte(',');
+                }
+                first = false;
+                put(STALE_KEYS[i]);
+                putLong(frame.age(i));
+            }
+            putByte('}');
+        }
+        putByte('}');
+        return length();
+    }
+
+    /* allocates, for consumers that still want the frame as text */
+    String toJSON(SensorFrame frame) {
+        int length = write(frame);
+        return new String(buffer(), 0, length, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,43 @@
+package hegemone.sensors;
+
+/* fixed set of reusable SensorFrames. acquire() hands out a cleared frame
+ * and release() takes it back; when every frame is out a new one is made,
+ * so a consumer holding on to frames costs memory but never blocks the
+ * acquisition loop. Those extra frames are kept if there is room for them.
+ */
+class FramePool {
+    private final SensorFrame[] free;
+    private int size;
+    private long created;
+
+    FramePool(int capacity) {
+        free = new SensorFrame[capacity];
+        for (int i = 0; i < capacity; i++) {
+            free[i] = new SensorFrame();
+        }
+        size = capacity;
+        created = capacity;
+    }
+
+    synchronized SensorFrame acquire() {
+        if (size == 0) {
+            created++;
+            return new SensorFrame();
+        }
+        var frame = free[--size];
+        free[size] = null;
+        frame.clear();
+        return frame;
+    }
+
+    synchronized void release(SensorFrame frame) {
+        if (size < free.length) {
+            free[size++] = frame;
+        }
+    }
+
+    /* frames made so far, more than the capacity means the pool is too small */
+    synchronized long created() {
+        return created;
+    }
+}
@@ -0,0 +1,266 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/* durable queue of frames the collector hasn't taken yet, kept in
+ * /var/log/hegemone-data.dmp so an outage or a restart doesn't lose them.
+ *
+ * The file is a header page followed by a ring of equally sized segments,
+ * each memory mapped. Frames are appended as records
+ *
+ *   u16 length, u32 crc32 of the payload, payload
+ *
+ * where the payload is a one-frame FrameBinaryWriter stream. A record never
+ * spans segments, a zero length marks the unused end of one. Positions are
+ * logical byte offsets that only grow; the header keeps the write position
+ * and the read cursor, which only moves once the frames before it have been
+ * forwarded. When the ring is full the oldest unread segment is given up,
+ * so appending is a copy into the mapping and never waits for the disk;
+ * the kernel writes the pages back on its own.
+ */
+class FrameSpool implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.spool");
+    private static final int MAGIC = 0x48475350; /* "HGSP" */
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4096;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_SEGMENT_SIZE = 8;
+    private static final int H_SEGMENTS = 12;
+    private static final int H_WRITE = 16;
+    private static final int H_READ = 24;
+    private static final int RECORD_HEADER = 6;
+    private static final int MAX_PAYLOAD = 0xFFFF;
+
+    private final String path;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    private final int segmentSize;
+    private final long capacity;
+    private long writePos;
+    private long readPos;
+    /* end of what peek() last handed out, commit() moves the cursor here */
+    private long peekEnd = -1;
+
+    private final FrameBinaryWriter writer = new FrameBinaryWriter();
+    private final byte[] payload = new byte[MAX_PAYLOAD];
+    private final CRC32 crc = new CRC32();
+    private long appended;
+    private long forwarded;
+    private long dropped;
+    private long corrupt;
+
+    private FrameSpool(String path, RandomAccessFile file, MappedByteBuffer header, MappedByteBuffer[] segments,
+                       int segmentSize) {
+        this.path = path;
+        this.file = file;
+        this.header = header;
+        this.segments = segments;
+        this.segmentSize = segmentSize;
+        this.capacity = (long) segmentSize * segments.length;
+    }
+
+    /* map the spool at path, starting it over if it was made with another layout */
+    static FrameSpool open(String path, int segmentCount, int segmentSize) throws IOException {
+        if (segmentCount < 2 || segmentSize < 1024) {
+            throw new IllegalArgumentException("Spool needs at least 2 segments of 1 KiB");
+        }
+        var file = new RandomAccessFile(path, "rw");
+        try {
+            long size = HEADER_SIZE + (long) segmentCount * segmentSize;
+            if (file.length() != size) {
+                file.setLength(size);
+            }
+            var channel = file.getChannel();
+            var header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            var segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_SIZE + (long) i * segmentSize, segmentSize);
+            }
+            var spool = new FrameSpool(path, file, header, segments, segmentSize);
+            spool.recover();
+            return spool;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private void recover() {
+        boolean valid = header.getInt(H_MAGIC) == MAGIC
+                && header.getInt(H_VERSION) == VERSION
+                && header.getInt(H_SEGMENT_SIZE) == segmentSize
+                && header.getInt(H_SEGMENTS) == segments.length;
+        long w = header.getLong(H_WRITE);
+        long r = header.getLong(H_READ);
+        if (valid && r >= 0 && r <= w && w - r <= capacity) {
+            writePos = w;
+            readPos = r;
+            logger.info("Spool {} holds {} bytes of unsent frames", path, w - r);
+            return;
+        }
+        logger.info("Starting a new spool in {}, {} segments of {} bytes", path, segments.length, segmentSize);
+        header.putInt(H_MAGIC, MAGIC);
+        header.putInt(H_VERSION, VERSION);
+        header.putInt(H_SEGMENT_SIZE, segmentSize);
+        header.putInt(H_SEGMENTS, segments.length);
+        writePos = 0;
+        readPos = 0;
+        persist();
+    }
+
+    private void persist() {
+        header.putLong(H_WRITE, writePos);
+        header.putLong(H_READ, readPos);
+    }
+
+    synchronized void append(SensorFrame frame) {
+        writer.begin();
+        int length = writer.write(frame);
+        int offset = (int) (writePos % segmentSize);
+        if (offset + RECORD_HEADER + length > segmentSize) {
+            /* doesn't fit, close the segment and start the next */
+            if (segmentSize - offset >= 2) {
+                segment(writePos).putShort(offset, (short) 0);
+            }
+            writePos += segmentSize - offset;
+            offset = 0;
+        }
+        if (offset == 0) {
+            reclaim(writePos);
+        }
+        var seg = segment(writePos);
+        crc.reset();
+        crc.update(writer.buffer(), 0, length);
+        seg.putShort(offset, (short) length);
+        seg.putInt(offset + 2, (int) crc.getValue());
+        seg.put(offset + RECORD_HEADER, writer.buffer(), 0, length);
+        writePos += RECORD_HEADER + length;
+        appended++;
+        persist();
+    }
+
+    /* about to write the segment starting at start: if it still holds unread
+       frames from a lap ago, give them up */
+    private void reclaim(long start) {
+        long lapEnd = start - capacity + segmentSize;
+        if (readPos >= lapEnd) {
+            return;
+        }
+        long lost = 0;
+        long pos = readPos;
+        while (pos < lapEnd) {
+            int length = recordLength(pos);
+            if (length <= 0) {
+                pos = nextSegment(pos);
+            } else {
+                lost++;
+                pos += RECORD_HEADER + length;
+            }
+        }
+        dropped += lost;
+        readPos = lapEnd;
+        logger.warn("Spool {} full, dropped {} oldest frames", path, lost);
+    }
+
+    /* decode up to frames.length frames from the cursor without consuming
+       them, commit() once they are safely delivered */
+    synchronized int peek(SensorFrame[] frames) {
+        long pos = readPos;
+        int n = 0;
+        while (n < frames.length && pos < writePos) {
+            int length = recordLength(pos);
+            if (length <= 0) {
+                if (length < 0) {
+                    corrupt++;
+                }
+                pos = nextSegment(pos);
+                continue;
+            }
+            var seg = segment(pos);
+            int offset = (int) (pos % segmentSize);
+            int expected = seg.getInt(offset + 2);
+            seg.get(offset + RECORD_HEADER, payload, 0, length);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != expected) {
+                /* the length can't be trusted either, skip the rest of the segment */
+                corrupt++;
+                pos = nextSegment(pos);
+                continue;
+            }
+            pos += RECORD_HEADER + length;
+            try {
+                if (new FrameBinaryReader(payload, 0, length).next(frames[n])) {
+                    n++;
+                }
+            } catch (IOException e) {
+                corrupt++;
+            }
+        }
+        peekEnd = pos;
+        return n;
+    }
+
+    /* the frames of the last peek() were delivered */
+    synchronized void commit(int frames) {
+        if (peekEnd > readPos) {
+            readPos = Math.min(peekEnd, writePos);
+            persist();
+        }
+        forwarded += frames;
+        peekEnd = -1;
+    }
+
+    synchronized boolean isEmpty() {
+        return readPos >= writePos;
+    }
+
+    /* 0 past the last record of a segment, or where one can't start;
+       -1 for a length that runs past the segment, a torn header */
+    private int recordLength(long pos) {
+        int offset = (int) (pos % segmentSize);
+        if (segmentSize - offset < RECORD_HEADER) {
+            return 0;
+        }
+        int length = Short.toUnsignedInt(segment(pos).getShort(offset));
+        return length > segmentSize - offset - RECORD_HEADER ? -1 : length;
+    }
+
+    private long nextSegment(long pos) {
+        return pos - pos % segmentSize + segmentSize;
+    }
+
+    private MappedByteBuffer segment(long pos) {
+        return segments[(int) ((pos / segmentSize) % segments.length)];
+    }
+
+    synchronized String report() {
+        return String.format("appended=%d forwarded=%d dropped=%d corrupt=%d backlog=%dB",
+                appended, forwarded, dropped, corrupt, writePos - readPos);
+    }
+
+    @Override
+    public synchronized void close() {
+        persist();
+        header.force();
+        for (var seg : segments) {
+            seg.force();
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.err.println("Couldn't close spool " + path);
+        }
+        logger.info("Spool {} closed: {}", path, report());
+    }
+}
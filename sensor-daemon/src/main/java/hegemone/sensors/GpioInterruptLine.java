@@ -0,0 +1,98 @@
+package hegemone.sensors;
+
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLong;
+import io.helins.linux.Linux;
+import io.helins.linux.SizeT;
+import io.helins.linux.io.LinuxIO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/* falling edges of one line of a Linux GPIO character device (/dev/gpiochipN).
+ *
+ * Uses the v1 line event ABI (GPIO_GET_LINEEVENT_IOCTL), which every kernel
+ * since 4.8 has. A daemon thread blocks in read() on the event fd and turns
+ * each event into a permit, so waiting with a timeout needs no poll().
+ * The AS7341 INT output is open drain and active low; the adafruit board
+ * pulls it up, so a falling edge is an interrupt.
+ */
+class GpioInterruptLine implements InterruptLine {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.gpio");
+    /* _IOWR(0xB4, 0x04, struct gpioevent_request) */
+    private static final long GPIO_GET_LINEEVENT_IOCTL = 0xC030B404L;
+    private static final int GPIOHANDLE_REQUEST_INPUT = 1;
+    private static final int GPIOEVENT_REQUEST_FALLING_EDGE = 1 << 1;
+    /* struct gpioevent_request: lineoffset, handleflags, eventflags, consumer_label[32], fd */
+    private static final int REQUEST_SIZE = 48;
+    private static final int LABEL_OFFSET = 12;
+    private static final int FD_OFFSET = 44;
+    /* struct gpioevent_data: u64 timestamp, u32 id, padded */
+    private static final int EVENT_SIZE = 16;
+
+    private final String name;
+    private final int eventFd;
+    private final Semaphore edges = new Semaphore(0);
+    private volatile boolean closed;
+
+    GpioInterruptLine(String chip, int line) throws IOException {
+        this.name = chip + ":" + line;
+        int chipFd = LinuxIO.open64(chip, LinuxIO.O_RDWR | LinuxIO.O_CLOEXEC);
+        if (chipFd < 0) {
+            throw new IOException("Could not open " + chip + ", errno " + Linux.getErrno());
+        }
+        try {
+            var req = new Memory(REQUEST_SIZE);
+            req.clear();
+            req.setInt(0, line);
+            req.setInt(4, GPIOHANDLE_REQUEST_INPUT);
+            req.setInt(8, GPIOEVENT_REQUEST_FALLING_EDGE);
+            byte[] label = "hegemone".getBytes(StandardCharsets.US_ASCII);
+            req.write(LABEL_OFFSET, label, 0, label.length);
+            if (LinuxIO.ioctl(chipFd, new NativeLong(GPIO_GET_LINEEVENT_IOCTL), req) < 0) {
+                throw new IOException("Could not request events on " + name + ", errno " + Linux.getErrno());
+            }
+            eventFd = req.getInt(FD_OFFSET);
+        } finally {
+            LinuxIO.close(chipFd);
+        }
+        var watcher = new Thread(this::watch, "gpio-" + name);
+        watcher.setDaemon(true);
+        watcher.start();
+        logger.info("Waiting for interrupts on {}", name);
+    }
+
+    private void watch() {
+        var event = new Memory(EVENT_SIZE);
+        var size = new SizeT(EVENT_SIZE);
+        while (!closed) {
+            long n = LinuxIO.read(eventFd, event, size).longValue();
+            if (n == EVENT_SIZE) {
+                edges.release();
+            } else if (!closed) {
+                logger.warn("Reading events from {} failed, errno {}", name, Linux.getErrno());
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean await(long timeoutNanos) throws InterruptedException {
+        return edges.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void clear() {
+        edges.drainPermits();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LinuxIO.close(eventFd);
+    }
+}
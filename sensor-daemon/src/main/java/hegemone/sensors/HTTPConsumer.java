@@ -1,36 +1,489 @@
 package hegemone.sensors;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/* posts frames to the collector in batches.
+ *
+ * accept() copies the frame into a bounded queue and returns; a sender
+ * thread posts a batch once it holds batchFrames frames or its oldest frame
+ * is maxDelay old. A full queue drops its oldest frame, so a slow or absent
+ * collector never holds up acquisition. JSON batches are posted as an array
+ * of frames, binary ones as a single FrameBinaryWriter stream; with a batch
+ * size of 1 every frame goes alone as a plain object, as it always did.
+ *
+ * All requests share one HttpClient, so the connection is kept alive (and
+ * HTTP/2 is used where the collector offers it). IO errors and 5xx answers
+ * are retried with jittered exponential backoff, other answers are failures.
+ *
+ * With a FrameSpool, frames that would be dropped or that ran out of retries
+ * are spooled instead. Once a post gets through again the spooled backlog
+ * is posted whenever no live batch is ready, so live frames always go first.
+ *
+ * Text such as window summaries is queued the same way and posted by the
+ * sender, batched and retried like frames but always as JSON. The spool only
+ * holds frames, so text that runs out of retries is counted as failed.
+ */
+public class HTTPConsumer implements DataConsumer, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.http");
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    /* outcomes of a post */
+    private static final int SENT = 0;
+    private static final int REFUSED = 1;
+    private static final int FAILED = 2;
+    private static final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
 
-public class HTTPConsumer implements DataConsumer {
     String targetUrl;
+    private final URI target;
+    private final FrameFormat format;
+    private final int batchFrames;
+    private final long maxDelayNanos;
+    private final boolean gzip;
+    private final int maxRetries;
+    private final long backoffMs;
+    private final long maxBackoffMs;
+    private final FrameSpool spool;
+
+    /* ring of queued frames, guarded by this */
+    private final SensorFrame[] queue;
+    private final long[] queuedAt;
+    private int head;
+    private int count;
+    private boolean closed;
+    /* queued text, at most queue.length of it */
+    private final ArrayDeque<String> texts = new ArrayDeque<>();
+
+    /* owned by the sender thread */
+    private final SensorFrame[] batch;
+    private final FrameJsonWriter jsonWriter = new FrameJsonWriter();
+    private final FrameBinaryWriter binaryWriter = new FrameBinaryWriter();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(4096);
+    private final ByteArrayOutputStream compressed = new ByteArrayOutputStream(1024);
+    private final Thread sender;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder spooled = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder textsSent = new LongAdder();
+    private final LongAdder textsFailed = new LongAdder();
+    private final LongAdder textsRetried = new LongAdder();
+    private final LongAdder textsDropped = new LongAdder();
 
     public HTTPConsumer(String targetUrl) {
+        this(targetUrl, FrameFormat.JSON);
+    }
+
+    public HTTPConsumer(String targetUrl, FrameFormat format) {
+        this(targetUrl, format, null);
+    }
+
+    public HTTPConsumer(String targetUrl, FrameFormat format, FrameSpool spool) {
+        this(targetUrl, format, Settings.HTTP_BATCH_FRAMES, Settings.HTTP_BATCH_DELAY, Settings.HTTP_QUEUE,
+                Settings.HTTP_GZIP, Settings.HTTP_RETRIES, Settings.HTTP_BACKOFF, Settings.HTTP_MAX_BACKOFF, spool);
+    }
+
+    HTTPConsumer(String targetUrl, FrameFormat format, int batchFrames, long maxDelayMs, int queueFrames,
+                 boolean gzip, int maxRetries, long backoffMs, long maxBackoffMs, FrameSpool spool) {
+        if (batchFrames < 1 || queueFrames < batchFrames) {
+            throw new IllegalArgumentException("Need 1 <= batch (" + batchFrames + ") <= queue (" + queueFrames + ")");
+        }
         this.targetUrl = targetUrl;
+        this.target = URI.create(targetUrl);
+        this.format = format;
+        this.batchFrames = batchFrames;
+        this.maxDelayNanos = maxDelayMs * 1_000_000L;
+        this.gzip = gzip;
+        this.maxRetries = maxRetries;
+        this.backoffMs = backoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.spool = spool;
+        queue = new SensorFrame[queueFrames];
+        for (int i = 0; i < queue.length; i++) {
+            queue[i] = new SensorFrame();
+        }
+        queuedAt = new long[queueFrames];
+        batch = new SensorFrame[batchFrames];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new SensorFrame();
+        }
+        outcomeMetric("sent", sent);
+        outcomeMetric("failed", failed);
+        outcomeMetric("retried", retried);
+        outcomeMetric("dropped", dropped);
+        outcomeMetric("spooled", spooled);
+        textMetric("sent", textsSent);
+        textMetric("failed", textsFailed);
+        textMetric("retried", textsRetried);
+        textMetric("dropped", textsDropped);
+        Metrics.counter("hegemone_http_requests_total", "Posts to the collector", requests::sum);
+        Metrics.counter("hegemone_http_bytes_total", "Bytes posted to the collector", bytes::sum);
+        sender = new Thread(this::run, "http-sender");
+        sender.setDaemon(true);
+        sender.start();
+        logger.info("Posting {} to {} in batches of {} frames or {} ms{}", format, targetUrl, batchFrames,
+                maxDelayMs, gzip ? ", gzipped" : "");
+    }
+
+    @Override
+    public FrameFormat format() {
+        return format;
+    }
+
+    /* text submitted outside the frame path, queued for the sender ahead
+       of the next batch that isn't ready yet. A full queue drops its oldest */
+    @Override
+    public synchronized void accept(String data) {
+        if (closed) {
+            return;
+        }
+        if (texts.size() == queue.length) {
+            texts.poll();
+            textsDropped.increment();
+        }
+        texts.add(data);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void accept(SensorFrame frame, byte[] data, int length) {
+        if (closed) {
+            return;
+        }
+        if (count == queue.length) {
+            /* collector is behind, keep the newest */
+            if (spool != null) {
+                spool.append(queue[head]);
+                spooled.increment();
+            } else {
+                dropped.increment();
+            }
+            head = (head + 1) % queue.length;
+            count--;
+        }
+        int tail = (head + count) % queue.length;
+        queue[tail].copyFrom(frame);
+        queuedAt[tail] = System.nanoTime();
+        count++;
+        if (count == batchFrames) {
+            notifyAll();
+        }
+    }
+
+    private static void outcomeMetric(String outcome, LongAdder frames) {
+        Metrics.counter("hegemone_http_frames_total", "Frames posted to the collector per outcome",
+                frames::sum, "outcome", outcome);
+    }
+
+    private static void textMetric(String outcome, LongAdder texts) {
+        Metrics.counter("hegemone_http_texts_total", "Text, e.g. window summaries, posted to the collector per outcome",
+                texts::sum, "outcome", outcome);
+    }
+
+    private void run() {
+        /* try a backlog left by an earlier run straight away */
+        boolean forwarding = spool != null && !spool.isEmpty();
+        int errors = 0;
+        try {
+            while (true) {
+                int n = takeBatch(forwarding);
+                if (n < 0) {
+                    return;
+                }
+                try {
+                    if (n > 0) {
+                        if (sendLive(n) && spool != null && !spool.isEmpty()) {
+                            forwarding = true;
+                        }
+                    } else if (!sendTexts()) {
+                        forwarding = forwardBacklog();
+                    }
+                    errors = 0;
+                } catch (RuntimeException e) {
+                    /* keep the sender alive, a dead one would leave the queue to fill forever.
+                       A live batch is lost, a spooled one stays put for the next pass */
+                    if (n > 0) {
+                        failed.add(n);
+                    }
+                    logger.warn("Sender failed on a batch of {} frames", n > 0 ? n : "spooled", e);
+                    Thread.sleep(backoff(errors++));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* wait for a full batch or an old enough frame, then copy the batch out.
+       0 if there's none ready and we have text to post or a backlog to
+       forward, -1 once closed and all is posted */
+    private synchronized int takeBatch(boolean backlog) throws InterruptedException {
+        while (true) {
+            if (count >= batchFrames || (closed && count > 0)) {
+                break;
+            }
+            if (closed) {
+                return texts.isEmpty() ? -1 : 0;
+            }
+            if (count > 0 && queuedAt[head] + maxDelayNanos - System.nanoTime() <= 0) {
+                break;
+            }
+            if (backlog || !texts.isEmpty()) {
+                return 0;
+            }
+            if (count == 0) {
+                wait();
+                continue;
+            }
+            long waitNanos = queuedAt[head] + maxDelayNanos - System.nanoTime();
+            if (waitNanos <= 0) {
+                break;
+            }
+            wait(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+        }
+        int n = Math.min(count, batchFrames);
+        for (int i = 0; i < n; i++) {
+            batch[i].copyFrom(queue[(head + i) % queue.length]);
+        }
+        head = (head + n) % queue.length;
+        count -= n;
+        return n;
+    }
+
+    /* post the batch, spooling it if it can't get through; true if it did */
+    private boolean sendLive(int n) throws InterruptedException {
+        int result = send(n, maxRetries);
+        if (result == FAILED && spool != null) {
+            for (int i = 0; i < n; i++) {
+                spool.append(batch[i]);
+            }
+            spooled.add(n);
+        } else if (result != SENT) {
+            failed.add(n);
+        }
+        return result == SENT;
+    }
+
+    /* post up to a batch of queued text, false if there was none */
+    private boolean sendTexts() throws InterruptedException {
+        int n;
+        synchronized (this) {
+            n = Math.min(texts.size(), batchFrames);
+            if (n == 0) {
+                return false;
+            }
+            body.reset();
+            if (n > 1) {
+                body.write('[');
+            }
+            for (int i = 0; i < n; i++) {
+                if (i > 0) {
+                    body.write(',');
+                }
+                body.writeBytes(texts.poll().getBytes(StandardCharsets.UTF_8));
+            }
+            if (n > 1) {
+                body.write(']');
+            }
+        }
+        HttpRequest req;
+        try {
+            req = request(finish(), FrameFormat.JSON);
+        } catch (IOException e) {
+            logger.warn("Couldn't encode {} texts", n, e);
+            textsFailed.add(n);
+            return true;
+        }
+        int result = post(req, n, "texts", maxRetries, textsRetried);
+        (result == SENT ? textsSent : textsFailed).add(n);
+        return true;
+    }
+
+    /* post one batch from the spool, true if there is more to forward */
+    private boolean forwardBacklog() throws InterruptedException {
+        int n = spool.peek(batch);
+        if (n == 0) {
+            spool.commit(0);
+            return false;
+        }
+        int result = send(n, 0);
+        if (result == FAILED) {
+            /* still offline, wait for a live post to get through */
+            return false;
+        }
+        if (result == REFUSED) {
+            failed.add(n);
+        }
+        spool.commit(n);
+        return !spool.isEmpty();
+    }
+
+    private int send(int n, int retries) throws InterruptedException {
+        HttpRequest req;
+        try {
+            req = request(encode(n), format);
+        } catch (IOException e) {
+            logger.warn("Couldn't encode a batch of {} frames", n, e);
+            return REFUSED;
+        }
+        int result = post(req, n, "frames", retries, retried);
+        if (result == SENT) {
+            sent.add(n);
+        }
+        return result;
+    }
+
+    /* post, retrying IO errors and 5xx answers up to retries times */
+    private int post(HttpRequest req, int n, String what, int retries, LongAdder retriedCount)
+            throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            String error;
+            try {
+                requests.increment();
+                var resp = client.send(req, HttpResponse.BodyHandlers.discarding());
+                int status = resp.statusCode();
+                if (status / 100 == 2) {
+                    return SENT;
+                }
+                if (status < 500) {
+                    /* the collector won't take it, resending won't help */
+                    logger.warn("Collector at {} refused {} {}: HTTP {}", targetUrl, n, what, status);
+                    return REFUSED;
+                }
+                error = "HTTP " + status;
+            } catch (IOException e) {
+                error = e.toString();
+            }
+            if (attempt >= retries) {
+                logger.warn("Giving up on {} {} after {} attempts: {}", n, what, attempt + 1, error);
+                return FAILED;
+            }
+            retriedCount.add(n);
+            long backoff = backoff(attempt);
+            logger.debug("POST to {} failed ({}), retrying in {} ms", targetUrl, error, backoff);
+            Thread.sleep(backoff);
+        }
+    }
+
+    /* exponential, with full jitter over its upper half so nodes that lost
+       the collector together don't all come back in the same instant */
+    private long backoff(int attempt) {
+        long ceiling = Math.min(maxBackoffMs, backoffMs << Math.min(attempt, 20));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    private byte[] encode(int n) throws IOException {
+        body.reset();
+        if (format == FrameFormat.BINARY) {
+            binaryWriter.begin();
+            for (int i = 0; i < n; i++) {
+                binaryWriter.write(batch[i]);
+            }
+            body.write(binaryWriter.buffer(), 0, binaryWriter.length());
+        } else if (batchFrames == 1) {
+            int length = jsonWriter.write(batch[0]);
+            body.write(jsonWriter.buffer(), 0, length);
+        } else {
+            body.write('[');
+            for (int i = 0; i < n; i++) {
+                if (i > 0) {
+                    body.write(',');
+                }
+                int length = jsonWriter.write(batch[i]);
+                body.write(jsonWriter.buffer(), 0, length);
+            }
+            body.write(']');
+        }
+        return finish();
+    }
+
+    /* the body, compressed if asked to */
+    private byte[] finish() throws IOException {
+        if (!gzip) {
+            return body.toByteArray();
+        }
+        compressed.reset();
+        try (var out = new GZIPOutputStream(compressed)) {
+            body.writeTo(out);
+        }
+        return compressed.toByteArray();
+    }
+
+    private HttpRequest request(byte[] payload, FrameFormat format) {
+        bytes.add(payload.length);
+        var builder = HttpRequest.newBuilder(target)
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", format.contentType());
+        if (gzip) {
+            builder.header("Content-Encoding", "gzip");
+        }
+        return builder.POST(HttpRequest.BodyPublishers.ofByteArray(payload)).build();
+    }
+
+    String report() {
+        int queued;
+        int queuedTexts;
+        synchronized (this) {
+            queued = count;
+            queuedTexts = texts.size();
+        }
+        return String.format("sent=%d failed=%d retried=%d dropped=%d spooled=%d queued=%d requests=%d bytes=%d"
+                        + " texts sent=%d failed=%d retried=%d dropped=%d queued=%d",
+                sent.sum(), failed.sum(), retried.sum(), dropped.sum(), spooled.sum(), queued, requests.sum(),
+                bytes.sum(), textsSent.sum(), textsFailed.sum(), textsRetried.sum(), textsDropped.sum(), queuedTexts);
+    }
+
+    /* post what is queued and stop, waits at most timeoutMs. Whatever is
+       left then goes to the spool, which is closed with us */
+    public void close(long timeoutMs) throws InterruptedException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        sender.join(timeoutMs);
+        if (sender.isAlive()) {
+            sender.interrupt();
+            sender.join(timeoutMs);
+        }
+        if (spool != null) {
+            synchronized (this) {
+                for (; count > 0; count--) {
+                    spool.append(queue[head]);
+                    spooled.increment();
+                    head = (head + 1) % queue.length;
+                }
+            }
+            spool.close();
+        }
+        logger.info("HTTP consumer closed: {}", report());
     }
 
     @Override
-    public void accept(String data) {
+    public void close() {
         try {
-            var req = createPostRequest(data);
-            var resp = HttpClient.newBuilder()
-                    .build()
-                    .sendAsync(req, HttpResponse.BodyHandlers.ofString());
-            /* TODO: handle errors(!) */
-        } catch (Exception e) {
-            System.err.println("Couldn't send POST data \n" + e);
-        }
-    }
-
-    private HttpRequest createPostRequest(String data) throws URISyntaxException {
-        return HttpRequest.newBuilder()
-                .uri(new URI(targetUrl))
-                .headers("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(data))
-                .build();
+            close(REQUEST_TIMEOUT.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
@@ -0,0 +1,63 @@
+package hegemone.sensors;
+
+import java.io.IOException;
+
+/* byte level access to one I2C bus.
+ *
+ * Every call carries the slave address so there is no selectSlave() state
+ * shared between sensors. Implementations are thread safe per call; callers
+ * that need several calls to happen back to back (e.g. latched 16-bit
+ * registers) synchronize on the transport, as they used to on the I2CBus.
+ *
+ * Backends:
+ *   /dev/i2c-N       the real bus, see LinuxI2CTransport
+ *   sim              in-memory AS7341/VEML7700/seesaw models, see SimulatedI2CTransport;
+ *                    sim:<name> is another simulated bus, for multi-bus DeviceInventory runs
+ *   replay:<trace>   plays back an ftrace i2c capture, see TraceReplayTransport
+ */
+interface I2CTransport extends AutoCloseable {
+    String SIMULATED = "sim";
+    String REPLAY_PREFIX = "replay:";
+
+    /* plain write of the first length bytes of data */
+    void write(int address, byte[] data, int length) throws IOException;
+
+    /* plain read of length bytes into data */
+    void read(int address, byte[] data, int length) throws IOException;
+
+    /* write then read in one combined transaction (repeated start),
+       the usual way to read from a register pointer */
+    void writeRead(int address, byte[] out, int outLength, byte[] in, int inLength) throws IOException;
+
+    /* read length bytes starting at register, in one transaction. Devices
+       that auto-increment the register pointer (AS7341, seesaw) return a
+       block of consecutive registers, latched together */
+    default void readRegisters(int address, int register, byte[] data, int length) throws IOException {
+        writeRead(address, new byte[]{(byte) register}, 1, data, length);
+    }
+
+    /* true if this transport talks to real hardware */
+    default boolean isHardware() {
+        return false;
+    }
+
+    String name();
+
+    @Override
+    void close() throws IOException;
+
+    static boolean isSimulated(String spec) {
+        return SIMULATED.equals(spec) || spec.startsWith(SIMULATED + ":");
+    }
+
+    static I2CTransport open(String spec) throws IOException {
+        if (isSimulated(spec)) {
+            return SimulatedI2CTransport.withDefaultDevices(true);
+        }
+        if (spec.startsWith(REPLAY_PREFIX)) {
+            return TraceReplayTransport.load(spec.substring(REPLAY_PREFIX.length()),
+                    Settings.REPLAY_SPEED, Settings.REPLAY_LOOP);
+        }
+        return new LinuxI2CTransport(spec);
+    }
+}
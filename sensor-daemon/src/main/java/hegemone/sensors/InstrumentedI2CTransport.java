@@ -0,0 +1,123 @@
+package hegemone.sensors;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/* times every transaction on a bus for Metrics.
+ *
+ * Wraps a root transport (mux channels go through it as well) and records
+ * each call's duration per kind of transaction, failed calls per kind, and
+ * the time the bus was busy in all, whose rate is the bus occupancy. Two
+ * nanoTime() reads and a few atomic adds per transaction. Locking on the
+ * wrapper is what callers did on the transport, as every transaction is
+ * passed through.
+ */
+class InstrumentedI2CTransport implements I2CTransport {
+    private static final String LATENCY = "hegemone_i2c_transaction_seconds";
+    private static final String LATENCY_HELP = "I2C transaction duration";
+    private static final String ERRORS = "hegemone_i2c_errors_total";
+    private static final String ERRORS_HELP = "I2C transactions that failed";
+
+    private final I2CTransport delegate;
+    private final LatencyHistogram writes;
+    private final LatencyHistogram reads;
+    private final LatencyHistogram writeReads;
+    private final LatencyHistogram registerReads;
+    private final LongAdder writeErrors;
+    private final LongAdder readErrors;
+    private final LongAdder writeReadErrors;
+    private final LongAdder registerReadErrors;
+    private final LongAdder busyNanos;
+
+    InstrumentedI2CTransport(I2CTransport delegate) {
+        this.delegate = delegate;
+        var bus = delegate.name();
+        writes = Metrics.histogram(LATENCY, LATENCY_HELP, "bus", bus, "op", "write");
+        reads = Metrics.histogram(LATENCY, LATENCY_HELP, "bus", bus, "op", "read");
+        writeReads = Metrics.histogram(LATENCY, LATENCY_HELP, "bus", bus, "op", "write_read");
+        registerReads = Metrics.histogram(LATENCY, LATENCY_HELP, "bus", bus, "op", "read_registers");
+        writeErrors = Metrics.counter(ERRORS, ERRORS_HELP, "bus", bus, "op", "write");
+        readErrors = Metrics.counter(ERRORS, ERRORS_HELP, "bus", bus, "op", "read");
+        writeReadErrors = Metrics.counter(ERRORS, ERRORS_HELP, "bus", bus, "op", "write_read");
+        registerReadErrors = Metrics.counter(ERRORS, ERRORS_HELP, "bus", bus, "op", "read_registers");
+        busyNanos = Metrics.nanosCounter("hegemone_i2c_busy_seconds_total", "Time spent in I2C transactions", "bus", bus);
+    }
+
+    /* the transport under any instrumentation */
+    static I2CTransport unwrap(I2CTransport transport) {
+        return transport instanceof InstrumentedI2CTransport ? ((InstrumentedI2CTransport) transport).delegate : transport;
+    }
+
+    @Override
+    public void write(int address, byte[] data, int length) throws IOException {
+        long start = System.nanoTime();
+        try {
+            delegate.write(address, data, length);
+        } catch (IOException e) {
+            writeErrors.increment();
+            throw e;
+        } finally {
+            done(writes, start);
+        }
+    }
+
+    @Override
+    public void read(int address, byte[] data, int length) throws IOException {
+        long start = System.nanoTime();
+        try {
+            delegate.read(address, data, length);
+        } catch (IOException e) {
+            readErrors.increment();
+            throw e;
+        } finally {
+            done(reads, start);
+        }
+    }
+
+    @Override
+    public void writeRead(int address, byte[] out, int outLength, byte[] in, int inLength) throws IOException {
+        long start = System.nanoTime();
+        try {
+            delegate.writeRead(address, out, outLength, in, inLength);
+        } catch (IOException e) {
+            writeReadErrors.increment();
+            throw e;
+        } finally {
+            done(writeReads, start);
+        }
+    }
+
+    @Override
+    public void readRegisters(int address, int register, byte[] data, int length) throws IOException {
+        long start = System.nanoTime();
+        try {
+            delegate.readRegisters(address, register, data, length);
+        } catch (IOException e) {
+            registerReadErrors.increment();
+            throw e;
+        } finally {
+            done(registerReads, start);
+        }
+    }
+
+    private void done(LatencyHistogram histogram, long start) {
+        long nanos = System.nanoTime() - start;
+        histogram.record(nanos);
+        busyNanos.add(nanos);
+    }
+
+    @Override
+    public boolean isHardware() {
+        return delegate.isHardware();
+    }
+
+    @Override
+    public String name() {
+        return delegate.name();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
@@ -0,0 +1,38 @@
+package hegemone.sensors;
+
+import java.io.IOException;
+
+/* an interrupt output of a device, e.g. the AS7341 INT pin, as seen by the host.
+ *
+ * Edges are counted, so an edge that fires between starting an operation and
+ * calling await() is not lost; clear() forgets edges from earlier operations.
+ * Lines are given as <gpiochip device>:<line offset>, e.g. /dev/gpiochip0:4,
+ * or "sim" for the simulated AS7341.
+ */
+interface InterruptLine extends AutoCloseable {
+    String SIMULATED = "sim";
+
+    /* wait for the next edge, false on timeout */
+    boolean await(long timeoutNanos) throws InterruptedException;
+
+    /* forget edges seen so far */
+    void clear();
+
+    @Override
+    void close();
+
+    static InterruptLine open(String spec, I2CTransport bus, int address) throws IOException {
+        if (SIMULATED.equals(spec)) {
+            var chip = SimulatedI2CTransport.find(bus, address);
+            if (chip instanceof SimulatedAS7341) {
+                return new SimulatedInterruptLine((SimulatedAS7341) chip);
+            }
+            throw new IOException("Simulated interrupt line needs the simulated I2C bus");
+        }
+        int colon = spec.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("Interrupt line should be <gpiochip>:<line>, got " + spec);
+        }
+        return new GpioInterruptLine(spec.substring(0, colon), Integer.parseInt(spec.substring(colon + 1)));
+    }
+}
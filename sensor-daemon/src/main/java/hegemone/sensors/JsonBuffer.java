@@ -0,0 +1,126 @@
+package hegemone.sensors;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* a growing byte buffer of ASCII JSON, reused from one document to the next.
+ *
+ * Numbers are written digit by digit, without formatting through String:
+ * doubles get up to six decimals with trailing zeros dropped, and NaN or
+ * infinities, which JSON can't carry, are written as null.
+ * Not thread safe.
+ */
+class JsonBuffer {
+    private static final byte[] NULL = ascii("null");
+    private static final int DECIMALS = 6;
+    private static final long DECIMAL_SCALE = 1_000_000L;
+    /* above this a scaled double no longer fits a long */
+    private static final double MAX_FIXED = 9.0e12;
+
+    private byte[] buf = new byte[512];
+    private int pos;
+
+    void reset() {
+        pos = 0;
+    }
+
+    byte[] buffer() {
+        return buf;
+    }
+
+    int length() {
+        return pos;
+    }
+
+    void put(byte[] b) {
+        ensure(b.length);
+        System.arraycopy(b, 0, buf, pos, b.length);
+        pos += b.length;
+    }
+
+    void putAscii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf[pos++] = (byte) s.charAt(i);
+        }
+    }
+
+    void putByte(char c) {
+        ensure(1);
+        buf[pos++] = (byte) c;
+    }
+
+    void putInt(int v) {
+        ensure(11);
+        long x = v;
+        if (x < 0) {
+            buf[pos++] = '-';
+            x = -x;
+        }
+        putDigits(x);
+    }
+
+    /* timestamps and counts, not Long.MIN_VALUE */
+    void putLong(long v) {
+        ensure(20);
+        if (v < 0) {
+            buf[pos++] = '-';
+            v = -v;
+        }
+        putDigits(v);
+    }
+
+    private void putDigits(long v) {
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10) {
+            digits++;
+        }
+        int end = pos + digits;
+        for (int i = end - 1; i >= pos; i--) {
+            buf[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        pos = end;
+    }
+
+    void putDouble(double v) {
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            put(NULL);
+            return;
+        }
+        if (Math.abs(v) >= MAX_FIXED) {
+            /* nothing we measure gets here, fall back to the slow path */
+            put(ascii(Double.toString(v)));
+            return;
+        }
+        long scaled = Math.round(Math.abs(v) * DECIMAL_SCALE);
+        ensure(32);
+        if (v < 0 && scaled != 0) {
+            buf[pos++] = '-';
+        }
+        putDigits(scaled / DECIMAL_SCALE);
+        buf[pos++] = '.';
+        long fraction = scaled % DECIMAL_SCALE;
+        int decimals = DECIMALS;
+        while (decimals > 1 && fraction % 10 == 0) {
+            fraction /= 10;
+            decimals--;
+        }
+        int end = pos + decimals;
+        for (int i = end - 1; i >= pos; i--) {
+            buf[i] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        pos = end;
+    }
+
+    private void ensure(int n) {
+        if (pos + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+        }
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
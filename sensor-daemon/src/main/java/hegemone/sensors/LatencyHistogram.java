@@ -0,0 +1,51 @@
+package hegemone.sensors;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/* counts of durations in fixed buckets, 1 µs to 10 s in 1-2.5-5 steps.
+ *
+ * record() finds the bucket with a binary search over the bounds and
+ * increments it atomically, so any thread can record without a lock or an
+ * allocation. Counts are per bucket, Metrics makes them cumulative for
+ * Prometheus; a duration past the last bound only goes to the total.
+ */
+final class LatencyHistogram {
+    static final long[] BOUNDS_NANOS = {
+            1_000L, 2_500L, 5_000L,
+            10_000L, 25_000L, 50_000L,
+            100_000L, 250_000L, 500_000L,
+            1_000_000L, 2_500_000L, 5_000_000L,
+            10_000_000L, 25_000_000L, 50_000_000L,
+            100_000_000L, 250_000_000L, 500_000_000L,
+            1_000_000_000L, 2_500_000_000L, 5_000_000_000L,
+            10_000_000_000L
+    };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_NANOS.length + 1);
+    private final LongAdder sumNanos = new LongAdder();
+
+    void record(long nanos) {
+        int lo = 0;
+        int hi = BOUNDS_NANOS.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (BOUNDS_NANOS[mid] < nanos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        counts.incrementAndGet(lo);
+        sumNanos.add(nanos);
+    }
+
+    /* durations in bucket i, i == BOUNDS_NANOS.length past the last bound */
+    long count(int bucket) {
+        return counts.get(bucket);
+    }
+
+    long sumNanos() {
+        return sumNanos.sum();
+    }
+}
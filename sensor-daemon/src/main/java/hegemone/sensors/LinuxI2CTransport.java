@@ -0,0 +1,140 @@
+package hegemone.sensors;
+
+import io.helins.linux.i2c.*;
+
+import java.io.IOException;
+
+/* I2CTransport on a real /dev/i2c-N character device.
+ *
+ * Register reads (one pointer byte out, up to SCRATCH_SIZE bytes back) go
+ * through transactions built once per read length and reused, the JNA
+ * structures, buffers and flags are not allocated again per call. */
+class LinuxI2CTransport implements I2CTransport {
+    /* largest plain read/write we stage through the scratch buffer */
+    private static final int SCRATCH_SIZE = 64;
+    /* largest register block read with a cached transaction, a full AS7341 FIFO */
+    private static final int MAX_REGISTER_READ = 256;
+    private final String path;
+    private final I2CBus bus;
+    private final I2CBuffer scratch;
+    /* register pointer, shared by every cached register read */
+    private final I2CBuffer pointer;
+    /* cached register read transactions and their read buffers, by read length */
+    private final I2CTransaction[] registerReads = new I2CTransaction[MAX_REGISTER_READ + 1];
+    private final I2CBuffer[] registerBuffers = new I2CBuffer[MAX_REGISTER_READ + 1];
+
+    LinuxI2CTransport(String path) throws IOException {
+        this.path = path;
+        this.bus = new I2CBus(path);
+        this.scratch = new I2CBuffer(SCRATCH_SIZE);
+        this.pointer = new I2CBuffer(1);
+    }
+
+    I2CFunctionalities getFunctionalities() throws IOException {
+        return bus.getFunctionalities();
+    }
+
+    @Override
+    public synchronized void write(int address, byte[] data, int length) throws IOException {
+        var buf = length <= SCRATCH_SIZE ? scratch : new I2CBuffer(length);
+        for (int i = 0; i < length; i++) {
+            buf.set(i, data[i]);
+        }
+        bus.selectSlave(address);
+        bus.write(buf, length);
+    }
+
+    @Override
+    public synchronized void read(int address, byte[] data, int length) throws IOException {
+        var buf = length <= SCRATCH_SIZE ? scratch : new I2CBuffer(length);
+        bus.selectSlave(address);
+        bus.read(buf, length);
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) buf.get(i);
+        }
+    }
+
+    @Override
+    public synchronized void readRegisters(int address, int register, byte[] data, int length) throws IOException {
+        if (length > MAX_REGISTER_READ) {
+            pointer.set(0, register);
+            transact(address, pointer, data, length);
+            return;
+        }
+        var tx = registerRead(length);
+        pointer.set(0, register);
+        tx.getMessage(0).setAddress(address);
+        tx.getMessage(1).setAddress(address);
+        bus.doTransaction(tx);
+        var inBuf = registerBuffers[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) inBuf.get(i);
+        }
+    }
+
+    private I2CTransaction registerRead(int length) {
+        var tx = registerReads[length];
+        if (tx == null) {
+            var inBuf = new I2CBuffer(length);
+            tx = new I2CTransaction(2);
+            tx.getMessage(0).setFlags(pointerFlags())
+                    .setBuffer(pointer);
+            tx.getMessage(1).setFlags(new I2CFlags().set(I2CFlag.READ))
+                    .setBuffer(inBuf);
+            registerBuffers[length] = inBuf;
+            registerReads[length] = tx;
+        }
+        return tx;
+    }
+
+    @Override
+    public synchronized void writeRead(int address, byte[] out, int outLength, byte[] in, int inLength) throws IOException {
+        if (outLength == 1) {
+            readRegisters(address, out[0] & 0xFF, in, inLength);
+            return;
+        }
+        var outBuf = new I2CBuffer(outLength);
+        for (int i = 0; i < outLength; i++) {
+            outBuf.set(i, out[i]);
+        }
+        transact(address, outBuf, in, inLength);
+    }
+
+    /* the register pointer write goes out NO_START, as read_register always
+       sent it; without it the AS7341 and VEML7700 give nothing back */
+    private static I2CFlags pointerFlags() {
+        return new I2CFlags().set(I2CFlag.NO_START);
+    }
+
+    /* a one-off write then read transaction, for what the cached ones don't cover */
+    private void transact(int address, I2CBuffer outBuf, byte[] in, int inLength) throws IOException {
+        /* message lengths come from the buffer length, so these have to be exact */
+        var tx = new I2CTransaction(2);
+        var inBuf = new I2CBuffer(inLength);
+        tx.getMessage(0).setAddress(address)
+                .setFlags(pointerFlags())
+                .setBuffer(outBuf);
+        tx.getMessage(1).setAddress(address)
+                .setFlags(new I2CFlags().set(I2CFlag.READ))
+                .setBuffer(inBuf);
+        bus.doTransaction(tx);
+        for (int i = 0; i < inLength; i++) {
+            in[i] = (byte) inBuf.get(i);
+        }
+    }
+
+    @Override
+    public boolean isHardware() {
+        return true;
+    }
+
+    @Override
+    public String name() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        bus.close();
+    }
+}
@@ -2,6 +2,11 @@ package hegemone.sensors;
 
 import java.io.IOException;
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,59 +15,406 @@ import io.helins.linux.i2c.*;
 
 class Main {
     private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.main");
+    /* frames between timing statistics in the log */
+    private static final long STATS_INTERVAL = 500;
+    /* ms to wait for every sensor's first reading before the first frame */
+    private static final long FIRST_SAMPLE_TIMEOUT = 5_000;
+    /* frames in hand, the loop only ever holds one; consumers get copies */
+    private static final int FRAME_POOL_SIZE = 4;
+    /* ms each consumer gets to take its queued frames when stopping */
+    private static final long SHUTDOWN_TIMEOUT = 2_000;
+    private static final FramePool framePool = new FramePool(FRAME_POOL_SIZE);
+    private static HTTPConsumer http;
+    /* null unless frames are summarised over windows */
+    private static WindowAggregator aggregator;
+    /* frames go out themselves without windows or with hegemone.window.raw */
+    private static boolean submitFrames = true;
+    /* null sends every frame that goes out */
+    private static DeadbandFilter deadband;
+    /* null without a query server */
+    private static TimeSeriesStore history;
+    /* every frame, before windows and deadbands; null without an archive */
+    private static ConsumerRing archive;
+    /* epoch ms the JVM started and main() got through each step towards the first frame */
+    private static long jvmStarted;
+    private static long mainStarted;
+    private static long devicesOpened;
+    private static long selfTested;
+    private static long acquisitionStarted;
+    /* from JVM start to the first frame, 0 until it is out */
+    private static volatile long firstFrameNanos;
 
     /* power-on self-test */
     public static void main(String[] args) throws Exception {
-        selftest();
-        if(args.length>0)
-            DataSubmitter.register(new HTTPConsumer(args[0]));
+        mainStarted = System.currentTimeMillis();
+        jvmStarted = ManagementFactory.getRuntimeMXBean().getStartTime();
+        Metrics.nanosGauge("hegemone_first_frame_seconds", "Time from JVM start to the first frame published",
+                () -> firstFrameNanos);
+        var inventory = openInventory();
+        devicesOpened = System.currentTimeMillis();
+        selftest(inventory);
+        selfTested = System.currentTimeMillis();
+        if(args.length>0) {
+            http = new HTTPConsumer(args[0], Settings.FRAME_FORMAT, openSpool());
+            DataSubmitter.register(http);
+            /* post what's still queued on the way down */
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    DataSubmitter.shutdown(SHUTDOWN_TIMEOUT);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                http.close();
+            }, "http-flush"));
+        }
         DataSubmitter.register(new DataLogger());
-        var sensors = new Sensors();
+        var archived = openArchive();
+        aggregator = WindowAggregator.fromSettings();
+        submitFrames = aggregator == null || Settings.WINDOW_RAW;
+        deadband = DeadbandFilter.fromSettings();
+        var stations = inventory.stations();
+        if (Settings.METRICS_PORT > 0) {
+            try {
+                Metrics.serve(Settings.METRICS_PORT);
+            } catch (IOException e) {
+                logger.warn("Couldn't serve metrics on port {}: {}", Settings.METRICS_PORT, e.toString());
+            }
+        }
+        if (Settings.QUERY_PORT > 0) {
+            serveHistory(stations, archived);
+        }
+        acquisitionStarted = System.currentTimeMillis();
+        if ("pipelined".equals(Settings.ACQUISITION)) {
+            if (stations.size() == 1) {
+                runPipelined(stations.get(0));
+            } else {
+                logger.warn("Pipelined acquisition is for a single station, sampling {} stations on schedule",
+                        stations.size());
+            }
+        }
+        var scheduler = schedule(inventory);
+        scheduler.start();
+        if (!scheduler.awaitFirstSamples(FIRST_SAMPLE_TIMEOUT)) {
+            logger.warn("Not every sensor sampled within {} ms, publishing anyway", FIRST_SAMPLE_TIMEOUT);
+        }
+        long frames = 0;
+        long period = Settings.FRAME_PERIOD * 1_000_000L;
+        long next = System.nanoTime();
         while (true) {
-            DataSubmitter.submit(sensors.sensorsToJSON());
-            Utils.suspend(400);
+            for (var station : stations) {
+                publish(station);
+            }
+            if (frames == 0) {
+                firstFrame();
+            }
+            if (++frames == Settings.FRAMES) {
+                System.exit(0);
+            }
+            if (frames % STATS_INTERVAL == 0) {
+                logger.info("Timing: {}", Timing.report());
+                logger.info("Samples: {}", scheduler.report());
+                logSpectrometers(stations);
+                logConsumers();
+            }
+            next += period;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                Timing.sleepNanos(wait);
+            } else {
+                /* fell behind, don't try to catch up with a burst */
+                next = System.nanoTime();
+            }
+        }
+    }
+
+    /* a sampling channel per bus and sensor kind, each sweeping every station on
+       that bus, so buses run in parallel; the 1-Wire probes share one master */
+    private static SamplingScheduler schedule(DeviceInventory inventory) {
+        var scheduler = new SamplingScheduler();
+        var buses = inventory.buses();
+        long spectralPeriod = "continuous".equals(Settings.ACQUISITION) ? Settings.FIFO_DRAIN : Settings.SPECTRAL_PERIOD;
+        for (var s : inventory.stations()) {
+            s.expectEvery(Settings.SOIL_PERIOD, Settings.W1_PERIOD, Settings.LIGHT_PERIOD, spectralPeriod);
+        }
+        for (var bus : buses) {
+            /* a lone bus keeps the plain channel names */
+            var prefix = buses.size() == 1 ? "" : bus.name() + "/";
+            if (!bus.spectral().isEmpty() && "continuous".equals(Settings.ACQUISITION)) {
+                for (var s : bus.spectral()) {
+                    s.startContinuous(Settings.FIFO_VISIBLE, Settings.FIFO_ATIME, Settings.FIFO_ASTEP);
+                }
+                scheduler.add(prefix + "fifo", Settings.FIFO_DRAIN, Settings.SPECTRAL_PHASE, bus::drainSpectra);
+            } else if (!bus.spectral().isEmpty()) {
+                scheduler.add(prefix + "spectral", Settings.SPECTRAL_PERIOD, Settings.SPECTRAL_PHASE, bus::sampleSpectra);
+            }
+            if (!bus.light().isEmpty()) {
+                scheduler.add(prefix + "light", Settings.LIGHT_PERIOD, Settings.LIGHT_PHASE, bus::sampleAmbientLight);
+            }
+            if (!bus.soil().isEmpty()) {
+                scheduler.add(prefix + "soil", Settings.SOIL_PERIOD, Settings.SOIL_PHASE, bus::sampleSoil);
+            }
         }
+        if (inventory.hasTemperatureProbes()) {
+            scheduler.add("w1", Settings.W1_PERIOD, Settings.W1_PHASE, inventory::sampleTemperatures);
+        }
+        return scheduler;
     }
 
-    private static void selftest() throws Exception {
+    private static DeviceInventory openInventory() {
+        try {
+            return DeviceInventory.load();
+        } catch (IOException e) {
+            System.err.println("Failed to open devices: " + e.getMessage() + ". Goodbye!");
+            System.exit(1);
+            return null;
+        }
+    }
+
+    /* every sensor every frame, conversions overlapped; a frame goes out by
+       the end of its period unless the spectrometer is still within its budget */
+    private static void runPipelined(Sensors sensors) {
+        var pipeline = new AcquisitionPipeline(sensors);
+        long frames = 0;
+        long period = Settings.FRAME_PERIOD * 1_000_000L;
+        sensors.expectEvery(Settings.FRAME_PERIOD, Settings.FRAME_PERIOD, Settings.FRAME_PERIOD, Settings.FRAME_PERIOD);
+        while (true) {
+            long start = System.nanoTime();
+            pipeline.acquire(start + period);
+            publish(sensors);
+            if (frames == 0) {
+                firstFrame();
+            }
+            if (++frames == Settings.FRAMES) {
+                System.exit(0);
+            }
+            if (frames % STATS_INTERVAL == 0) {
+                logger.info("Timing: {}", Timing.report());
+                logger.info("Acquisition took {} ms", pipeline.lastFrameNanos() / 1_000_000);
+                logSpectrometers(List.of(sensors));
+                logConsumers();
+            }
+            long wait = start + period - System.nanoTime();
+            if (wait > 0) {
+                Timing.sleepNanos(wait);
+            }
+        }
+    }
+
+    /* how long the way to the first frame took, for Metrics and in the log */
+    private static void firstFrame() {
+        long now = System.currentTimeMillis();
+        firstFrameNanos = (now - jvmStarted) * 1_000_000L;
+        logger.info("First frame {} ms after start: JVM {} ms, devices {} ms, self test {} ms, consumers {} ms, first samples {} ms",
+                now - jvmStarted, mainStarted - jvmStarted, devicesOpened - mainStarted, selfTested - devicesOpened,
+                acquisitionStarted - selfTested, now - acquisitionStarted);
+    }
+
+    /* null if archiving is off or the directory can't be had, frames are archived on a ring
+       of their own and the open blocks written out on the way down */
+    private static FrameArchive openArchive() {
+        if (Settings.ARCHIVE_DIR.isEmpty()) {
+            return null;
+        }
+        FrameArchive frames;
+        try {
+            frames = FrameArchive.open(Settings.ARCHIVE_DIR, Settings.ARCHIVE_BLOCK, Settings.ARCHIVE_DAYS);
+        } catch (IOException e) {
+            logger.warn("Couldn't open archive {}, frames won't be archived: {}", Settings.ARCHIVE_DIR, e.toString());
+            return null;
+        }
+        archive = new ConsumerRing(frames, Settings.SUBMIT_RING, Settings.SUBMIT_OVERFLOW);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                archive.close(SHUTDOWN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            frames.close();
+        }, "archive-flush"));
+        return frames;
+    }
+
+    /* the daemon runs on without it if the port can't be had */
+    private static void serveHistory(List<Sensors> stations, FrameArchive archived) {
+        var store = Settings.HISTORY_HOURS > 0 ? new TimeSeriesStore(stations, Settings.HISTORY_HOURS) : null;
+        var reader = archived == null ? null : new FrameArchive.Reader(Settings.ARCHIVE_DIR);
+        try {
+            new QueryServer(store, reader, Settings.QUERY_PORT).start();
+            history = store;
+        } catch (IOException e) {
+            logger.warn("Couldn't serve history on port {}: {}", Settings.QUERY_PORT, e.toString());
+        }
+    }
+
+    /* null if spooling is off or the file can't be mapped */
+    private static FrameSpool openSpool() {
+        if (Settings.SPOOL_PATH.isEmpty()) {
+            return null;
+        }
+        try {
+            return FrameSpool.open(Settings.SPOOL_PATH, Settings.SPOOL_SEGMENTS, Settings.SPOOL_SEGMENT_SIZE);
+        } catch (IOException e) {
+            System.err.println("Couldn't open spool " + Settings.SPOOL_PATH + ", frames will be lost while offline: " + e);
+            return null;
+        }
+    }
+
+    private static void logSpectrometers(List<Sensors> stations) {
+        for (var s : stations) {
+            if (!s.hasSpectralSensor()) {
+                continue;
+            }
+            if (s.getStation() == null) {
+                logger.info("Spectrometer registers: {}", s.getSpectralSensor().registerReport());
+            } else {
+                logger.info("Spectrometer registers {}: {}", s.getStation(), s.getSpectralSensor().registerReport());
+            }
+            if (s.getSpectralRing() == null) {
+                continue;
+            }
+            if (s.getStation() == null) {
+                logger.info("Spectrometer FIFO: {}", s.getSpectralRing().report());
+            } else {
+                logger.info("Spectrometer FIFO {}: {}", s.getStation(), s.getSpectralRing().report());
+            }
+        }
+    }
+
+    private static void logConsumers() {
+        logger.info("Consumers: {}", DataSubmitter.report());
+        if (aggregator != null) {
+            logger.info("Windows: {}", aggregator.report());
+        }
+        if (deadband != null) {
+            logger.info("Deadband: {}", deadband.report());
+        }
+        if (http != null) {
+            logger.info("HTTP: {}", http.report());
+        }
+        if (archive != null) {
+            logger.info("Archive: {} {}", archive.report(), ((FrameArchive) archive.consumer()).report());
+        }
+    }
+
+    private static void publish(Sensors sensors) {
+        var frame = framePool.acquire();
+        sensors.latestFrame(frame);
+        if (archive != null) {
+            archive.publish(frame);
+        }
+        if (history != null) {
+            history.record(frame);
+        }
+        if (aggregator != null) {
+            aggregator.accept(frame);
+        }
+        if (submitFrames && (deadband == null || deadband.pass(frame))) {
+            DataSubmitter.submit(frame);
+        }
+        framePool.release(frame);
+    }
+
+    private static void selftest(DeviceInventory inventory) throws Exception {
         System.out.println("Hegemone starting on " + System.getProperty("os.name") + " " + java.time.ZonedDateTime.now());
         System.out.println("Self test");
-        /* Verify I2C */
-        var b1 = I2CVerify();
-        logger.info("I2C Verify Check: {}", b1);
-        /* Verify 1-Wire */
-        var b2 = OneWireVerify();
-        logger.info("1-Wire Verify Check: {}", b2);
-        /* Verify data log */
-        var b3 = logVerify();
-        logger.info("Data Log Verify Check: {}", b3);
-        if (!(b1 && b2 && b3)) {
+        /* the checks touch different hardware, run them at once */
+        var checks = Executors.newFixedThreadPool(3, r -> {
+            var t = new Thread(r, "selftest");
+            t.setDaemon(true);
+            return t;
+        });
+        boolean b1, b2, b3;
+        try {
+            var i2c = checks.submit(() -> I2CVerify(inventory));
+            var w1 = checks.submit(() -> OneWireVerify(inventory));
+            var log = checks.submit(Main::logVerify);
+            /* Verify I2C */
+            b1 = check(i2c);
+            logger.info("I2C Verify Check: {}", b1);
+            /* Verify 1-Wire */
+            b2 = check(w1);
+            logger.info("1-Wire Verify Check: {}", b2);
+            /* Verify data log */
+            b3 = check(log);
+            logger.info("Data Log Verify Check: {}", b3);
+        } finally {
+            checks.shutdown();
+        }
+        if (!(b1 && b2 && b3) && hardware(inventory)) {
             System.err.println("Errors were encountered during self test, refusing to proceed. Check error output.");
             System.exit(1);
         }
     }
 
-    private static boolean OneWireVerify() throws Exception {
-        var bus = new File(DeviceTree.DEFAULT_W1_BUS);
-        return bus.exists() && bus.isDirectory() && bus.canRead();
+    /* without real I2C hardware a failed self test only warns,
+       so the loop can be run and profiled on any box */
+    private static boolean hardware(DeviceInventory inventory) {
+        for (var bus : inventory.buses()) {
+            if (bus.transport().isHardware()) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private static boolean I2CVerify() throws Exception {
-        try (I2CBus bus = new I2CBus(DeviceTree.DEFAULT_I2C_BUS)) {
-            I2CFunctionalities functionalities = bus.getFunctionalities();
-
-            var funcs = new Object[]{functionalities.can(I2CFunctionality.TRANSACTIONS),
-                    functionalities.can(I2CFunctionality.READ_BYTE)};
-            logger.info("I2C bus can transact? {}\nI2C bus can read bytes? {}", funcs);
-            return (boolean) funcs[0] && (boolean) funcs[1];
-        } catch (IOException e) {
-            System.err.println(e);
+    /* a check that threw failed */
+    private static boolean check(Future<Boolean> check) throws InterruptedException {
+        try {
+            return check.get();
+        } catch (ExecutionException e) {
+            System.err.println(e.getCause());
             return false;
         }
     }
 
+    private static boolean OneWireVerify(DeviceInventory inventory) throws Exception {
+        boolean ok = true;
+        for (var w1 : inventory.oneWireBuses()) {
+            var bus = new File(w1.name());
+            if (!(bus.exists() && bus.isDirectory() && bus.canRead())) {
+                ok = false;
+                continue;
+            }
+            var found = w1.discover();
+            logger.info("1-Wire master {} has DS18B20 {}, bulk conversion {}", w1.name(), found,
+                    w1.bulkConversion() ? "supported" : "unsupported");
+            for (var p : w1.probes()) {
+                if (!found.contains(p.serial())) {
+                    System.err.println("DS18B20 " + p.serial() + " is not on " + w1.name());
+                    ok = false;
+                }
+            }
+        }
+        return ok;
+    }
+
+    private static boolean I2CVerify(DeviceInventory inventory) throws Exception {
+        boolean ok = true;
+        for (var b : inventory.buses()) {
+            if (!b.transport().isHardware()) {
+                logger.info("I2C bus is {}, nothing to verify", b.name());
+                continue;
+            }
+            try (I2CBus bus = new I2CBus(b.name())) {
+                I2CFunctionalities functionalities = bus.getFunctionalities();
+
+                var funcs = new Object[]{functionalities.can(I2CFunctionality.TRANSACTIONS),
+                        functionalities.can(I2CFunctionality.READ_BYTE)};
+                logger.info("I2C bus can transact? {}\nI2C bus can read bytes? {}", funcs);
+                ok &= (boolean) funcs[0] && (boolean) funcs[1];
+            } catch (IOException e) {
+                System.err.println(e);
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
     private static boolean logVerify() throws Exception {
-        var log = new File("/var/log/hegemone-data.dmp");
+        if (Settings.SPOOL_PATH.isEmpty()) {
+            return true;
+        }
+        var log = new File(Settings.SPOOL_PATH);
         try {
             /* create iff not exists */
             log.createNewFile();
@@ -0,0 +1,204 @@
+package hegemone.sensors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/* acquisition metrics, served in the Prometheus text format.
+ *
+ * Histograms and counters are registered once, when a sensor, bus or
+ * consumer is set up, and the caller keeps the returned LatencyHistogram
+ * or LongAdder to record into: recording is lock free and allocates
+ * nothing. Values that are already counted elsewhere (ConsumerRing lags,
+ * Soil retries) are registered as suppliers and only read at scrape time.
+ * Registering the same name and labels again returns what is there, so a
+ * series is never exposed twice.
+ *
+ * Labels are given as name, value pairs, counter names end in _total.
+ * Durations are recorded in nanoseconds and exposed in seconds.
+ */
+final class Metrics {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.metrics");
+    private static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private enum Type {
+        COUNTER, GAUGE, HISTOGRAM
+    }
+
+    /* one metric name with its help, type and series */
+    private static final class Family {
+        final String name;
+        final String help;
+        final Type type;
+        /* seconds for durations counted in nanoseconds */
+        final boolean nanos;
+        final Map<String, Object> series = new LinkedHashMap<>();
+
+        Family(String name, String help, Type type, boolean nanos) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.nanos = nanos;
+        }
+    }
+
+    private static final Map<String, Family> families = new LinkedHashMap<>();
+
+    private Metrics() {
+    }
+
+    static synchronized LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) family(name, help, Type.HISTOGRAM, true)
+                .series.computeIfAbsent(labels(labels), k -> new LatencyHistogram());
+    }
+
+    static synchronized LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) family(name, help, Type.COUNTER, false)
+                .series.computeIfAbsent(labels(labels), k -> new LongAdder());
+    }
+
+    /* a counter of nanoseconds, exposed in seconds, e.g. time a bus was busy */
+    static synchronized LongAdder nanosCounter(String name, String help, String... labels) {
+        return (LongAdder) family(name, help, Type.COUNTER, true)
+                .series.computeIfAbsent(labels(labels), k -> new LongAdder());
+    }
+
+    /* a count kept elsewhere, read at scrape time */
+    static synchronized void counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, Type.COUNTER, false).series.putIfAbsent(labels(labels), value);
+    }
+
+    /* nanoseconds kept elsewhere, exposed in seconds */
+    static synchronized void nanosCounter(String name, String help, LongSupplier nanos, String... labels) {
+        family(name, help, Type.COUNTER, true).series.putIfAbsent(labels(labels), nanos);
+    }
+
+    static synchronized void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, Type.GAUGE, false).series.putIfAbsent(labels(labels), value);
+    }
+
+    /* a duration kept elsewhere in nanoseconds, exposed in seconds */
+    static synchronized void nanosGauge(String name, String help, LongSupplier nanos, String... labels) {
+        family(name, help, Type.GAUGE, true).series.putIfAbsent(labels(labels), nanos);
+    }
+
+    private static Family family(String name, String help, Type type, boolean nanos) {
+        var family = families.computeIfAbsent(name, k -> new Family(name, help, type, nanos));
+        if (family.type != type || family.nanos != nanos) {
+            throw new IllegalArgumentException("Metric " + name + " is already a " + family.type);
+        }
+        return family;
+    }
+
+    /* {a="x",b="y"} or empty */
+    private static String labels(String... pairs) {
+        if (pairs.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels come in name, value pairs");
+        }
+        var sb = new StringBuilder();
+        for (int i = 0; i < pairs.length; i += 2) {
+            sb.append(i == 0 ? '{' : ',').append(pairs[i]).append("=\"");
+            var value = pairs[i + 1] == null ? "" : pairs[i + 1];
+            for (int c = 0; c < value.length(); c++) {
+                char ch = value.charAt(c);
+                if (ch == '\\' || ch == '"') {
+                    sb.append('\\').append(ch);
+                } else if (ch == '\n') {
+                    sb.append("\\n");
+                } else {
+                    sb.append(ch);
+                }
+            }
+            sb.append('"');
+        }
+        return pairs.length == 0 ? "" : sb.append('}').toString();
+    }
+
+    /* every family in the text exposition format */
+    static String scrape() {
+        List<Family> snapshot;
+        synchronized (Metrics.class) {
+            snapshot = new ArrayList<>(families.values());
+        }
+        var sb = new StringBuilder(8192);
+        for (var f : snapshot) {
+            List<Map.Entry<String, Object>> series;
+            synchronized (Metrics.class) {
+                series = new ArrayList<>(f.series.entrySet());
+            }
+            sb.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+            sb.append("# TYPE ").append(f.name).append(' ').append(f.type.name().toLowerCase()).append('\n');
+            for (var s : series) {
+                var value = s.getValue();
+                if (value instanceof LatencyHistogram) {
+                    histogram(sb, f.name, s.getKey(), (LatencyHistogram) value);
+                } else {
+                    long v = value instanceof LongSupplier ? ((LongSupplier) value).getAsLong()
+                            : ((LongAdder) value).sum();
+                    sb.append(f.name).append(s.getKey()).append(' ');
+                    if (f.nanos) {
+                        sb.append(v / 1e9);
+                    } else {
+                        sb.append(v);
+                    }
+                    sb.append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void histogram(StringBuilder sb, String name, String labels, LatencyHistogram h) {
+        /* le goes after the series' own labels */
+        var prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+        long cumulative = 0;
+        for (int i = 0; i < LatencyHistogram.BOUNDS_NANOS.length; i++) {
+            cumulative += h.count(i);
+            sb.append(name).append("_bucket").append(prefix).append("le=\"")
+                    .append(LatencyHistogram.BOUNDS_NANOS[i] / 1e9).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += h.count(LatencyHistogram.BOUNDS_NANOS.length);
+        sb.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        sb.append(name).append("_sum").append(labels).append(' ').append(h.sumNanos() / 1e9).append('\n');
+        sb.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+    }
+
+    /* GET /metrics on port, on a daemon thread of its own */
+    static void serve(int port) throws IOException {
+        var server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            var t = new Thread(r, "metrics-server");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.createContext(PATH, Metrics::handle);
+        server.start();
+        logger.info("Serving metrics on port {}", server.getAddress().getPort());
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            var body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+}
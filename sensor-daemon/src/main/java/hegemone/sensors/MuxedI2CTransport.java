@@ -0,0 +1,129 @@
+package hegemone.sensors;
+
+import java.io.IOException;
+
+/* one downstream channel of a TCA9548A I2C mux, as a transport of its own.
+ *
+ * Stations carry the same boards at the same addresses (every AS7341 is 0x39),
+ * so each sits behind its own mux channel. All channels of a mux share the
+ * upstream transport: every transfer locks it, writes the channel to the mux
+ * control register if the mux isn't already on it, and goes through. Only
+ * single transfers are serialized upstream; multi-step sequences synchronize
+ * on the channel, as on any transport, so one station sleeping out a
+ * conversion never holds up another. Muxes can be cascaded.
+ */
+class MuxedI2CTransport implements I2CTransport {
+    static final int DEFAULT_MUX_ADDRESS = 0x70;
+    static final int CHANNELS = 8;
+
+    /* the mux itself, shared by its channels */
+    static final class Mux {
+        private final I2CTransport upstream;
+        private final int address;
+        private final byte[] control = new byte[1];
+        /* channel the mux is switched to, -1 if unknown */
+        private int selected = -1;
+        private long switches;
+
+        Mux(I2CTransport upstream, int address) {
+            this.upstream = upstream;
+            this.address = address;
+        }
+
+        MuxedI2CTransport channel(int channel) {
+            if (channel < 0 || channel >= CHANNELS) {
+                throw new IllegalArgumentException("TCA9548A channel " + channel + " out of 0.." + (CHANNELS - 1));
+            }
+            return new MuxedI2CTransport(this, channel);
+        }
+
+        I2CTransport upstream() {
+            return upstream;
+        }
+
+        int address() {
+            return address;
+        }
+
+        /* caller holds the upstream lock */
+        private void select(int channel) throws IOException {
+            if (selected == channel) {
+                return;
+            }
+            control[0] = (byte) (1 << channel);
+            selected = -1;
+            upstream.write(address, control, 1);
+            selected = channel;
+            switches++;
+        }
+
+        long switches() {
+            synchronized (upstream) {
+                return switches;
+            }
+        }
+    }
+
+    private final Mux mux;
+    private final int channel;
+
+    private MuxedI2CTransport(Mux mux, int channel) {
+        this.mux = mux;
+        this.channel = channel;
+    }
+
+    Mux mux() {
+        return mux;
+    }
+
+    int channel() {
+        return channel;
+    }
+
+    @Override
+    public void write(int address, byte[] data, int length) throws IOException {
+        synchronized (mux.upstream) {
+            mux.select(channel);
+            mux.upstream.write(address, data, length);
+        }
+    }
+
+    @Override
+    public void read(int address, byte[] data, int length) throws IOException {
+        synchronized (mux.upstream) {
+            mux.select(channel);
+            mux.upstream.read(address, data, length);
+        }
+    }
+
+    @Override
+    public void writeRead(int address, byte[] out, int outLength, byte[] in, int inLength) throws IOException {
+        synchronized (mux.upstream) {
+            mux.select(channel);
+            mux.upstream.writeRead(address, out, outLength, in, inLength);
+        }
+    }
+
+    @Override
+    public void readRegisters(int address, int register, byte[] data, int length) throws IOException {
+        synchronized (mux.upstream) {
+            mux.select(channel);
+            mux.upstream.readRegisters(address, register, data, length);
+        }
+    }
+
+    @Override
+    public boolean isHardware() {
+        return mux.upstream.isHardware();
+    }
+
+    @Override
+    public String name() {
+        return mux.upstream.name() + "@0x" + Integer.toHexString(mux.address) + ":" + channel;
+    }
+
+    /* the upstream bus belongs to whoever opened it */
+    @Override
+    public void close() {
+    }
+}
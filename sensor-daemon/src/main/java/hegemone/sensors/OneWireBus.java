@@ -0,0 +1,231 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/* the DS18B20 probes on one sysfs 1-Wire master, converted together.
+ *
+ * Reading a probe's w1_slave starts a conversion on that probe alone and
+ * waits it out (750 ms at 12 bits), so probes read in turn took that long
+ * each. convert() instead writes "trigger" to the master's therm_bulk_read,
+ * which starts every probe converting with one skip ROM command, and waits
+ * the longest conv_time once; each Probe's read() then gets the result from
+ * its temperature file, plain millidegrees, without converting again.
+ * Kernels before 5.10 have neither file, read() then falls back to parsing
+ * w1_slave and each probe converts on its own.
+ *
+ * Resolution (9 to 12 bits) and conv_time (ms) are written to a probe once,
+ * when it is attached; at 9 bits a conversion takes about 94 ms in 0.5 °C
+ * steps. Reads go through a file kept open and a buffer kept per probe.
+ */
+final class OneWireBus {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.w1");
+    private static final String FAMILY = "28-";
+    private static final byte[] TRIGGER = "trigger\n".getBytes(StandardCharsets.US_ASCII);
+    /* DS18B20 conversion time at 12 bits, halved for each bit less */
+    private static final int CONV_MILLIS_12BIT = 750;
+
+    /* one probe on the master, read by one thread at a time */
+    static final class Probe {
+        private final String serial;
+        private final File dir;
+        /* w1_slave is two lines of about 75 bytes */
+        private final byte[] buffer = new byte[128];
+        private RandomAccessFile temperature;
+        private boolean legacy;
+        private int convMillis = CONV_MILLIS_12BIT;
+
+        private Probe(File master, String serial) {
+            this.serial = serial;
+            this.dir = new File(master, serial);
+        }
+
+        String serial() {
+            return serial;
+        }
+
+        int convMillis() {
+            return convMillis;
+        }
+
+        /* bits 9 to 12 and conv_time in ms, 0 leaves either as it is */
+        private void configure(int resolution, int conv) {
+            if (resolution != 0 && (resolution < 9 || resolution > 12)) {
+                throw new IllegalArgumentException("DS18B20 resolution is 9 to 12 bits, got " + resolution);
+            }
+            if (resolution != 0) {
+                write("resolution", resolution);
+            }
+            if (conv != 0) {
+                write("conv_time", conv);
+            }
+            try {
+                convMillis = parse(readFile(new File(dir, "conv_time")), "conv_time");
+            } catch (IOException e) {
+                int bits = resolution != 0 ? resolution : 12;
+                convMillis = conv > 2 ? conv : CONV_MILLIS_12BIT >> (12 - bits);
+            }
+        }
+
+        private void write(String attribute, int value) {
+            try (var out = new FileOutputStream(new File(dir, attribute))) {
+                out.write((value + "\n").getBytes(StandardCharsets.US_ASCII));
+            } catch (IOException e) {
+                logger.warn("Could not set {} of DS18B20 {} to {}: {}", attribute, serial, value, e.getMessage());
+            }
+        }
+
+        private int readFile(File file) throws IOException {
+            try (var in = new RandomAccessFile(file, "r")) {
+                return fill(in);
+            }
+        }
+
+        /* the whole attribute into buffer; sysfs shows it afresh on a read from offset 0 */
+        private int fill(RandomAccessFile in) throws IOException {
+            in.seek(0);
+            int length = 0;
+            for (int n; length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) > 0; ) {
+                length += n;
+            }
+            return length;
+        }
+
+        /* millidegrees Celsius: the last bulk conversion's if there was one, otherwise converts now */
+        int read() throws IOException {
+            if (!legacy && temperature == null) {
+                var file = new File(dir, "temperature");
+                if (file.exists()) {
+                    temperature = new RandomAccessFile(file, "r");
+                } else if (dir.isDirectory()) {
+                    legacy = true;
+                } else {
+                    throw new IOException("DS18B20 " + serial + " is not on " + dir.getParent());
+                }
+            }
+            if (legacy) {
+                int length = readFile(new File(dir, "w1_slave"));
+                for (int i = 0; i + 1 < length; i++) {
+                    if (buffer[i] == 't' && buffer[i + 1] == '=') {
+                        return parse(i + 2, length, "w1_slave");
+                    }
+                }
+                throw new IOException("No temperature in w1_slave of " + serial);
+            }
+            try {
+                return parse(fill(temperature), "temperature");
+            } catch (IOException e) {
+                /* reopened next time, the probe may have been replugged */
+                temperature.close();
+                temperature = null;
+                throw e;
+            }
+        }
+
+        private int parse(int length, String what) throws IOException {
+            return parse(0, length, what);
+        }
+
+        /* a decimal integer at buffer[from], whitespace before it allowed */
+        private int parse(int from, int length, String what) throws IOException {
+            int i = from;
+            while (i < length && (buffer[i] == ' ' || buffer[i] == '\n')) {
+                i++;
+            }
+            boolean negative = i < length && buffer[i] == '-';
+            if (negative) {
+                i++;
+            }
+            int start = i;
+            int value = 0;
+            while (i < length && buffer[i] >= '0' && buffer[i] <= '9') {
+                value = value * 10 + (buffer[i++] - '0');
+            }
+            if (i == start) {
+                throw new IOException("No number in " + what + " of " + serial);
+            }
+            return negative ? -value : value;
+        }
+    }
+
+    private final File master;
+    private final File bulk;
+    private final List<Probe> probes = new ArrayList<>();
+    private final LatencyHistogram conversions;
+    private int waitMillis;
+
+    OneWireBus(String master) {
+        this.master = new File(master);
+        this.bulk = new File(master, "therm_bulk_read");
+        conversions = Metrics.histogram("hegemone_w1_conversion_seconds",
+                "Time to convert every DS18B20 on a 1-Wire master at once", "master", master);
+    }
+
+    String name() {
+        return master.getPath();
+    }
+
+    /* serials of the DS18B20s the master has found, in order */
+    List<String> discover() {
+        var names = master.list((dir, name) -> name.startsWith(FAMILY));
+        if (names == null) {
+            return List.of();
+        }
+        Arrays.sort(names);
+        return List.of(names);
+    }
+
+    boolean bulkConversion() {
+        return bulk.exists();
+    }
+
+    /* the probe with serial, configured with resolution and conv_time (0 leaves them) */
+    Probe attach(String serial, int resolution, int conv) {
+        for (var p : probes) {
+            if (p.serial.equals(serial)) {
+                throw new IllegalArgumentException("DS18B20 " + serial + " is attached already");
+            }
+        }
+        var probe = new Probe(master, serial);
+        if (new File(master, serial).isDirectory()) {
+            probe.configure(resolution, conv);
+        }
+        probes.add(probe);
+        waitMillis = Math.max(waitMillis, probe.convMillis);
+        return probe;
+    }
+
+    List<Probe> probes() {
+        return List.copyOf(probes);
+    }
+
+    /* start every probe converting at once and wait for the slowest,
+       nothing without bulk support: each read() then converts on its own */
+    void convert() {
+        if (probes.isEmpty() || !bulkConversion()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try (var out = new FileOutputStream(bulk)) {
+            out.write(TRIGGER);
+        } catch (IOException e) {
+            logger.warn("Could not trigger a bulk conversion on {}: {}", master, e.getMessage());
+            return;
+        }
+        try {
+            Thread.sleep(waitMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        conversions.record(System.nanoTime() - start);
+    }
+}
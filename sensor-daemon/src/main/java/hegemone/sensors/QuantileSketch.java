@@ -0,0 +1,125 @@
+package hegemone.sensors;
+
+import java.util.Arrays;
+
+/* running estimate of a few quantiles in fixed memory, the extended P²
+ * algorithm (Jain and Chlamtac, generalised by Raatikainen).
+ *
+ * For k quantiles it keeps 2k + 3 markers: the minimum, the maximum, each
+ * quantile and one midway between every pair of neighbours. Each value
+ * moves the marker positions, and a marker that drifts a whole position
+ * from where its quantile should be is nudged along a parabola through its
+ * neighbours. The first EXACT values are kept as they are, so quantiles of
+ * small windows are exact, and then seed the markers.
+ */
+class QuantileSketch {
+    static final int EXACT = 64;
+    private final double[] quantiles;
+    /* probability each marker tracks */
+    private final double[] probabilities;
+    private final double[] heights;
+    private final double[] positions;
+    /* sorted, the first EXACT values */
+    private final double[] values = new double[EXACT];
+    private long count;
+
+    QuantileSketch(double... quantiles) {
+        this.quantiles = quantiles.clone();
+        Arrays.sort(this.quantiles);
+        int m = 2 * quantiles.length + 3;
+        probabilities = new double[m];
+        probabilities[m - 1] = 1;
+        for (int i = 0; i < this.quantiles.length; i++) {
+            probabilities[2 * i + 2] = this.quantiles[i];
+        }
+        for (int i = 1; i < m - 1; i += 2) {
+            probabilities[i] = (probabilities[i - 1] + probabilities[i + 1]) / 2;
+        }
+        heights = new double[m];
+        positions = new double[m];
+    }
+
+    void clear() {
+        count = 0;
+    }
+
+    long count() {
+        return count;
+    }
+
+    void add(double x) {
+        int m = heights.length;
+        if (count < EXACT) {
+            int i = (int) count++;
+            while (i > 0 && values[i - 1] > x) {
+                values[i] = values[i - 1];
+                i--;
+            }
+            values[i] = x;
+            if (count == EXACT) {
+                for (int j = 0; j < m; j++) {
+                    int position = (int) Math.round((EXACT - 1) * probabilities[j]);
+                    positions[j] = position + 1;
+                    heights[j] = values[position];
+                }
+            }
+            return;
+        }
+        int cell;
+        if (x < heights[0]) {
+            heights[0] = x;
+            cell = 0;
+        } else if (x >= heights[m - 1]) {
+            heights[m - 1] = x;
+            cell = m - 2;
+        } else {
+            cell = 0;
+            while (x >= heights[cell + 1]) {
+                cell++;
+            }
+        }
+        for (int i = cell + 1; i < m; i++) {
+            positions[i]++;
+        }
+        count++;
+        for (int i = 1; i < m - 1; i++) {
+            double delta = (count - 1) * probabilities[i] + 1 - positions[i];
+            if ((delta >= 1 && positions[i + 1] - positions[i] > 1)
+                    || (delta <= -1 && positions[i - 1] - positions[i] < -1)) {
+                int s = delta > 0 ? 1 : -1;
+                double h = parabolic(i, s);
+                if (h <= heights[i - 1] || h >= heights[i + 1]) {
+                    h = heights[i] + s * (heights[i + s] - heights[i]) / (positions[i + s] - positions[i]);
+                }
+                heights[i] = h;
+                positions[i] += s;
+            }
+        }
+    }
+
+    private double parabolic(int i, int s) {
+        double below = positions[i] - positions[i - 1];
+        double above = positions[i + 1] - positions[i];
+        return heights[i] + s / (positions[i + 1] - positions[i - 1])
+                * ((below + s) * (heights[i + 1] - heights[i]) / above
+                + (above - s) * (heights[i] - heights[i - 1]) / below);
+    }
+
+    /* estimate of quantile q, one of those given; NaN before any value */
+    double quantile(double q) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (count <= EXACT) {
+            /* nearest rank */
+            int rank = (int) Math.ceil(q * count) - 1;
+            return values[Math.max(0, Math.min((int) count - 1, rank))];
+        }
+        for (int i = 0; i < quantiles.length; i++) {
+            if (quantiles[i] == q) {
+                return heights[2 * i + 2];
+            }
+        }
+        throw new IllegalArgumentException("Quantile " + q + " isn't tracked");
+    }
+}
@@ -0,0 +1,422 @@
+package hegemone.sensors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/* serves the TimeSeriesStore and the FrameArchive to dashboards on the local network.
+ *
+ *   GET /series                      stations, their channels and how much history each holds
+ *   GET /series/<channel>?station=&from=&to=&step=
+ *   GET /archive/<channel>?station=&from=&to=&step=
+ *
+ * from and to are epoch ms, by default the last hour. Without step every
+ * reading in between comes back as [time, value]; with step (ms) readings
+ * are put in buckets aligned to the epoch and each comes back as
+ * [start, count, min, mean, max]. station may be left out if there is only
+ * one. Requests are handled one at a time on a single thread, writing
+ * straight from the store into one reused JsonBuffer, so a query allocates
+ * nothing per reading.
+ *
+ * /archive answers the same way from the archive's files, for as far back
+ * as they go, and knows the channels WindowAggregator names. A reading
+ * counts once, at the time it was taken, however many frames repeated it;
+ * the last block of frames isn't in the files until it is full. station is
+ * required there unless the daemon runs without an inventory.
+ */
+class QueryServer implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.query");
+    private static final String SERIES = "/series";
+    private static final String ARCHIVE = "/archive";
+    private static final long DEFAULT_SPAN = 3_600_000L;
+    /* times a query starts over when the recorder laps it */
+    private static final int LAPPED_RETRIES = 3;
+    private static final byte[] POINTS = JsonBuffer.ascii(",\"points\":[");
+    private static final byte[] BUCKETS = JsonBuffer.ascii(",\"buckets\":[");
+
+    /* either may be null, its path isn't served then */
+    private final TimeSeriesStore store;
+    private final FrameArchive.Reader archive;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final JsonBuffer json = new JsonBuffer();
+
+    /* the bucket or the archived channel being written */
+    private long step;
+    private long from;
+    private long to;
+    private int field;
+    private long sampledAt;
+    private boolean any;
+    private long bucket;
+    private long count;
+    private double min;
+    private double max;
+    private double sum;
+
+    QueryServer(TimeSeriesStore store, FrameArchive.Reader archive, int port) throws IOException {
+        this.store = store;
+        this.archive = archive;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        executor = Executors.newSingleThreadExecutor(r -> {
+            var t = new Thread(r, "query-server");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        if (store != null) {
+            server.createContext(SERIES, this::series);
+        }
+        if (archive != null) {
+            server.createContext(ARCHIVE, this::archived);
+        }
+    }
+
+    void start() {
+        server.start();
+        if (store != null) {
+            logger.info("Serving {} KiB of history on port {}", store.bytes() / 1024, server.getAddress().getPort());
+        }
+        if (archive != null) {
+            logger.info("Serving the archive on port {}", server.getAddress().getPort());
+        }
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    private void series(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            var path = exchange.getRequestURI().getPath();
+            int status;
+            try {
+                status = path.length() <= SERIES.length() + 1
+                        ? list()
+                        : query(path.substring(SERIES.length() + 1), exchange.getRequestURI().getRawQuery());
+            } catch (IllegalArgumentException e) {
+                json.reset();
+                json.putAscii("{\"error\":\"bad request\"}");
+                status = 400;
+            }
+            exchange.getResponseHeaders().set("Content-Type", FrameFormat.JSON.contentType());
+            exchange.sendResponseHeaders(status, json.length());
+            exchange.getResponseBody().write(json.buffer(), 0, json.length());
+        }
+    }
+
+    private int list() {
+        json.reset();
+        json.putAscii("{\"bytes\":");
+        json.putLong(store.bytes());
+        json.putAscii(",\"stations\":[");
+        boolean firstStation = true;
+        for (var station : store.stations()) {
+            if (!firstStation) {
+                json.putByte(',');
+            }
+            firstStation = false;
+            json.putByte('{');
+            if (station.name() != null) {
+                json.putAscii("\"station\":\"");
+                json.putAscii(station.name());
+                json.putAscii("\",");
+            }
+            json.putAscii("\"series\":[");
+            boolean firstSeries = true;
+            for (var s : station.series()) {
+                if (!firstSeries) {
+                    json.putByte(',');
+                }
+                firstSeries = false;
+                json.putAscii("{\"channels\":[");
+                for (int i = 0; i < s.channels().length; i++) {
+                    json.putAscii(i == 0 ? "\"" : ",\"");
+                    json.putAscii(s.channels()[i]);
+                    json.putByte('"');
+                }
+                long written = s.written();
+                json.putAscii("],\"capacity\":");
+                json.putInt(s.capacity());
+                json.putAscii(",\"readings\":");
+                json.putLong(Math.min(written, s.capacity()));
+                if (written > 0) {
+                    json.putAscii(",\"oldest\":");
+                    json.putLong(s.time(s.oldest() + (written > s.capacity() ? 1 : 0)));
+                    json.putAscii(",\"newest\":");
+                    json.putLong(s.time(written - 1));
+                }
+                json.putByte('}');
+            }
+            json.putAscii("]}");
+        }
+        json.putAscii("]}");
+        return 200;
+    }
+
+    private int query(String channel, String params) {
+        String stationName = null;
+        long to = System.currentTimeMillis();
+        long from = Long.MIN_VALUE;
+        long step = 0;
+        if (params != null) {
+            for (var param : params.split("&")) {
+                int eq = param.indexOf('=');
+                var key = eq < 0 ? param : param.substring(0, eq);
+                var value = eq < 0 ? "" : param.substring(eq + 1);
+                switch (key) {
+                    case "station" -> stationName = value;
+                    case "from" -> from = Long.parseLong(value);
+                    case "to" -> to = Long.parseLong(value);
+                    case "step" -> step = Long.parseLong(value);
+                    default -> throw new IllegalArgumentException("Unknown parameter " + key);
+                }
+            }
+        }
+        if (from == Long.MIN_VALUE) {
+            from = to - DEFAULT_SPAN;
+        }
+        if (step < 0 || from > to) {
+            throw new IllegalArgumentException("Bad range");
+        }
+        var station = store.station(stationName);
+        var series = station == null ? null : station.find(channel);
+        if (series == null) {
+            json.reset();
+            json.putAscii("{\"error\":\"no such station or channel\"}");
+            return 404;
+        }
+        int column = series.channel(channel);
+        for (int attempt = 0; attempt <= LAPPED_RETRIES; attempt++) {
+            json.reset();
+            json.putByte('{');
+            if (station.name() != null) {
+                json.putAscii("\"station\":\"");
+                json.putAscii(station.name());
+                json.putAscii("\",");
+            }
+            json.putAscii("\"channel\":\"");
+            json.putAscii(channel);
+            json.putAscii("\",\"from\":");
+            json.putLong(from);
+            json.putAscii(",\"to\":");
+            json.putLong(to);
+            long first = Math.max(series.find(from), series.written() + 1 - series.capacity());
+            first = Math.max(0, first);
+            if (step == 0) {
+                points(series, column, first, to);
+            } else {
+                json.putAscii(",\"step\":");
+                json.putLong(step);
+                buckets(series, column, first, to, step);
+            }
+            json.putByte('}');
+            if (!series.lapped(first)) {
+                return 200;
+            }
+        }
+        json.reset();
+        json.putAscii("{\"error\":\"history moved on while reading, try again\"}");
+        return 503;
+    }
+
+    private void points(TimeSeriesStore.Series series, int column, long first, long to) {
+        json.put(POINTS);
+        any = false;
+        long end = series.written();
+        for (long seq = first; seq < end; seq++) {
+            long time = series.time(seq);
+            if (time > to) {
+                break;
+            }
+            point(time, series.value(column, seq));
+        }
+        json.putByte(']');
+    }
+
+    private void point(long time, double value) {
+        if (any) {
+            json.putByte(',');
+        }
+        any = true;
+        json.putByte('[');
+        json.putLong(time);
+        json.putByte(',');
+        json.putDouble(value);
+        json.putByte(']');
+    }
+
+    private void buckets(TimeSeriesStore.Series series, int column, long first, long to, long step) {
+        json.put(BUCKETS);
+        any = false;
+        count = 0;
+        long end = series.written();
+        for (long seq = first; seq < end; seq++) {
+            long time = series.time(seq);
+            if (time > to) {
+                break;
+            }
+            bucket(time, series.value(column, seq), step);
+        }
+        endBucket();
+        json.putByte(']');
+    }
+
+    /* value into the bucket of time, writing out the one before if time is past it */
+    private void bucket(long time, double value, long step) {
+        long start = Math.floorDiv(time, step) * step;
+        if (start != bucket) {
+            endBucket();
+        }
+        if (count == 0) {
+            bucket = start;
+            min = value;
+            max = value;
+            sum = 0;
+        }
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        count++;
+    }
+
+    private void endBucket() {
+        if (count == 0) {
+            return;
+        }
+        if (any) {
+            json.putByte(',');
+        }
+        any = true;
+        json.putByte('[');
+        json.putLong(bucket);
+        json.putByte(',');
+        json.putLong(count);
+        json.putByte(',');
+        json.putDouble(min);
+        json.putByte(',');
+        json.putDouble(sum / count);
+        json.putByte(',');
+        json.putDouble(max);
+        json.putByte(']');
+        count = 0;
+    }
+
+    private void archived(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            var path = exchange.getRequestURI().getPath();
+            int status;
+            try {
+                if (path.length() <= ARCHIVE.length() + 1) {
+                    throw new IllegalArgumentException("No channel");
+                }
+                status = archived(path.substring(ARCHIVE.length() + 1), exchange.getRequestURI().getRawQuery());
+            } catch (IllegalArgumentException e) {
+                json.reset();
+                json.putAscii("{\"error\":\"bad request\"}");
+                status = 400;
+            } catch (IOException e) {
+                logger.warn("Couldn't read the archive: {}", e.toString());
+                json.reset();
+                json.putAscii("{\"error\":\"archive unreadable\"}");
+                status = 500;
+            }
+            exchange.getResponseHeaders().set("Content-Type", FrameFormat.JSON.contentType());
+            exchange.sendResponseHeaders(status, json.length());
+            exchange.getResponseBody().write(json.buffer(), 0, json.length());
+        }
+    }
+
+    private int archived(String channel, String params) throws IOException {
+        String stationName = null;
+        to = System.currentTimeMillis();
+        from = Long.MIN_VALUE;
+        step = 0;
+        if (params != null) {
+            for (var param : params.split("&")) {
+                int eq = param.indexOf('=');
+                var key = eq < 0 ? param : param.substring(0, eq);
+                var value = eq < 0 ? "" : param.substring(eq + 1);
+                switch (key) {
+                    case "station" -> stationName = value;
+                    case "from" -> from = Long.parseLong(value);
+                    case "to" -> to = Long.parseLong(value);
+                    case "step" -> step = Long.parseLong(value);
+                    default -> throw new IllegalArgumentException("Unknown parameter " + key);
+                }
+            }
+        }
+        if (from == Long.MIN_VALUE) {
+            from = to - DEFAULT_SPAN;
+        }
+        if (step < 0 || from > to) {
+            throw new IllegalArgumentException("Bad range");
+        }
+        field = FrameArchive.field(channel);
+        if (field < 0) {
+            json.reset();
+            json.putAscii("{\"error\":\"no such channel\"}");
+            return 404;
+        }
+        json.reset();
+        json.putByte('{');
+        if (stationName != null) {
+            json.putAscii("\"station\":\"");
+            json.putAscii(stationName);
+            json.putAscii("\",");
+        }
+        json.putAscii("\"channel\":\"");
+        json.putAscii(channel);
+        json.putAscii("\",\"from\":");
+        json.putLong(from);
+        json.putAscii(",\"to\":");
+        json.putLong(to);
+        if (step > 0) {
+            json.putAscii(",\"step\":");
+            json.putLong(step);
+        }
+        json.put(step == 0 ? POINTS : BUCKETS);
+        any = false;
+        count = 0;
+        sampledAt = 0;
+        archive.read(stationName, from, to, this::archived);
+        endBucket();
+        json.putAscii("]}");
+        return 200;
+    }
+
+    /* a reading the first time a frame has it */
+    private boolean archived(SensorFrame frame) {
+        long at = FrameArchive.sampledAt(frame, field);
+        if (at == sampledAt || at < from || at > to) {
+            return true;
+        }
+        sampledAt = at;
+        if (step == 0) {
+            point(at, FrameArchive.value(frame, field));
+        } else {
+            bucket(at, FrameArchive.value(frame, field), step);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,94 @@
+package hegemone.sensors;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/* what we last wrote to each 8-bit register of one device, so writes that
+ * wouldn't change anything can be skipped.
+ *
+ * Only valid while nothing but us changes those registers. Registers the
+ * device changes by itself (self clearing bits, write-one-to-clear status)
+ * are marked uncached and always written; callers that know what such a
+ * register holds afterwards can say so with assume(). Anything unexpected,
+ * a failed transfer or a power cycle, should invalidate() the lot.
+ * Callers synchronize on the transport, as for any multi-step access.
+ */
+class RegisterShadow {
+    private static final int UNKNOWN = -1;
+    private final I2CTransport bus;
+    private final int address;
+    private final int[] values = new int[256];
+    private final boolean[] uncached = new boolean[256];
+    private final byte[] pair = new byte[2];
+    private long writes;
+    private long elided;
+
+    RegisterShadow(I2CTransport bus, int address, int... uncachedRegisters) {
+        this.bus = bus;
+        this.address = address;
+        for (int reg : uncachedRegisters) {
+            uncached[reg] = true;
+        }
+        invalidate();
+    }
+
+    /* write value to reg unless it already holds it, true if written */
+    boolean write(int reg, int value) throws IOException {
+        value &= 0xFF;
+        if (!uncached[reg] && values[reg] == value) {
+            elided++;
+            return false;
+        }
+        pair[0] = (byte) reg;
+        pair[1] = (byte) value;
+        try {
+            bus.write(address, pair, 2);
+        } catch (IOException e) {
+            invalidate();
+            throw e;
+        }
+        writes++;
+        values[reg] = uncached[reg] ? UNKNOWN : value;
+        return true;
+    }
+
+    /* a prepared burst, burst[0] the first register and the values after it
+       written to consecutive registers in one transaction; skipped if every
+       register already holds its value. true if written */
+    boolean writeBurst(byte[] burst) throws IOException {
+        int first = burst[0] & 0xFF;
+        int n = burst.length - 1;
+        boolean same = true;
+        for (int i = 0; i < n && same; i++) {
+            same = !uncached[first + i] && values[first + i] == (burst[i + 1] & 0xFF);
+        }
+        if (same) {
+            elided++;
+            return false;
+        }
+        try {
+            bus.write(address, burst, burst.length);
+        } catch (IOException e) {
+            invalidate();
+            throw e;
+        }
+        writes++;
+        for (int i = 0; i < n; i++) {
+            values[first + i] = uncached[first + i] ? UNKNOWN : burst[i + 1] & 0xFF;
+        }
+        return true;
+    }
+
+    /* the device is known to hold value in reg now, e.g. after a bit cleared itself */
+    void assume(int reg, int value) {
+        values[reg] = value & 0xFF;
+    }
+
+    void invalidate() {
+        Arrays.fill(values, UNKNOWN);
+    }
+
+    String report() {
+        return String.format("writes=%d elided=%d", writes, elided);
+    }
+}
@@ -0,0 +1,107 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* runs each sensor's sampling at its own rate and phase.
+ *
+ * Every channel gets its own thread, so the 750 ms 1-Wire conversion or the
+ * two spectrometer integrations never hold back the fast channels; the bus
+ * itself is still serialized per transaction by the I2CTransport. With a
+ * DeviceInventory there is a channel per bus and sensor kind, so buses are
+ * sampled in parallel. Runs are fixed rate and never overlap themselves, an
+ * overrun just delays the next.
+ */
+class SamplingScheduler {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.scheduler");
+
+    private static final class Channel {
+        final String name;
+        final long periodMs;
+        final long phaseMs;
+        final Runnable sample;
+        final AtomicLong runs = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final LatencyHistogram durations;
+
+        Channel(String name, long periodMs, long phaseMs, Runnable sample) {
+            this.name = name;
+            this.periodMs = periodMs;
+            this.phaseMs = phaseMs;
+            this.sample = sample;
+            durations = Metrics.histogram("hegemone_sample_seconds", "Time a sampling run took", "channel", name);
+            Metrics.counter("hegemone_sample_failures_total", "Sampling runs that threw", failures::get, "channel", name);
+        }
+    }
+
+    private final List<Channel> channels = new ArrayList<>();
+    private ScheduledThreadPoolExecutor executor;
+    private CountDownLatch firstSamples;
+
+    SamplingScheduler add(String name, long periodMs, long phaseMs, Runnable sample) {
+        if (executor != null) {
+            throw new IllegalStateException("Scheduler already started");
+        }
+        channels.add(new Channel(name, periodMs, phaseMs, sample));
+        return this;
+    }
+
+    void start() {
+        firstSamples = new CountDownLatch(channels.size());
+        executor = new ScheduledThreadPoolExecutor(channels.size(), r -> {
+            var t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        });
+        for (var c : channels) {
+            logger.info("Sampling {} every {} ms from +{} ms", c.name, c.periodMs, c.phaseMs);
+            executor.scheduleAtFixedRate(() -> run(c), c.phaseMs, c.periodMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void run(Channel c) {
+        Thread.currentThread().setName("sampler-" + c.name);
+        long start = System.nanoTime();
+        try {
+            c.sample.run();
+        } catch (RuntimeException e) {
+            /* an escaping exception would silently cancel the schedule */
+            c.failures.incrementAndGet();
+            logger.warn("Sampling {} failed", c.name, e);
+        }
+        c.durations.record(System.nanoTime() - start);
+        if (c.runs.getAndIncrement() == 0) {
+            firstSamples.countDown();
+        }
+    }
+
+    /* block until every channel has been sampled once */
+    boolean awaitFirstSamples(long timeoutMs) throws InterruptedException {
+        return firstSamples.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    String report() {
+        var sb = new StringBuilder();
+        for (var c : channels) {
+            sb.append(c.name).append('=').append(c.runs.get());
+            if (c.failures.get() > 0) {
+                sb.append('/').append(c.failures.get()).append(" failed");
+            }
+            sb.append(' ');
+        }
+        return sb.toString().trim();
+    }
+}
@@ -0,0 +1,133 @@
+package hegemone.sensors;
+
+/* one published frame of readings, primitive fields only so frames can be
+ * refilled and reused instead of boxing every value into a map.
+ *
+ * Spectral channels are in Spectrometer order: F1-F8, NIR, Clear. The
+ * *SampledAt fields are System.currentTimeMillis() of the reading the value
+ * came from, 0 if that sensor hasn't been read yet. station is the
+ * DeviceInventory name of the station the frame is from, null for the one
+ * station of a daemon without an inventory. stale has a STALE_* bit for
+ * each sensor whose reading is older than it should be, the sensor missed
+ * its read budget or failed and the frame carries its last good value.
+ */
+class SensorFrame {
+    static final int CHANNELS = 10;
+    /* JSON names of the spectral channels, same as Spectrometer.spectralData() */
+    static final String[] CHANNEL_NAMES = {
+            "blue_415nm", "blue_445nm", "blue_480nm",
+            "green_515nm", "green_555nm", "green_590nm",
+            "red_630nm", "red_680nm",
+            "nired_910nm", "clear_350nm_1000nm"
+    };
+
+    /* stale bits, one per sensor, in the order of STALE_NAMES */
+    static final int STALE_SOIL = 0x01;
+    static final int STALE_AMBIENT = 0x02;
+    static final int STALE_LUX = 0x04;
+    static final int STALE_SPECTRAL = 0x08;
+    static final String[] STALE_NAMES = {"soil", "ambient_temp", "lux", "spectral"};
+
+    String station;
+    long timestamp;
+    int moisture;
+    double soilTemp;
+    long soilSampledAt;
+    double ambientTemp;
+    long ambientSampledAt;
+    int lux;
+    long luxSampledAt;
+    final int[] spectral = new int[CHANNELS];
+    long spectralSampledAt;
+    /* AGAIN code and integration steps of an auto-ranged spectrum, 0 steps for the fixed range */
+    int spectralGain;
+    long spectralSteps;
+    int stale;
+
+    boolean hasSpectrum() {
+        return spectralSampledAt != 0;
+    }
+
+    boolean hasSpectralRange() {
+        return spectralSteps != 0;
+    }
+
+    /* when the reading of the sensor with stale bit 1 << i was taken, 0 if never */
+    long sampledAt(int i) {
+        return switch (i) {
+            case 0 -> soilSampledAt;
+            case 1 -> ambientSampledAt;
+            case 2 -> luxSampledAt;
+            default -> spectralSampledAt;
+        };
+    }
+
+    /* ms from then to the frame */
+    long age(int i) {
+        return timestamp - sampledAt(i);
+    }
+
+    /* channel i normalised to counts per ms at 1x gain, see Spectrometer.basicCount() */
+    double basicCount(int i) {
+        return Spectrometer.basicCount(spectral[i], spectralGain, spectralSteps);
+    }
+
+    /* relative light quality index, percent of blue, green and red counts.
+       Matches Spectrometer.getRLQI(), which sums by name, so "nired" counts as red */
+    int rlqiBlue() {
+        int total = rlqiTotal();
+        return total == 0 ? 0 : (spectral[0] + spectral[1] + spectral[2]) * 100 / total;
+    }
+
+    int rlqiGreen() {
+        int total = rlqiTotal();
+        return total == 0 ? 0 : (spectral[3] + spectral[4] + spectral[5]) * 100 / total;
+    }
+
+    int rlqiRed() {
+        int total = rlqiTotal();
+        return total == 0 ? 0 : (spectral[6] + spectral[7] + spectral[8]) * 100 / total;
+    }
+
+    private int rlqiTotal() {
+        int total = 0;
+        for (int i = 0; i < 9; i++) {
+            total += spectral[i];
+        }
+        return total;
+    }
+
+    void copyFrom(SensorFrame other) {
+        station = other.station;
+        timestamp = other.timestamp;
+        moisture = other.moisture;
+        soilTemp = other.soilTemp;
+        soilSampledAt = other.soilSampledAt;
+        ambientTemp = other.ambientTemp;
+        ambientSampledAt = other.ambientSampledAt;
+        lux = other.lux;
+        luxSampledAt = other.luxSampledAt;
+        System.arraycopy(other.spectral, 0, spectral, 0, CHANNELS);
+        spectralSampledAt = other.spectralSampledAt;
+        spectralGain = other.spectralGain;
+        spectralSteps = other.spectralSteps;
+        stale = other.stale;
+    }
+
+    void clear() {
+        station = null;
+        timestamp = 0;
+        moisture = 0;
+        soilTemp = 0;
+        soilSampledAt = 0;
+        ambientTemp = 0;
+        ambientSampledAt = 0;
+        lux = 0;
+        luxSampledAt = 0;
+        java.util.Arrays.fill(spectral, 0);
+        spectralSampledAt = 0;
+        spectralGain = 0;
+        spectralSteps = 0;
+        stale = 0;
+    }
+}
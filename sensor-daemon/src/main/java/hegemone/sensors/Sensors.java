@@ -1,79 +1,154 @@
 package hegemone.sensors;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
-import io.helins.linux.i2c.*;
-
-import java.util.Map;
 import java.util.logging.*;
 import java.io.IOException;
 import hegemone.sensors.DeviceTree;
 import hegemone.sensors.Soil;
 import hegemone.sensors.AmbientLight;
 import java.nio.ByteBuffer;
-import java.io.File;
-import java.io.FileReader;
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
+import java.util.concurrent.atomic.LongAdder;
 
+/* the sensors of one station. Without a DeviceInventory that's the one set
+   of boards at their DeviceTree addresses; with one, any board a station
+   doesn't have is null and its readings stay unsampled. */
 class Sensors {
-	private static I2CBuffer writeBuf;
-	private static I2CBuffer readBuf;
-	private static I2CBus i2cbus;
 	private static final long I2C_WAIT = 400l;
+	private final String station;
 	private Soil soilSensor;
 	private AmbientLight lightSensor;
 	private Spectrometer spectralSensor;
-	static {
+	/* DS18B20 on a OneWireBus, null if the station has no probe */
+	private final OneWireBus.Probe temperatureProbe;
+	private volatile int latestMoisture;
+	private volatile double latestSoilTemp;
+	private volatile double latestAmbientTemp;
+	private volatile int latestLux;
+	private volatile long soilSampledAt;
+	private volatile long ambientSampledAt;
+	private volatile long luxSampledAt;
+	/* latest spectrum, copied in and out under its own lock */
+	private final int[] latestFlux = new int[SensorFrame.CHANNELS];
+	private long spectralSampledAt;
+	private int spectralGain;
+	private long spectralSteps;
+	/* continuous measurement samples, null when sweeping */
+	private SpectralRing spectralRing;
+	/* spare for sampleSpectrum(), only touched by the sampling thread */
+	private final int[] fluxScratch = new int[SensorFrame.CHANNELS];
+	/* read durations and errors for Metrics, per station */
+	private static final String READ = "hegemone_sensor_read_seconds";
+	private static final String READ_HELP = "Time to read a sensor";
+	private final LatencyHistogram spectralReads;
+	private final LatencyHistogram moistureReads;
+	private final LatencyHistogram soilTempReads;
+	private final LatencyHistogram lightReads;
+	private final LatencyHistogram probeReads;
+	private final LongAdder probeErrors;
+	private final LongAdder frames;
+	/* ms after which each sensor's reading is stale (SensorFrame.STALE_NAMES order), 0 never,
+	   and frames that carried it stale */
+	private final long[] staleAfter = new long[SensorFrame.STALE_NAMES.length];
+	private final LongAdder[] staleFrames = new LongAdder[SensorFrame.STALE_NAMES.length];
+	private final FrameJsonWriter jsonWriter = new FrameJsonWriter();
+	private final SensorFrame textFrame = new SensorFrame();
+	private static I2CTransport openBus() {
 		try {
-			writeBuf = new I2CBuffer(2);
-			readBuf = new I2CBuffer(4);
-			i2cbus = new I2CBus(DeviceTree.DEFAULT_I2C_BUS);
+			return I2CTransport.open(Settings.I2C_TRANSPORT);
 		} catch (IOException e) {
 			System.err.println("Failed to init i2c bus. Goodbye!");
 			System.exit(1);
+			return null;
+		}
+	}
+	/* AS7341 INT line if configured, null means poll */
+	static InterruptLine openInterrupt(String spec, I2CTransport bus, int address) {
+		if (spec == null) {
+			return null;
+		}
+		try {
+			return InterruptLine.open(spec, bus, address);
+		} catch (IOException e) {
+			System.err.println("Could not open spectrometer interrupt line, polling instead: " + e.getMessage());
+			return null;
 		}
 	}
 	public Sensors() {
-		soilSensor = new Soil(i2cbus);
-		lightSensor = new AmbientLight(i2cbus);
-		spectralSensor = new Spectrometer(i2cbus);
+		this(openBus());
+	}
+	Sensors(I2CTransport bus) {
+		this(bus, new OneWireBus(Settings.W1_BUS).attach(DeviceTree.DS18B20_SERIAL, 0, 0));
+	}
+	Sensors(I2CTransport bus, OneWireBus.Probe probe) {
+		this(null, new Soil(bus), new AmbientLight(bus),
+			new Spectrometer(bus, openInterrupt(Settings.AS7341_INT, bus, DeviceTree.ADAFRUIT_SPECTROMETER)),
+			probe);
+	}
+	Sensors(String station, Soil soil, AmbientLight light, Spectrometer spectrometer, OneWireBus.Probe probe) {
+		this.station = station;
+		soilSensor = soil;
+		lightSensor = light;
+		spectralSensor = spectrometer;
+		temperatureProbe = probe;
+		var label = station == null ? "" : station;
+		/* only the sensors the station has, the others are never read */
+		spectralReads = spectrometer == null ? null : Metrics.histogram(READ, READ_HELP, "station", label, "sensor", "spectral");
+		moistureReads = soil == null ? null : Metrics.histogram(READ, READ_HELP, "station", label, "sensor", "moisture");
+		soilTempReads = soil == null ? null : Metrics.histogram(READ, READ_HELP, "station", label, "sensor", "soil_temp");
+		lightReads = light == null ? null : Metrics.histogram(READ, READ_HELP, "station", label, "sensor", "light");
+		probeReads = probe == null ? null : Metrics.histogram(READ, READ_HELP, "station", label, "sensor", "ds18b20");
+		probeErrors = probe == null ? null
+				: Metrics.counter("hegemone_sensor_errors_total", "Sensor reads that failed", "station", label, "sensor", "ds18b20");
+		frames = Metrics.counter("hegemone_frames_total", "Frames published", "station", label);
+		boolean[] present = {soil != null, probe != null, light != null, spectrometer != null};
+		for (int i = 0; i < present.length; i++) {
+			if (present[i]) {
+				staleFrames[i] = Metrics.counter("hegemone_stale_frames_total", "Frames that carried a sensor's last good reading",
+						"station", label, "sensor", SensorFrame.STALE_NAMES[i]);
+			}
+		}
+		if (spectrometer != null) {
+			Metrics.counter("hegemone_sensor_errors_total", "Sensor reads that failed", spectrometer::timeouts, "station", label, "sensor", "spectral");
+		}
+		if (light != null) {
+			Metrics.counter("hegemone_sensor_errors_total", "Sensor reads that failed", light::failures, "station", label, "sensor", "light");
+		}
+		if (soil != null) {
+			Metrics.counter("hegemone_sensor_errors_total", "Sensor reads that failed", soil::failures, "station", label, "sensor", "moisture");
+			Metrics.counter("hegemone_soil_retries_total", "Soil moisture reads repeated", soil::retries, "station", label);
+		}
 	//	lightSensor.configure();
-		spectralSensor.configure();
+		/* the spectrometer configures itself when first sampled */
+		if (spectralSensor != null) {
+			spectralSensor.setAutoRange(Settings.SPECTRAL_AUTORANGE);
+		}
+	}
+	public String getStation() {
+		return station;
+	}
+	public Soil getSoilSensor() {
+		return soilSensor;
 	}
 	public Spectrometer getSpectralSensor() {
 			return spectralSensor;
 	};
+	public boolean hasSoilSensor() {
+		return soilSensor != null;
+	}
+	public boolean hasLightSensor() {
+		return lightSensor != null;
+	}
+	public boolean hasSpectralSensor() {
+		return spectralSensor != null;
+	}
+	public boolean hasTemperatureProbe() {
+		return temperatureProbe != null;
+	}
 	public int getWhite() {
 		return lightSensor.getWhiteLight();
 	}
-	public double getTemperature() {
-		double ret = 0;
-		try {
-			var sensor = new File(DeviceTree.DEFAULT_W1_BUS, DeviceTree.DS18B20_SENSOR);
-			/* acquire */
-			try (BufferedReader bufreader = new BufferedReader(new FileReader(sensor))) {
-				String s = bufreader.readLine();
-				int i = -1;
-				while (s != null) {
-					i = s.indexOf("t=");
-					System.out.println(s);
-					System.out.println(i);
-					if (i >= 0) {
-						break;
-					}
-					s = bufreader.readLine();
-				}
-				if (i < 0) {
-					throw new IOException("Could not read from sensor");
-				}
-				ret = Integer.parseInt(s.substring(i + 2)) / 1000f;
-			}
-		} catch (IOException e) {
-			System.err.println("Could not access DS18B20 temperature sensor.");
-		}
-		return ret;
+	/* the probe's latest conversion, started by its OneWireBus or else by this read */
+	public double getTemperature() throws IOException {
+		return temperatureProbe.read() / 1000.0;
 	}
 
 	public int getSoilMoisture() {
@@ -83,18 +158,169 @@ class Sensors {
 		return soilSensor.getTemperature();
 	}
 
+	/* the sensors are read every so many ms, readings older than that and
+	   hegemone.read.budget go out stale; 0 for a sensor that is never stale */
+	void expectEvery(long soilMs, long ambientMs, long luxMs, long spectralMs) {
+		long[] periods = {soilMs, ambientMs, luxMs, spectralMs};
+		for (int i = 0; i < periods.length; i++) {
+			staleAfter[i] = periods[i] <= 0 ? 0 : periods[i] + Settings.READ_BUDGET;
+		}
+	}
+
+	/* sample*() read one device and keep the result as its latest value,
+	   SamplingScheduler calls them at each sensor's own cadence. A read that
+	   fails keeps the last good value, which goes stale as it ages */
+	public void sampleSoil() {
+		if (soilSensor == null) {
+			return;
+		}
+		long start = System.nanoTime();
+		getSoilMoisture();
+		long read = System.nanoTime();
+		getSoilTemperature();
+		updateSoil(read - start, System.nanoTime() - read);
+	}
+	/* soil read elsewhere, e.g. by DeviceInventory.Bus, whose moisture
+	   and temperature conversions took the nanos given. The time only
+	   moves on if both readings came in */
+	void updateSoil(long moistureNanos, long temperatureNanos) {
+		if (soilSensor.moistureValid()) {
+			latestMoisture = soilSensor.moisture();
+		}
+		if (soilSensor.temperatureValid()) {
+			latestSoilTemp = soilSensor.temperature();
+		}
+		moistureReads.record(moistureNanos);
+		soilTempReads.record(temperatureNanos);
+		if (soilSensor.moistureValid() && soilSensor.temperatureValid()) {
+			soilSampledAt = System.currentTimeMillis();
+		}
+	}
+	public void sampleAmbientLight() {
+		if (lightSensor == null) {
+			return;
+		}
+		long start = System.nanoTime();
+		int lux = getWhite();
+		lightReads.record(System.nanoTime() - start);
+		if (lightSensor.whiteValid()) {
+			latestLux = lux;
+			luxSampledAt = System.currentTimeMillis();
+		}
+	}
+	public void sampleSpectrum() {
+		if (spectralSensor == null) {
+			return;
+		}
+		long start = System.nanoTime();
+		if (spectralSensor.measure(fluxScratch)) {
+			updateSpectrum(fluxScratch);
+		}
+		recordSpectralSweep(System.nanoTime() - start);
+	}
+	/* spectrum acquired elsewhere, e.g. by AcquisitionPipeline. When
+	   auto-ranging, frames also carry the range our spectrometer last
+	   completed a sweep at; fixed range counts are comparable as they are */
+	public void updateSpectrum(int[] flux) {
+		boolean ranged = spectralSensor.autoRanging();
+		int gain = ranged ? spectralSensor.gainCode() : 0;
+		long steps = ranged ? spectralSensor.integrationSteps() : 0;
+		synchronized (latestFlux) {
+			System.arraycopy(flux, 0, latestFlux, 0, SensorFrame.CHANNELS);
+			spectralSampledAt = System.currentTimeMillis();
+			spectralGain = gain;
+			spectralSteps = steps;
+		}
+	}
+	/* a spectrum read elsewhere took nanos, from starting F1-F6 to its last channel */
+	void recordSpectralSweep(long nanos) {
+		spectralReads.record(nanos);
+	}
+	/* switch the spectrometer to measuring nonstop, drainSpectrum() then
+	   collects the samples and keeps the newest as the latest spectrum */
+	public void startContinuous(boolean visible, int atime, int astep) {
+		if (spectralSensor == null) {
+			return;
+		}
+		spectralSensor.startContinuous(visible, atime, astep);
+		if (spectralSensor.continuous()) {
+			spectralRing = new SpectralRing(Settings.FIFO_RING, spectralSensor.fifoChannels());
+		}
+	}
+	public SpectralRing getSpectralRing() {
+		return spectralRing;
+	}
+	public void drainSpectrum() {
+		if (spectralRing == null) {
+			return;
+		}
+		if (spectralSensor.drainFifo(spectralRing) == 0) {
+			return;
+		}
+		synchronized (latestFlux) {
+			spectralRing.latest(latestFlux, spectralSensor.fifoOffset());
+			spectralSampledAt = System.currentTimeMillis();
+		}
+	}
+	public void sampleTemperature() {
+		if (temperatureProbe == null) {
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			latestAmbientTemp = getTemperature();
+			ambientSampledAt = System.currentTimeMillis();
+		} catch (IOException e) {
+			probeErrors.increment();
+			System.err.println("Could not access DS18B20 temperature sensor.");
+		}
+		probeReads.record(System.nanoTime() - start);
+	}
+	public void sampleAll() {
+		sampleSpectrum();
+		sampleSoil();
+		sampleTemperature();
+		sampleAmbientLight();
+	}
+
+	/* fill frame with the latest value of every reading, allocates nothing */
+	public void latestFrame(SensorFrame frame) {
+		frames.increment();
+		frame.station = station;
+		frame.timestamp = System.currentTimeMillis();
+		frame.moisture = latestMoisture;
+		frame.soilTemp = latestSoilTemp;
+		frame.soilSampledAt = soilSampledAt;
+		frame.ambientTemp = latestAmbientTemp;
+		frame.ambientSampledAt = ambientSampledAt;
+		frame.lux = latestLux;
+		frame.luxSampledAt = luxSampledAt;
+		synchronized (latestFlux) {
+			System.arraycopy(latestFlux, 0, frame.spectral, 0, SensorFrame.CHANNELS);
+			frame.spectralSampledAt = spectralSampledAt;
+			frame.spectralGain = spectralGain;
+			frame.spectralSteps = spectralSteps;
+		}
+		frame.stale = 0;
+		for (int i = 0; i < staleAfter.length; i++) {
+			/* a sensor never read has nothing to be stale */
+			if (staleAfter[i] > 0 && frame.sampledAt(i) != 0 && frame.age(i) > staleAfter[i] && staleFrames[i] != null) {
+				frame.stale |= 1 << i;
+				staleFrames[i].increment();
+			}
+		}
+	}
+
+	/* latest frame as compact JSON text */
+	public synchronized String latestToJSON() {
+		latestFrame(textFrame);
+		return jsonWriter.toJSON(textFrame);
+	}
+
+	/* read everything now, then frame it */
 	public String sensorsToJSON() {
-		var spectralData = spectralSensor.spectralData();
-		var resultMap = Map.of(
-				"moisture", getSoilMoisture(),
-				"soil_temp", getSoilTemperature(),
-				"ambient_temp", getTemperature(),
-				"spectral_data", spectralData,
-				"lux", getWhite(),
-				"rlqi", spectralSensor.getRLQI(spectralData)
-		);
-		Gson gson = new GsonBuilder().setPrettyPrinting().create();
-		return gson.toJson(resultMap);
+		sampleAll();
+		return latestToJSON();
 	}
 	public int[] getSpectralMeasurement() {
 		return spectralSensor.getPhotonFlux();
@@ -0,0 +1,93 @@
+package hegemone.sensors;
+
+/* runtime settings, read once from system properties (java -Dhegemone.x=y).
+   Default hardware addresses stay in DeviceTree, stations in DeviceInventory. */
+class Settings {
+	/* /dev/i2c-N, "sim" or "replay:<ftrace log>" (see I2CTransport) */
+	public static final String I2C_TRANSPORT = System.getProperty("hegemone.i2c", DeviceTree.DEFAULT_I2C_BUS);
+	/* trace replay pace, 1.0 is as captured, 0 is unthrottled */
+	public static final double REPLAY_SPEED = Double.parseDouble(System.getProperty("hegemone.i2c.replay.speed", "1.0"));
+	public static final boolean REPLAY_LOOP = Boolean.getBoolean("hegemone.i2c.replay.loop");
+	/* stations, buses and muxes file (see DeviceInventory), unset for the one DeviceTree station on I2C_TRANSPORT */
+	public static final String INVENTORY = System.getProperty("hegemone.inventory");
+	/* sysfs directory of the 1-Wire bus master */
+	public static final String W1_BUS = System.getProperty("hegemone.w1", DeviceTree.DEFAULT_W1_BUS);
+	/* DS18B20 resolution in bits (9 to 12) and conversion time in ms written to each probe when attached,
+	   0 leaves what the probe has; an inventory line can set its own with res= and conv= (see OneWireBus) */
+	public static final int W1_RESOLUTION = Integer.getInteger("hegemone.w1.resolution", 0);
+	public static final int W1_CONV_TIME = Integer.getInteger("hegemone.w1.conv_time", 0);
+	/* GPIO carrying the AS7341 INT pin, "/dev/gpiochipN:line" or "sim", unset to poll STATUS */
+	public static final String AS7341_INT = System.getProperty("hegemone.as7341.int");
+	/* pick AS7341 gain and integration time from the light (see Spectrometer.nextRange), off keeps 100 ms at 4x */
+	public static final boolean SPECTRAL_AUTORANGE = Boolean.getBoolean("hegemone.as7341.autorange");
+	/* "scheduled": every sensor at its own rate (SamplingScheduler),
+	   "pipelined": all sensors each frame, overlapped (AcquisitionPipeline),
+	   "continuous": as scheduled, but spectrometers measure nonstop into their FIFO */
+	public static final String ACQUISITION = System.getProperty("hegemone.acquisition", "scheduled");
+	/* continuous spectral measurement (see Spectrometer.startContinuous): "f7f8nirclear" or "f1f6",
+	   ATIME and ASTEP of each sample, ms between FIFO polls and samples kept per spectrometer */
+	public static final boolean FIFO_VISIBLE = "f1f6".equals(System.getProperty("hegemone.as7341.fifo.channels", "f7f8nirclear"));
+	public static final int FIFO_ATIME = Integer.getInteger("hegemone.as7341.fifo.atime", 0);
+	public static final int FIFO_ASTEP = Integer.getInteger("hegemone.as7341.fifo.astep", 999);
+	public static final long FIFO_DRAIN = Long.getLong("hegemone.as7341.fifo.drain", 20);
+	public static final int FIFO_RING = Integer.getInteger("hegemone.as7341.fifo.ring", 4096);
+	/* sampling cadence of each sensor in ms, and its offset from start (see SamplingScheduler) */
+	public static final long SOIL_PERIOD = Long.getLong("hegemone.sample.soil.period", 60_000);
+	public static final long SOIL_PHASE = Long.getLong("hegemone.sample.soil.phase", 0);
+	public static final long LIGHT_PERIOD = Long.getLong("hegemone.sample.light.period", 1_000);
+	public static final long LIGHT_PHASE = Long.getLong("hegemone.sample.light.phase", 0);
+	public static final long SPECTRAL_PERIOD = Long.getLong("hegemone.sample.spectral.period", 2_000);
+	public static final long SPECTRAL_PHASE = Long.getLong("hegemone.sample.spectral.phase", 0);
+	public static final long W1_PERIOD = Long.getLong("hegemone.sample.w1.period", 10_000);
+	public static final long W1_PHASE = Long.getLong("hegemone.sample.w1.phase", 0);
+	/* ms a sensor read may run past the time it should take (e.g. the AS7341 integration) before
+	   it is given up; a reading older than its sampling period plus this is flagged stale in frames */
+	public static final long READ_BUDGET = Long.getLong("hegemone.read.budget", 1_000);
+	/* one frame of latest values is published every FRAME_PERIOD ms */
+	public static final long FRAME_PERIOD = Long.getLong("hegemone.frame.period", 1_000);
+	/* exit after publishing this many frames, 0 runs until stopped (the image build's training run) */
+	public static final long FRAMES = Long.getLong("hegemone.frames", 0);
+	/* summarise frames over windows instead of submitting each (see WindowAggregator): comma separated
+	   "length" tumbling or "length/hop" sliding windows in ms, e.g. "60000,600000/60000", empty for raw frames.
+	   With windows, WINDOW_RAW submits the frames as well */
+	public static final String WINDOWS = System.getProperty("hegemone.windows", "");
+	public static final boolean WINDOW_RAW = Boolean.getBoolean("hegemone.window.raw");
+	/* only send a frame once a field moved past its deadband (see DeadbandFilter), comma separated
+	   field=band with band absolute or a percentage, e.g. "moisture=5,soil_temp=0.2,lux=5%,spectral=5%",
+	   empty sends every frame. A station's frame goes out regardless every DEADBAND_HEARTBEAT ms */
+	public static final String DEADBAND = System.getProperty("hegemone.deadband", "");
+	public static final long DEADBAND_HEARTBEAT = Long.getLong("hegemone.deadband.heartbeat", 300_000);
+	/* hours of readings kept in memory (see TimeSeriesStore) and served on QUERY_PORT (see QueryServer), 0 for no server.
+	   HISTORY_HOURS 0 serves only the archive */
+	public static final double HISTORY_HOURS = Double.parseDouble(System.getProperty("hegemone.history.hours", "24"));
+	public static final int QUERY_PORT = Integer.getInteger("hegemone.query.port", 0);
+	/* every frame compressed into daily files in ARCHIVE_DIR (see FrameArchive), empty for none; blocks of
+	   ARCHIVE_BLOCK frames are written at a time, days older than ARCHIVE_DAYS deleted (0 keeps them all) */
+	public static final String ARCHIVE_DIR = System.getProperty("hegemone.archive", "");
+	public static final int ARCHIVE_BLOCK = Integer.getInteger("hegemone.archive.block", 600);
+	public static final int ARCHIVE_DAYS = Integer.getInteger("hegemone.archive.days", 366);
+	/* Prometheus metrics on GET /metrics (see Metrics), 0 for none */
+	public static final int METRICS_PORT = Integer.getInteger("hegemone.metrics.port", 0);
+	/* encoding of frames posted to the collector, "json" or "binary" (see FrameBinaryWriter) */
+	public static final FrameFormat FRAME_FORMAT = FrameFormat.forName(System.getProperty("hegemone.frame.format", "json"));
+	/* frames each consumer may fall behind by (a power of two), and what happens beyond that:
+	   "drop-oldest", "drop-newest" or "block" the acquisition loop (see ConsumerRing) */
+	public static final int SUBMIT_RING = Integer.getInteger("hegemone.submit.ring", 64);
+	public static final ConsumerRing.OverflowPolicy SUBMIT_OVERFLOW =
+			ConsumerRing.OverflowPolicy.forName(System.getProperty("hegemone.submit.overflow", "drop-oldest"));
+	/* collector posts (see HTTPConsumer): a batch goes out at HTTP_BATCH_FRAMES frames or when
+	   its oldest frame is HTTP_BATCH_DELAY ms old, at most HTTP_QUEUE frames wait */
+	public static final int HTTP_BATCH_FRAMES = Integer.getInteger("hegemone.http.batch.frames", 10);
+	public static final long HTTP_BATCH_DELAY = Long.getLong("hegemone.http.batch.delay", 10_000);
+	public static final int HTTP_QUEUE = Integer.getInteger("hegemone.http.queue", 3_600);
+	public static final boolean HTTP_GZIP = Boolean.getBoolean("hegemone.http.gzip");
+	/* failed posts are retried HTTP_RETRIES times, backing off from HTTP_BACKOFF up to HTTP_MAX_BACKOFF ms */
+	public static final int HTTP_RETRIES = Integer.getInteger("hegemone.http.retries", 5);
+	public static final long HTTP_BACKOFF = Long.getLong("hegemone.http.backoff", 1_000);
+	public static final long HTTP_MAX_BACKOFF = Long.getLong("hegemone.http.backoff.max", 60_000);
+	/* frames the collector couldn't take are kept here (see FrameSpool), empty to not spool.
+	   The file is SPOOL_SEGMENTS x SPOOL_SEGMENT_SIZE bytes, about 45 bytes a frame */
+	public static final String SPOOL_PATH = System.getProperty("hegemone.spool", "/var/log/hegemone-data.dmp");
+	public static final int SPOOL_SEGMENTS = Integer.getInteger("hegemone.spool.segments", 16);
+	public static final int SPOOL_SEGMENT_SIZE = Integer.getInteger("hegemone.spool.segment.size", 1 << 20);
+}
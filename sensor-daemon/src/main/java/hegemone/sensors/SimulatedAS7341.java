@@ -0,0 +1,312 @@
+package hegemone.sensors;
+
+/* register level model of the AS7341 as driven by Spectrometer.
+ *
+ * Covers what we use: PON/SP_EN/SMUXEN in ENABLE, the SMUX RAM write
+ * command, ATIME/ASTEP/AGAIN, STATUS2 AVALID and the six ADC data
+ * registers, plus the SMUX and spectral interrupts for SimulatedInterruptLine.
+ * Back to back measurements push the ADCs in FIFO_MAP to the 256 byte FIFO,
+ * read through FDATA (the pointer stays there) with FIFO_LVL, FIFO_OV in
+ * STATUS6 and FIFO_CLR in CONTROL. setFlicker() modulates the light.
+ * Counts are derived from a fixed light level per filter, the
+ * SMUX pixel mapping, gain and integration time, plus a little noise.
+ */
+class SimulatedAS7341 implements SimulatedDevice {
+    private static final int ENABLE_REG = 0x80;
+    private static final int ATIME_REG = 0x81;
+    private static final int STATUS_REG = 0x93;
+    private static final int ASTATUS_REG = 0x94;
+    private static final int CH0_DATA_L = 0x95;
+    private static final int STATUS2_REG = 0xA3;
+    private static final int STATUS5_REG = 0xA6;
+    private static final int GAIN_REG = 0xAA;
+    private static final int CFG6_REG = 0xAF;
+    private static final int CFG9_REG = 0xB2;
+    private static final int INTENAB_REG = 0xF9;
+    private static final int STATUS6_REG = 0xA7;
+    private static final int CONTROL_REG = 0xFA;
+    private static final int FIFO_MAP_REG = 0xFC;
+    private static final int FIFO_LVL_REG = 0xFD;
+    private static final int FDATA_REG = 0xFE;
+    private static final int FIFO_CLR = 0x02;
+    private static final int FIFO_OV = 0x80;
+    private static final int FIFO_SIZE = 256;
+    /* measurements a read catches up on at most, older ones are lost as overflow */
+    private static final int MAX_CATCH_UP = 1024;
+    private static final int ASTEP_LSB_REG = 0xCA;
+    private static final int ASTEP_MSB_REG = 0xCB;
+    private static final int PON = 0x01;
+    private static final int SP_EN = 0x02;
+    private static final int SMUXEN = 0x10;
+    private static final int SMUX_CMD_WRITE = 0x10;
+    private static final int AVALID = 0x40;
+    private static final int ASAT_DIGITAL = 0x10;
+    private static final int ASAT_STATUS = 0x80;
+    private static final int SINT_SMUX = 0x04;
+    /* STATUS bits, INTENAB enables and CFG9 SIEN_SMUX */
+    private static final int SINT = 0x01;
+    private static final int AINT = 0x08;
+    private static final int SIEN = 0x01;
+    private static final int SP_IEN = 0x08;
+    private static final int SIEN_SMUX = 0x10;
+    private static final int SMUX_RAM_SIZE = 20;
+    private static final double ASTEP_US = 2.78;
+    /* pixel id -> filter index F1..F8=0..7, NIR=8, Clear=9 */
+    private static final int[] PIXEL_FILTER = new int[SMUX_RAM_SIZE * 2];
+    /* counts per pixel per ms of integration at 1x gain */
+    private static final double[] DEFAULT_LIGHT = {0.6, 1.2, 1.6, 2.0, 2.6, 3.0, 3.2, 1.4, 1.0, 5.0};
+
+    static {
+        java.util.Arrays.fill(PIXEL_FILTER, -1);
+        int[][] pixels = {{2, 32}, {10, 25}, {1, 31}, {11, 26}, {13, 19},
+                {8, 29}, {14, 20}, {7, 28}, {38}, {17, 35}};
+        for (int f = 0; f < pixels.length; f++) {
+            for (int p : pixels[f]) {
+                PIXEL_FILTER[p] = f;
+            }
+        }
+    }
+
+    private final boolean realTime;
+    private final int[] regs = new int[256];
+    private final int[] smuxRam = new int[SMUX_RAM_SIZE];
+    private final int[] smux = new int[SMUX_RAM_SIZE];
+    private final int[] adc = new int[6];
+    private final double[] light = DEFAULT_LIGHT.clone();
+    private final byte[] fifo = new byte[FIFO_SIZE];
+    private int fifoHead;
+    private int fifoCount;
+    private double flickerHz;
+    private double flickerDepth;
+    private int pointer;
+    private long measurementStart;
+    private boolean measuring;
+    private long interruptEdges;
+    private long seed = 0x2545F4914F6CDD1DL;
+
+    SimulatedAS7341(boolean realTime) {
+        this.realTime = realTime;
+    }
+
+    /* set the per pixel light level for one filter, counts per ms at 1x gain */
+    synchronized void setLight(int filter, double countsPerMs) {
+        light[filter] = countsPerMs;
+    }
+
+    /* light goes up and down by depth (0..1) around its level at hz, like a PWM'd lamp */
+    synchronized void setFlicker(double hz, double depth) {
+        flickerHz = hz;
+        flickerDepth = depth;
+    }
+
+    @Override
+    public synchronized void write(byte[] data, int length) {
+        if (length == 0) {
+            return;
+        }
+        pointer = data[0] & 0xFF;
+        for (int i = 1; i < length; i++) {
+            store(pointer, data[i] & 0xFF);
+            pointer = (pointer + 1) & 0xFF;
+        }
+    }
+
+    @Override
+    public synchronized void read(byte[] data, int length) {
+        update();
+        for (int i = 0; i < length; i++) {
+            if (pointer >= FDATA_REG) {
+                data[i] = popFifo();
+                continue;
+            }
+            data[i] = (byte) load(pointer);
+            pointer = (pointer + 1) & 0xFF;
+        }
+    }
+
+    private byte popFifo() {
+        if (fifoCount == 0) {
+            return 0;
+        }
+        byte b = fifo[fifoHead];
+        fifoHead = (fifoHead + 1) % FIFO_SIZE;
+        fifoCount--;
+        return b;
+    }
+
+    private void pushFifo(int value) {
+        if (fifoCount + 2 > FIFO_SIZE) {
+            regs[STATUS6_REG] |= FIFO_OV;
+            return;
+        }
+        int tail = (fifoHead + fifoCount) % FIFO_SIZE;
+        fifo[tail] = (byte) value;
+        fifo[(tail + 1) % FIFO_SIZE] = (byte) (value >> 8);
+        fifoCount += 2;
+    }
+
+    private void store(int reg, int value) {
+        if (reg < SMUX_RAM_SIZE) {
+            if ((regs[CFG6_REG] & 0x18) == SMUX_CMD_WRITE) {
+                smuxRam[reg] = value;
+            }
+            return;
+        }
+        if (reg == ENABLE_REG) {
+            enable(value);
+            return;
+        }
+        if (reg == STATUS_REG) {
+            /* write one to clear */
+            regs[STATUS_REG] &= ~value;
+            return;
+        }
+        if (reg == CONTROL_REG) {
+            if ((value & FIFO_CLR) != 0) {
+                fifoHead = 0;
+                fifoCount = 0;
+                regs[STATUS6_REG] &= ~FIFO_OV;
+            }
+            return;
+        }
+        regs[reg] = value;
+    }
+
+    private int load(int reg) {
+        if (reg >= CH0_DATA_L && reg < CH0_DATA_L + 12) {
+            int ch = (reg - CH0_DATA_L) / 2;
+            return ((reg - CH0_DATA_L) % 2 == 0) ? adc[ch] & 0xFF : (adc[ch] >> 8) & 0xFF;
+        }
+        if (reg == FIFO_LVL_REG) {
+            return fifoCount / 2;
+        }
+        return regs[reg];
+    }
+
+    private void enable(int value) {
+        int old = regs[ENABLE_REG];
+        if ((value & PON) == 0) {
+            regs[ENABLE_REG] = 0;
+            measuring = false;
+            return;
+        }
+        if ((value & SMUXEN) != 0 && (regs[CFG6_REG] & 0x18) == SMUX_CMD_WRITE) {
+            System.arraycopy(smuxRam, 0, smux, 0, SMUX_RAM_SIZE);
+            regs[STATUS5_REG] |= SINT_SMUX;
+            if ((regs[CFG9_REG] & SIEN_SMUX) != 0 && (regs[INTENAB_REG] & SIEN) != 0) {
+                raise(SINT);
+            }
+        }
+        /* SMUXEN self clears once the chain is loaded */
+        regs[ENABLE_REG] = value & ~SMUXEN;
+        if ((value & SP_EN) != 0 && (old & SP_EN) == 0) {
+            measuring = true;
+            measurementStart = System.nanoTime();
+            regs[STATUS2_REG] &= ~(AVALID | ASAT_DIGITAL);
+        } else if ((value & SP_EN) == 0) {
+            measuring = false;
+        }
+    }
+
+    long integrationNanos() {
+        long atime = regs[ATIME_REG];
+        long astep = regs[ASTEP_LSB_REG] | (regs[ASTEP_MSB_REG] << 8);
+        return (long) ((atime + 1) * (astep + 1) * ASTEP_US * 1000);
+    }
+
+    private double gain() {
+        int again = regs[GAIN_REG] & 0x1F;
+        return again == 0 ? 0.5 : (1 << (again - 1));
+    }
+
+    /* complete every integration whose time is up */
+    private void update() {
+        if (!measuring) {
+            return;
+        }
+        long tint = integrationNanos();
+        if (!realTime) {
+            /* without a clock the first result just stays latched */
+            complete(tint, System.nanoTime());
+            measuring = false;
+            return;
+        }
+        long now = System.nanoTime();
+        long behind = (now - measurementStart) / tint;
+        if (behind > MAX_CATCH_UP) {
+            measurementStart += (behind - MAX_CATCH_UP) * tint;
+        }
+        /* SPM keeps measuring back to back while SP_EN is set */
+        while (now - measurementStart >= tint) {
+            complete(tint, measurementStart + tint / 2);
+            measurementStart += tint;
+        }
+    }
+
+    private void complete(long tint, long midpointNanos) {
+        long atime = regs[ATIME_REG];
+        long astep = regs[ASTEP_LSB_REG] | (regs[ASTEP_MSB_REG] << 8);
+        long fullScale = Math.min(65535, (atime + 1) * (astep + 1));
+        double scale = gain() * tint / 1e6;
+        if (flickerDepth > 0) {
+            scale *= 1.0 + flickerDepth * Math.sin(2 * Math.PI * flickerHz * midpointNanos / 1e9);
+        }
+        int status2 = AVALID;
+        for (int ch = 0; ch < adc.length; ch++) {
+            double sum = 0;
+            for (int p = 0; p < PIXEL_FILTER.length; p++) {
+                int nibble = (p & 1) == 0 ? smux[p >> 1] & 0x07 : (smux[p >> 1] >> 4) & 0x07;
+                if (nibble == ch + 1 && PIXEL_FILTER[p] >= 0) {
+                    sum += light[PIXEL_FILTER[p]];
+                }
+            }
+            long counts = Math.round(sum * scale * (1.0 + noise()));
+            if (counts > fullScale) {
+                counts = fullScale;
+                status2 |= ASAT_DIGITAL;
+            }
+            adc[ch] = (int) Math.max(0, counts);
+        }
+        /* ASAT_STATUS and the gain the data was taken with */
+        regs[ASTATUS_REG] = ((status2 & ASAT_DIGITAL) != 0 ? ASAT_STATUS : 0) | (regs[GAIN_REG] & 0x0F);
+        regs[STATUS2_REG] = status2;
+        /* FIFO_MAP bit 0 is ASTATUS, which we don't model, bits 1-6 ADC0-5 */
+        for (int ch = 0; ch < adc.length; ch++) {
+            if ((regs[FIFO_MAP_REG] & (2 << ch)) != 0) {
+                pushFifo(adc[ch]);
+            }
+        }
+        if ((regs[INTENAB_REG] & SP_IEN) != 0) {
+            raise(AINT);
+        }
+    }
+
+    /* INT is low while any STATUS interrupt bit is set, count high to low edges */
+    private void raise(int bit) {
+        if ((regs[STATUS_REG] & (SINT | AINT)) == 0) {
+            interruptEdges++;
+        }
+        regs[STATUS_REG] |= bit;
+    }
+
+    synchronized long interruptEdges() {
+        update();
+        return interruptEdges;
+    }
+
+    /* System.nanoTime() at which the next interrupt is due, Long.MAX_VALUE if none is pending */
+    synchronized long interruptDueAt() {
+        if (measuring && (regs[INTENAB_REG] & SP_IEN) != 0) {
+            return realTime ? measurementStart + integrationNanos() : System.nanoTime();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /* +-1% from a xorshift, no allocation */
+    private double noise() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 7;
+        seed ^= seed << 17;
+        return ((seed >>> 11) * 0x1.0p-53 - 0.5) * 0.02;
+    }
+}
@@ -0,0 +1,9 @@
+package hegemone.sensors;
+
+/* an I2C slave model for SimulatedI2CTransport.
+   A combined write/read transaction arrives as write() followed by read(). */
+interface SimulatedDevice {
+    void write(byte[] data, int length);
+
+    void read(byte[] data, int length);
+}
@@ -0,0 +1,122 @@
+package hegemone.sensors;
+
+import java.io.IOException;
+
+/* I2CTransport backed by in-memory device models.
+ *
+ * Lets the acquisition loop run, and be profiled, on any box without the
+ * boards attached. Addresses without a model NACK like an empty bus would.
+ * Stations behind a SimulatedTCA9548A are reached when the bus itself has
+ * nothing at the address, so don't mix both for the same boards. */
+class SimulatedI2CTransport implements I2CTransport {
+    private final SimulatedDevice[] devices = new SimulatedDevice[128];
+    private long transactions;
+    private final byte[] pointer = new byte[1];
+
+    /* the three adafruit boards at their DeviceTree addresses.
+       realTime=false completes every conversion immediately, for benchmarks */
+    static SimulatedI2CTransport withDefaultDevices(boolean realTime) {
+        var sim = new SimulatedI2CTransport();
+        sim.attach(DeviceTree.ADAFRUIT_SPECTROMETER, new SimulatedAS7341(realTime));
+        sim.attach(DeviceTree.ADAFRUIT_AMBIENT_LIGHT_SENSOR, new SimulatedVEML7700());
+        sim.attach(DeviceTree.ADAFRUIT_SOIL_SENSOR, new SimulatedSeesaw(realTime));
+        return sim;
+    }
+
+    /* no devices on the bus itself, for stations behind muxes */
+    static SimulatedI2CTransport empty() {
+        return new SimulatedI2CTransport();
+    }
+
+    /* the three boards behind channel of a mux at muxAddress, the mux is added on first use */
+    synchronized SimulatedTCA9548A attachMuxed(int muxAddress, int channel, boolean realTime) {
+        var mux = devices[muxAddress & 0x7F];
+        if (!(mux instanceof SimulatedTCA9548A)) {
+            mux = new SimulatedTCA9548A();
+            attach(muxAddress, mux);
+        }
+        var tca = (SimulatedTCA9548A) mux;
+        if (tca.device(channel, DeviceTree.ADAFRUIT_SPECTROMETER) == null) {
+            tca.attach(channel, DeviceTree.ADAFRUIT_SPECTROMETER, new SimulatedAS7341(realTime));
+            tca.attach(channel, DeviceTree.ADAFRUIT_AMBIENT_LIGHT_SENSOR, new SimulatedVEML7700());
+            tca.attach(channel, DeviceTree.ADAFRUIT_SOIL_SENSOR, new SimulatedSeesaw(realTime));
+        }
+        return tca;
+    }
+
+    /* the model answering at address on bus, which may be a mux channel of a simulated bus */
+    static SimulatedDevice find(I2CTransport bus, int address) {
+        bus = InstrumentedI2CTransport.unwrap(bus);
+        if (bus instanceof SimulatedI2CTransport) {
+            return ((SimulatedI2CTransport) bus).device(address);
+        }
+        if (bus instanceof MuxedI2CTransport) {
+            var channel = (MuxedI2CTransport) bus;
+            var mux = find(channel.mux().upstream(), channel.mux().address());
+            if (mux instanceof SimulatedTCA9548A) {
+                return ((SimulatedTCA9548A) mux).device(channel.channel(), address);
+            }
+        }
+        return null;
+    }
+
+    synchronized void attach(int address, SimulatedDevice device) {
+        devices[address & 0x7F] = device;
+    }
+
+    synchronized SimulatedDevice device(int address) {
+        return devices[address & 0x7F];
+    }
+
+    synchronized long transactions() {
+        return transactions;
+    }
+
+    @Override
+    public synchronized void write(int address, byte[] data, int length) throws IOException {
+        transactions++;
+        target(address).write(data, length);
+    }
+
+    @Override
+    public synchronized void read(int address, byte[] data, int length) throws IOException {
+        transactions++;
+        target(address).read(data, length);
+    }
+
+    @Override
+    public synchronized void writeRead(int address, byte[] out, int outLength, byte[] in, int inLength) throws IOException {
+        transactions++;
+        var dev = target(address);
+        dev.write(out, outLength);
+        dev.read(in, inLength);
+    }
+
+    @Override
+    public synchronized void readRegisters(int address, int register, byte[] data, int length) throws IOException {
+        pointer[0] = (byte) register;
+        writeRead(address, pointer, 1, data, length);
+    }
+
+    private SimulatedDevice target(int address) throws IOException {
+        var dev = devices[address & 0x7F];
+        for (int i = 0; dev == null && i < devices.length; i++) {
+            if (devices[i] instanceof SimulatedTCA9548A) {
+                dev = ((SimulatedTCA9548A) devices[i]).selected(address);
+            }
+        }
+        if (dev == null) {
+            throw new IOException("No device at 0x" + Integer.toHexString(address) + " (simulated NACK)");
+        }
+        return dev;
+    }
+
+    @Override
+    public String name() {
+        return SIMULATED;
+    }
+
+    @Override
+    public void close() {
+    }
+}
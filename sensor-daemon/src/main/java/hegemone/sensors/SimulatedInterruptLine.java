@@ -0,0 +1,47 @@
+package hegemone.sensors;
+
+/* the INT pin of a SimulatedAS7341, for running the interrupt driven
+   acquisition without a GPIO; waits until the model's next interrupt is due */
+class SimulatedInterruptLine implements InterruptLine {
+    private final SimulatedAS7341 chip;
+    private long seenEdges;
+
+    SimulatedInterruptLine(SimulatedAS7341 chip) {
+        this.chip = chip;
+        this.seenEdges = chip.interruptEdges();
+    }
+
+    @Override
+    public synchronized boolean await(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (chip.interruptEdges() > seenEdges) {
+                seenEdges++;
+                return true;
+            }
+            long now = System.nanoTime();
+            if (deadline - now <= 0) {
+                return false;
+            }
+            long due = chip.interruptDueAt();
+            long wake = (due == Long.MAX_VALUE || due - deadline > 0) ? deadline : due;
+            if (wake - now > 0) {
+                Timing.sleepNanos(wake - now);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        seenEdges = chip.interruptEdges();
+    }
+
+    @Override
+    public void close() {
+    }
+}
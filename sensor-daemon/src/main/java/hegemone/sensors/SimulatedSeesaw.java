@@ -0,0 +1,67 @@
+package hegemone.sensors;
+
+/* model of the adafruit seesaw soil sensor (ATSAMD09 firmware).
+ *
+ * A command is a [module base, function] write; the next read returns the
+ * result. Reading before the conversion is done returns 0xFF filler, which
+ * is what makes Soil retry on the real board.
+ */
+class SimulatedSeesaw implements SimulatedDevice {
+    private static final int STATUS_BASE = 0x00;
+    private static final int STATUS_TEMP = 0x04;
+    private static final int TOUCH_BASE = 0x0F;
+    private static final int TOUCH_CHANNEL_OFFSET = 0x10;
+    private static final long MOISTURE_CONVERSION_NS = 1_000_000L;
+    private static final long TEMP_CONVERSION_NS = 500_000L;
+
+    private final boolean realTime;
+    private volatile int moisture = 612;
+    private volatile double temperature = 21.5;
+    private int command = -1;
+    private long readyAt;
+
+    SimulatedSeesaw(boolean realTime) {
+        this.realTime = realTime;
+    }
+
+    void setMoisture(int capacitance) {
+        moisture = capacitance;
+    }
+
+    void setTemperature(double celsius) {
+        temperature = celsius;
+    }
+
+    @Override
+    public synchronized void write(byte[] data, int length) {
+        if (length < 2) {
+            return;
+        }
+        command = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+        long conversion = command == ((TOUCH_BASE << 8) | TOUCH_CHANNEL_OFFSET)
+                ? MOISTURE_CONVERSION_NS : TEMP_CONVERSION_NS;
+        readyAt = System.nanoTime() + (realTime ? conversion : 0);
+    }
+
+    @Override
+    public synchronized void read(byte[] data, int length) {
+        if (System.nanoTime() - readyAt < 0) {
+            for (int i = 0; i < length; i++) {
+                data[i] = (byte) 0xFF;
+            }
+            return;
+        }
+        long value;
+        if (command == ((TOUCH_BASE << 8) | TOUCH_CHANNEL_OFFSET)) {
+            value = moisture;
+        } else if (command == ((STATUS_BASE << 8) | STATUS_TEMP)) {
+            value = Math.round(temperature * 65536.0);
+        } else {
+            value = 0;
+        }
+        /* seesaw answers big endian */
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (value >>> (8 * (length - 1 - i)));
+        }
+    }
+}
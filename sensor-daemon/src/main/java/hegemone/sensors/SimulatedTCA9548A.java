@@ -0,0 +1,41 @@
+package hegemone.sensors;
+
+/* a TCA9548A for SimulatedI2CTransport: one control register whose bits
+   connect the downstream channels. A transfer the upstream bus has no
+   device for goes to the first enabled channel that has one at that address. */
+class SimulatedTCA9548A implements SimulatedDevice {
+    private final SimulatedDevice[][] downstream = new SimulatedDevice[MuxedI2CTransport.CHANNELS][128];
+    private int control;
+
+    synchronized void attach(int channel, int address, SimulatedDevice device) {
+        downstream[channel][address & 0x7F] = device;
+    }
+
+    synchronized SimulatedDevice device(int channel, int address) {
+        return downstream[channel][address & 0x7F];
+    }
+
+    /* the device answering at address with the channels as selected now, or null */
+    synchronized SimulatedDevice selected(int address) {
+        for (int ch = 0; ch < downstream.length; ch++) {
+            if ((control & (1 << ch)) != 0 && downstream[ch][address & 0x7F] != null) {
+                return downstream[ch][address & 0x7F];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void write(byte[] data, int length) {
+        if (length > 0) {
+            control = data[length - 1] & 0xFF;
+        }
+    }
+
+    @Override
+    public synchronized void read(byte[] data, int length) {
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) control;
+        }
+    }
+}
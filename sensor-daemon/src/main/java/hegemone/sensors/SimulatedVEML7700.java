@@ -0,0 +1,49 @@
+package hegemone.sensors;
+
+/* model of the VEML7700 ambient light sensor: 16-bit little endian
+   registers behind a command code, ALS_CONF(0), ALS(4) and WHITE(5) */
+class SimulatedVEML7700 implements SimulatedDevice {
+    private static final int ALS_CONF = 0x00;
+    private static final int ALS = 0x04;
+    private static final int WHITE = 0x05;
+
+    private final int[] regs = new int[8];
+    private int command;
+    private volatile int als = 362;
+    private volatile int white = 1240;
+
+    void setLight(int alsCounts, int whiteCounts) {
+        als = alsCounts;
+        white = whiteCounts;
+    }
+
+    @Override
+    public synchronized void write(byte[] data, int length) {
+        if (length == 0) {
+            return;
+        }
+        command = data[0] & 0x07;
+        if (length >= 3) {
+            regs[command] = (data[1] & 0xFF) | ((data[2] & 0xFF) << 8);
+        }
+    }
+
+    @Override
+    public synchronized void read(byte[] data, int length) {
+        int value;
+        switch (command) {
+            case ALS:
+                value = als;
+                break;
+            case WHITE:
+                value = white;
+                break;
+            case ALS_CONF:
+            default:
+                value = regs[command];
+        }
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (value >>> (8 * i));
+        }
+    }
+}
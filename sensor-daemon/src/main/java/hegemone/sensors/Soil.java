@@ -2,120 +2,197 @@ package hegemone.sensors;
 
 import java.util.logging.*;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
-
-import io.helins.linux.i2c.*;
+import java.util.concurrent.atomic.LongAdder;
 
 import hegemone.sensors.DeviceTree;
 import hegemone.sensors.Utils;
 
 
+/* the seesaw's capacitive moisture and temperature readings.
+
+   A reading is a command write, a conversion on the seesaw, then a read of
+   the result. start*() write the command and return, poll*() read the
+   result once the conversion should be done and say whether it is in, so
+   the bus is only held for the transfers and other devices (or other
+   seesaws, see DeviceInventory.Bus) can use it while this one converts.
+   getMoisture() and getTemperature() do both and wait in between. A
+   reading that failed is 0 and not valid. One reading at a time per
+   sensor, from one thread at a time. */
 class Soil {
-	private static I2CBuffer twoBuf;
-	private static I2CBuffer fourBuf;
-	private static I2CBus i2cBus;
+	private enum Phase { IDLE, MOISTURE, TEMPERATURE }
 	private static final long I2C_WAIT = 400l;
 	private static final int MAX_RETRY = 4;
 	private static final byte MOISTURE_ADDR = 0x0F;
 	private static final byte MOISTURE_VAL = 0x10;
 	private static final byte TEMP_ADDR = 0x0;
 	private static final byte TEMP_VAL = 0x4;
-	static {
-		try {
-			twoBuf = new I2CBuffer(2);
-			fourBuf = new I2CBuffer(4);
-		} catch (Exception e) {
-			System.err.println("Failed to initialize read-write buffers");
-			System.exit(1);
-		}
+	/* commands are only ever written, results go to buffers of our own */
+	private static final byte[] MOISTURE_CMD = {MOISTURE_ADDR, MOISTURE_VAL};
+	private static final byte[] TEMP_CMD = {TEMP_ADDR, TEMP_VAL};
+	private final byte[] moistureBuf = new byte[2];
+	private final byte[] tempBuf = new byte[4];
+	private final I2CTransport i2cBus;
+	private final int address;
+	/* reading in progress, readable from readyAt (nanoTime) */
+	private Phase phase = Phase.IDLE;
+	private long readyAt;
+	private int tries;
+	private int moisture;
+	private double temperature;
+	private boolean moistureValid;
+	private boolean temperatureValid;
+	/* moisture reads repeated, and moisture reads that ran out of tries */
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+
+	public Soil(I2CTransport bus) {
+		this(bus, DeviceTree.ADAFRUIT_SOIL_SENSOR);
 	}
-				
-	public Soil(I2CBus bus) {
+	public Soil(I2CTransport bus, int i2cAddress) {
 		i2cBus = bus;
+		address = i2cAddress;
 	}
 
 	public double getTemperature() {
-		double ret = 0;
+		if (startTemperature()) {
+			while (!pollTemperature()) {
+				awaitReady();
+			}
+		}
+		return temperature;
+	}
+	public int getMoisture() {
+		if (startMoisture()) {
+			while (!pollMoisture()) {
+				awaitReady();
+			}
+		}
+		return moisture;
+	}
+
+	/* write the moisture command, false (and moisture() 0) if it didn't go out */
+	public boolean startMoisture() {
+		tries = 0;
+		moistureValid = false;
+		if (!command(MOISTURE_CMD, Phase.MOISTURE)) {
+			System.err.println("Couldn't write moisture command to soil sensor over I2C");
+			moisture = 0;
+			return false;
+		}
+		return true;
+	}
+	/* true once the moisture started is in moisture(), false while the
+	   seesaw is converting or answered with filler and is asked again */
+	public boolean pollMoisture() {
+		if (phase != Phase.MOISTURE) {
+			return true;
+		}
+		if (System.nanoTime() - readyAt < 0) {
+			return false;
+		}
 		try {
-			i2cBus.selectSlave(DeviceTree.ADAFRUIT_SOIL_SENSOR);
+			synchronized(i2cBus) {
+				i2cBus.read(address, moistureBuf, 2);
+			}
+			int val = ((moistureBuf[0] & 0xFF) << 8) | (moistureBuf[1] & 0xFF);
+			if (val <= 4095) {
+				moisture = val;
+				moistureValid = true;
+				phase = Phase.IDLE;
+				return true;
+			}
 		} catch (IOException ioe) {
-			System.err.println("Couldn't select soil sensor on I2C bus");
-			return 0;
+			/* tried again like filler */
 		}
-		twoBuf.clear();
-		twoBuf.set(0,TEMP_ADDR)
-			.set(1,TEMP_VAL);
-		try{ synchronized(i2cBus) {
-				i2cBus.write(twoBuf);
-				Utils.suspend(I2C_WAIT*2);
-			} twoBuf.clear();
-		} catch (IOException ioe) {
+		retries.increment();
+		if (++tries == MAX_RETRY) {
+			failures.increment();
+			moisture = 0;
+			phase = Phase.IDLE;
+			return true;
+		}
+		readyAt = System.nanoTime() + I2C_WAIT * 1000;
+		return false;
+	}
+	public int moisture() {
+		return moisture;
+	}
+	public boolean moistureValid() {
+		return moistureValid;
+	}
+
+	/* write the temperature command, false (and temperature() 0) if it didn't go out */
+	public boolean startTemperature() {
+		temperatureValid = false;
+		if (!command(TEMP_CMD, Phase.TEMPERATURE)) {
 			System.err.println("Couldn't write temperature command to soil sensor over I2C");
-			return 0;
+			temperature = 0;
+			return false;
+		}
+		return true;
+	}
+	/* true once the temperature started is in temperature() */
+	public boolean pollTemperature() {
+		if (phase != Phase.TEMPERATURE) {
+			return true;
 		}
-		fourBuf.clear();
+		if (System.nanoTime() - readyAt < 0) {
+			return false;
+		}
+		phase = Phase.IDLE;
 		try {
-		i2cBus.read(fourBuf, 4);
-		byte[] b = { (byte) (fourBuf.get(0) & 0x3F), (byte) fourBuf.get(1),
-			(byte)fourBuf.get(2), (byte)fourBuf.get(3)};
-		ByteBuffer byteBuf = ByteBuffer.wrap(b);
-		long t = (byteBuf.getInt() & 0xFFFFFFFFL);
-		ret = DeviceTree.ADAFRUIT_SOIL_SENSOR_MAGIC * t;
+			synchronized(i2cBus) {
+				i2cBus.read(address, tempBuf, 4);
+			}
+			long t = ((tempBuf[0] & 0x3FL) << 24) | ((tempBuf[1] & 0xFF) << 16)
+				| ((tempBuf[2] & 0xFF) << 8) | (tempBuf[3] & 0xFF);
+			temperature = DeviceTree.ADAFRUIT_SOIL_SENSOR_MAGIC * t;
+			temperatureValid = true;
 		} catch (IOException ioe) {
 			System.err.println("Couldn't read temperature from soil sensor");
-			return 0;
+			temperature = 0;
 		}
-		return ret;
+		return true;
+	}
+	public double temperature() {
+		return temperature;
+	}
+	public boolean temperatureValid() {
+		return temperatureValid;
 	}
-	public int getMoisture() {
-		int ret = 0;
-		int tries = 0;
-		try {
-			i2cBus.selectSlave(DeviceTree.ADAFRUIT_SOIL_SENSOR);
-		} catch (IOException ioe) {
-			System.err.println("Couldn't select soil sensor on I2C bus");
-			return 0;
-		}
-		twoBuf.clear();
-		twoBuf.set(0,MOISTURE_ADDR)
-		      .set(1,MOISTURE_VAL);
-		
 
+	/* nanoseconds until the reading in progress can be read, 0 if it can be now */
+	public long readyInNanos() {
+		return phase == Phase.IDLE ? 0 : Math.max(0, readyAt - System.nanoTime());
+	}
+
+	private boolean command(byte[] cmd, Phase next) {
 		try {
 			synchronized(i2cBus) {
-				i2cBus.write(twoBuf);
-				Utils.suspend(I2C_WAIT*2);
+				i2cBus.write(address, cmd, cmd.length);
 			}
-			twoBuf.clear();
 		} catch (IOException ioe) {
-			System.err.println("Couldn't write moisture command to soil sensor over I2C");
-			return 0;
+			phase = Phase.IDLE;
+			return false;
 		}
-		while(tries < MAX_RETRY) {
-			try {
-				synchronized(i2cBus) {
-					i2cBus.read(twoBuf);
-					Utils.suspend(I2C_WAIT);
-					byte[] b = { (byte)(twoBuf.get(0)),
-						(byte)(twoBuf.get(1))};
-					ByteBuffer byteBuf = ByteBuffer.wrap(b);
-					var val = Short.toUnsignedInt(byteBuf.getShort());
-					if(val>4095) {
-						tries++;
-					} else {
-						ret = val;
-						break;
-					}
-				}
-			} catch (IOException ioe) {
-				tries++;					
-			}
+		phase = next;
+		readyAt = System.nanoTime() + I2C_WAIT * 2 * 1000;
+		return true;
+	}
+	private void awaitReady() {
+		long nanos = readyInNanos();
+		if (nanos > 0) {
+			Utils.suspend((nanos + 999) / 1000);
 		}
-		return ret;
+	}
+	public long retries() {
+		return retries.sum();
+	}
+	public long failures() {
+		return failures.sum();
 	}
 }
-
@@ -0,0 +1,128 @@
+package hegemone.sensors;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/* the latest samples of a continuously measuring spectrometer, filled by
+ * Spectrometer.drainFifo().
+ *
+ * Primitive arrays only: capacity x channels counts and the System.nanoTime()
+ * each sample was taken at. One thread writes, anyone reads by sequence
+ * number; the writer never waits, so a slow reader finds out after copying
+ * that it was lapped and retries from oldest(). Samples the chip dropped
+ * because its FIFO overflowed are counted as lost.
+ */
+class SpectralRing {
+    private final int channels;
+    private final int mask;
+    private final int[] counts;
+    private final long[] nanos;
+    /* sequence of the next sample, published after its data */
+    private final AtomicLong written = new AtomicLong();
+    private volatile long lost;
+    private volatile long overflows;
+
+    SpectralRing(int capacity, int channels) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Spectral ring capacity must be a power of two, got " + capacity);
+        }
+        this.channels = channels;
+        this.mask = capacity - 1;
+        this.counts = new int[capacity * channels];
+        this.nanos = new long[capacity];
+    }
+
+    int channels() {
+        return channels;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /* samples x channels counts from block, evenly spaced by periodNanos up to lastNanos */
+    void append(int[] block, int samples, long lastNanos, long periodNanos) {
+        long w = written.get();
+        for (int i = 0; i < samples; i++) {
+            int slot = (int) ((w + i) & mask);
+            System.arraycopy(block, i * channels, counts, slot * channels, channels);
+            nanos[slot] = lastNanos - (samples - 1 - i) * periodNanos;
+        }
+        written.lazySet(w + samples);
+    }
+
+    /* the chip dropped samples, about this many */
+    void markLost(long samples) {
+        overflows++;
+        lost += samples;
+    }
+
+    long written() {
+        return written.get();
+    }
+
+    /* the oldest sequence still held */
+    long oldest() {
+        return Math.max(0, written.get() - capacity());
+    }
+
+    long lost() {
+        return lost;
+    }
+
+    long overflows() {
+        return overflows;
+    }
+
+    /* copy up to max samples from sequence from on into outCounts (max x channels)
+       and outNanos, returns how many, or -1 if the writer overwrote them meanwhile */
+    int read(long from, int max, int[] outCounts, long[] outNanos) {
+        long end = Math.min(written.get(), from + max);
+        if (from < end - capacity()) {
+            return -1;
+        }
+        int n = (int) Math.max(0, end - from);
+        for (int i = 0; i < n; i++) {
+            int slot = (int) ((from + i) & mask);
+            System.arraycopy(counts, slot * channels, outCounts, i * channels, channels);
+            outNanos[i] = nanos[slot];
+        }
+        return from < written.get() - capacity() ? -1 : n;
+    }
+
+    /* the newest sample into out[offset..offset+channels), false if there is none yet */
+    boolean latest(int[] out, int offset) {
+        long w = written.get();
+        if (w == 0) {
+            return false;
+        }
+        int slot = (int) ((w - 1) & mask);
+        System.arraycopy(counts, slot * channels, out, offset, channels);
+        return true;
+    }
+
+    /* samples, losses and the min/max of each channel over what the ring holds */
+    String report() {
+        long w = written.get();
+        int n = (int) Math.min(w, capacity());
+        var sb = new StringBuilder();
+        sb.append("samples=").append(w).append(" lost=").append(lost).append(" overflows=").append(overflows);
+        if (n > 1) {
+            long first = nanos[(int) ((w - n) & mask)];
+            long last = nanos[(int) ((w - 1) & mask)];
+            if (last > first) {
+                sb.append(String.format(" rate=%.1f/s", (n - 1) * 1e9 / (last - first)));
+            }
+        }
+        for (int c = 0; c < channels && n > 0; c++) {
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (long s = w - n; s < w; s++) {
+                int v = counts[(int) (s & mask) * channels + c];
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            sb.append(c == 0 ? " range=" : ",").append(min).append('-').append(max);
+        }
+        return sb.toString();
+    }
+}
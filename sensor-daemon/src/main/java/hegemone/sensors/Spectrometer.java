@@ -1,6 +1,5 @@
 package hegemone.sensors;
 
-import io.helins.linux.i2c.*;
 import hegemone.sensors.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,6 +11,7 @@ import java.util.Arrays;
 import java.util.BitSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 import static hegemone.sensors.DeviceTree.ADAFRUIT_SPECTROMETER;
@@ -28,6 +28,22 @@ public class Spectrometer {
     private static final int INTENAB_REG = 0xF9;
     private static final int SINT_SMUX_ENABLE = 0x10;
     private static final int SIEN_ENABLE = 0x01;
+    private static final int SP_IEN_ENABLE = 0x08;
+    private static final int PERS_REG = 0xBD;
+    /* APERS 0: every spectral cycle raises the interrupt */
+    private static final int PERS_EVERY_CYCLE = 0x00;
+    private static final int CLEAR_ALL_STATUS = 0xFF;
+    private static final int SMUXEN = 0x10;
+    /* interrupt waits give up after this and fall back to polling */
+    private static final long SMUX_TIMEOUT_NANOS = 20_000_000L;
+    private static final long MEASUREMENT_TIMEOUT_MARGIN_NANOS = 50_000_000L;
+    /* polling gives up on AVALID this long after the integration time */
+    private static final long READ_BUDGET_NANOS = Settings.READ_BUDGET * 1_000_000L;
+    /* STATUS polling backoff, from first to longest pause */
+    private static final long POLL_FIRST_NANOS = 100_000L;
+    private static final long POLL_MAX_NANOS = 2_000_000L;
+    private static final long SMUX_POLL_FIRST_US = 50;
+    private static final int SMUX_MAX_POLLS = 12;
     private static final int WRITE_SMUX_CONF = 0x10;
     private static final int START_SMUXEN_PON = 0x11;
     private static final int STATUS_READY_REG = 0x71;
@@ -37,7 +53,45 @@ public class Spectrometer {
     private static final int ASTEP_LSB_REG = 0xCA;
     private static final int ASTEP_MSB_REG = 0xCB;
     private static final int ATIME_REG = 0x81;
+    private static final int ATIME = 0x3C;
+    private static final int ASTEP = 0x024D;
+    private static final long ASTEP_NANOS = 2780L;
+    /* (ATIME + 1) x (ASTEP + 1) x 2.78µs */
+    private static final long INTEGRATION_NANOS = (ATIME + 1) * (ASTEP + 1) * ASTEP_NANOS;
+    /* AGAIN 0 is 0.5x, n is 2^(n-1)x up to 10, 512x */
+    private static final int FIXED_GAIN = 0x03;
+    private static final int MAX_GAIN = 10;
+    /* auto-ranging: ATIME, ASTEP pairs from shortest, each tried with every gain.
+       8.3 ms counts up to 3000, 27.8 ms to 10000, the fixed 100 ms to 35990 */
+    private static final int[][] RANGE_TIMES = {{0, 2999}, {9, 999}, {ATIME, ASTEP}};
+    /* a range is good while the brightest channel stays within this share of full scale */
+    private static final double RANGE_LOW = 0.2;
+    private static final double RANGE_HIGH = 0.8;
+    /* a saturated channel is at least full scale, guess this much more */
+    private static final double SATURATED_GUESS = 4.0;
+    private static final int[][] RANGES = ranges();
+    private static final int FIXED_RANGE = range(ATIME, ASTEP, FIXED_GAIN);
+    /* ADC0-5 data, low byte first */
+    private static final int[] MEM_CHAN = { 0x95 , 0x97 , 0x99, 0x9B, 0x9D, 0x9F};
+    /* reading ASTATUS latches all twelve data bytes behind it, so channels
+       are read as one block from ASTATUS on */
+    private static final int ASTATUS_REG = 0x94;
+    private static final int ASAT_STATUS = 0x80;
+    /* STATUS2 saturation bits */
+    private static final int ASAT_DIGITAL = 0x10;
+    private static final int ASAT_ANALOG = 0x08;
+    private static final int CHANNEL_BLOCK = 1 + 2 * MEM_CHAN.length;
     private static final int GAIN_REG = 0xAA;
+    /* continuous mode: FIFO_MAP bits 1-6 put ADC0-5 in the FIFO after every cycle,
+       FIFO_LVL counts 2-byte entries, FDATA streams them; FIFO_OV is in STATUS6 */
+    private static final int STATUS6_REG = 0xA7;
+    private static final int FIFO_OV = 0x80;
+    private static final int CONTROL_REG = 0xFA;
+    private static final int FIFO_CLR = 0x02;
+    private static final int FIFO_MAP_REG = 0xFC;
+    private static final int FIFO_LVL_REG = 0xFD;
+    private static final int FDATA_REG = 0xFE;
+    private static final int FIFO_ENTRIES = 128;
     private static final int CONFIG_REG = 0x70;
     private static final int INT_MODE_SPM = 0x0;
     private static final int SPM_ENABLE = 0x3;
@@ -51,26 +105,68 @@ public class Spectrometer {
     private static final int ADC_4 = 0b101;
     private static final int ADC_5 = 0b110;
     private static final int SMUX_NONE = 0x00;
+    private static final int SMUX_RAM_SIZE = 20;
     private static final int CFG0_REG = 0xA9;
     private static final int BLANK_CFG0_SET = 0x40;
-    private static I2CBuffer oneBuf;
-    private static I2CBuffer twoBuf;
-    private static I2CBuffer threeBuf;
-    private static volatile I2CBus bus;
+    private final byte[] oneBuf = new byte[1];
+    private final byte[] threeBuf = new byte[3];
+    /* ASTEP_LSB_REG then the two step bytes, filled in by write_astep under the bus lock */
+    private final byte[] astepBurst = {(byte) ASTEP_LSB_REG, 0, 0};
+    private final byte[] channelBuf = new byte[CHANNEL_BLOCK];
+    private final I2CTransport bus;
+    private final int address;
+    private volatile long measurementStarted;
+    /* last values written, STATUS is write-one-to-clear so never cached */
+    private final RegisterShadow shadow;
+    /* AS7341 INT pin if wired to a GPIO, otherwise null and we poll */
+    private final InterruptLine interrupt;
+    /* how much later than the integration time AVALID tends to show up */
+    private long readyLagNanos;
+    /* ASTATUS of the last channel read: saturation and the gain it used */
+    private volatile int lastAStatus;
+    /* STATUS2 when the last measurement was found ready */
+    private volatile int lastStatus2;
+    /* pick gain and integration time per sweep instead of the fixed 100 ms at 4x */
+    private volatile boolean autoRange;
+    /* RANGES index for the next sweep, the one being measured and the last one read */
+    private int range = FIXED_RANGE;
+    private int sweepRange = FIXED_RANGE;
+    private volatile int completedRange = FIXED_RANGE;
+    private volatile long integrationNanos = INTEGRATION_NANOS;
+    /* configure() has run, sweeps and continuous mode do it on first use */
+    private volatile boolean configured;
+    /* brightest channel and saturation of the sweep in progress */
+    private int sweepMax;
+    private boolean sweepSaturated;
+    /* a measurement of the sweep in progress timed out or its channels couldn't be read */
+    private boolean sweepFailed;
+    /* measurements given up on, and whether the last one was */
+    private final LongAdder timeouts = new LongAdder();
+    private boolean timingOut;
+    private long rangeChanges;
+    /* ADCs per FIFO sample while measuring continuously, 0 when not */
+    private int fifoChannels;
+    /* spectral channel of ADC0 in continuous mode, 0 for F1-F6, 6 for F7/F8/NIR/Clear */
+    private int fifoOffset;
+    private long fifoPeriodNanos;
+    private long lastDrainNanos;
+    private final byte[] fifoBuf = new byte[2 * FIFO_ENTRIES];
+    private final int[] fifoCounts = new int[FIFO_ENTRIES];
     private static Logger logger = LoggerFactory.getLogger("hegemone.sensors.spectrometer");
-    static {
-        try {
-            oneBuf = new I2CBuffer(1);
-            twoBuf = new I2CBuffer(2);
-            threeBuf = new I2CBuffer(3);
-        } catch (Exception e) {
-            System.err.println("Failed to initialize read-write buffers");
-            System.exit(1);
-        }
+    public Spectrometer(I2CTransport i2cbus) {
+        this(i2cbus, null);
+    }
+
+    public Spectrometer(I2CTransport i2cbus, InterruptLine interruptLine) {
+        this(i2cbus, ADAFRUIT_SPECTROMETER, interruptLine);
     }
 
-    public Spectrometer(I2CBus i2cbus) {
+    /* one chip per instance, e.g. one per station behind its own mux channel */
+    public Spectrometer(I2CTransport i2cbus, int i2cAddress, InterruptLine interruptLine) {
         bus = i2cbus;
+        address = i2cAddress;
+        interrupt = interruptLine;
+        shadow = new RegisterShadow(i2cbus, i2cAddress, STATUS_REG, CONTROL_REG);
     }
 
     /* we follow Bäumker, Zimmerman, Woias (2021)
@@ -109,6 +205,14 @@ public class Spectrometer {
         may omit the memory address byte normally following the chip address byte;
         the buffer retains the last register address +1."
      */
+    /* configure() unless done, on whichever thread samples first so that
+       stations on different buses are set up at once instead of in turn */
+    public void ensureConfigured() {
+        if (!configured) {
+            configure();
+        }
+    }
+
     public void configure() {
         /* Manual says
         "To operate the device set bit PON = “1” first (register 0x80)
@@ -117,12 +221,22 @@ public class Spectrometer {
         CONFIG (0x70) is used to set the INT_MODE (SYNS,SYND)."
          * */
         synchronized (bus) {
+            configured = true;
+            /* the chip may have been power cycled, forget what we wrote */
+            shadow.invalidate();
             try {
                 register_write_byte(ENABLE_REG, POWER_ON);
                 register_write_byte(CONFIG_REG, INT_MODE_SPM);
                 /* do any other config here first, e.g. SMUX  */
                 setIntegrationTime();
                 setGain();
+                if (interrupt != null) {
+                    /* INT on SMUX completion and after every spectral cycle */
+                    register_write_byte(PERS_REG, PERS_EVERY_CYCLE);
+                    register_write_byte(CFG9_REG, SINT_SMUX_ENABLE);
+                    register_write_byte(INTENAB_REG, SIEN_ENABLE | SP_IEN_ENABLE);
+                    register_write_byte(STATUS_REG, CLEAR_ALL_STATUS);
+                }
                 register_write_byte(CONFIG_REG, SPM_ENABLE);
             } catch (IOException e) {
                 System.err.println("Could not configure spectrometer");
@@ -137,10 +251,11 @@ public class Spectrometer {
         Integration time ≃ 100 ms
      */
     public boolean setIntegrationTime() {
+        int[] r = RANGES[sweepRange];
         try {
-            register_write_byte(ASTEP_LSB_REG, 0x4D);
-            register_write_byte(ASTEP_MSB_REG, 0x02);
-            register_write_byte(ATIME_REG, 0x3C);
+            write_astep(r[1]);
+            register_write_byte(ATIME_REG, r[0]);
+            integrationNanos = integrationSteps(sweepRange) * ASTEP_NANOS;
             return true;
         } catch (IOException e) {
             System.err.println("Could not set integration time for spectrometer");
@@ -151,10 +266,11 @@ public class Spectrometer {
         Gain (Address 0xAA)
         Gain = 4X for visible channels (F1-F8) := 0x3
         Gain = 1X for NIR, IR := 0x2
+        Auto-ranging picks its own, see nextRange()
      */
     public boolean setGain() {
         try {
-            register_write_byte(GAIN_REG, 0x03);
+            register_write_byte(GAIN_REG, RANGES[sweepRange][2]);
             return true;
         } catch (IOException e) {
             System.err.println("Could not set gain factor for spectrometer");
@@ -164,6 +280,7 @@ public class Spectrometer {
     public void disable() {
         try {
             register_write_byte(ENABLE_REG, POWER_OFF);
+            shadow.invalidate();
         } catch (IOException e) {
             System.err.println("Spectrometer power off failed. Goodbye");
             System.exit(ESPECBROKE);
@@ -185,10 +302,16 @@ public class Spectrometer {
                 .filter(k -> k.getKey().contains("red"))
                 .mapToInt(o -> o.getValue()).sum();
         var total = blue+green+red;
+        if (total == 0) {
+            /* darkness, or no spectral sample yet */
+            return Map.of("blue", 0, "green", 0, "red", 0);
+        }
         return Map.of("blue", blue*100/total, "green", green*100/total, "red", red*100/total);
     }
     public LinkedHashMap<String, Integer> spectralData() {
-        int[] channelValues = getPhotonFlux();
+        return spectralData(getPhotonFlux());
+    }
+    public LinkedHashMap<String, Integer> spectralData(int[] channelValues) {
         LinkedHashMap<String, Integer> values = new LinkedHashMap<>();
         values.put("blue_415nm", channelValues[0]);
         values.put("blue_445nm", channelValues[1]);
@@ -209,54 +332,356 @@ set to “1”.
     Returned data is always little endian so flip bytes and cast to uint(!)
 */
     public int[] getPhotonFlux() {
-        int[] ret = new int[10];
-        int[] mem_chan = { 0x95 , 0x97 , 0x99, 0x9B, 0x9D, 0x9F};
+        return getPhotonFlux(new int[10]);
+    }
+
+    /* same, into a caller's array of at least 10 */
+    public int[] getPhotonFlux(int[] ret) {
+        measure(ret);
+        return ret;
+    }
+
+    /* a sweep into flux, false if it didn't complete in time or a read failed,
+       flux is then partly or not at all updated */
+    public boolean measure(int[] flux) {
+        startF1F6Measurement();
+        if (!awaitMeasurement()) {
+            return false;
+        }
+        readF1F6(flux);
+        startF7F8NIRClearMeasurement();
+        if (!awaitMeasurement()) {
+            return false;
+        }
+        readF7F8NIRClear(flux);
+        return sweepComplete();
+    }
+
+    /* both halves of the sweep since startF1F6Measurement() were read */
+    public boolean sweepComplete() {
+        synchronized (bus) {
+            return !sweepFailed;
+        }
+    }
+
+    /* measurements that never showed AVALID within their budget */
+    public long timeouts() {
+        return timeouts.sum();
+    }
+
+    /* the two SMUX phases of getPhotonFlux() as separate steps, so the
+       caller can use the bus for other devices while the chip integrates */
+    public void startF1F6Measurement() {
+        ensureConfigured();
         setF1F6SMUX();
+        applyRange();
         enableMeasurement();
-        while(!spectralMeasurementReady()) {
-            Utils.suspend(400);
-        }
-        logger.trace("F1F6");
-        for(int i=0; i<mem_chan.length; i++) {
-            twoBuf.clear();
-            var currentAddress = mem_chan[i];
-            var bytes = register_read_bytes(currentAddress, twoBuf);
-             ret[i]  = getUnsignedIntFromLittleEndianByte2(bytes);
-            logger.trace("Read A: 0x" + Integer.toHexString(currentAddress).toUpperCase()
-                                    + "->[" + Utils.byteString(bytes) +"] = " + ret[i]);
-        }
-        logger.trace("-------------");
+    }
+
+    public void startF7F8NIRClearMeasurement() {
         setF7F8NIRCLEARSMUX();
         enableMeasurement();
+    }
+
+    public boolean measurementReady() {
+        return spectralMeasurementReady();
+    }
+
+    /* wait for AVALID, on the INT line if we have one. false if it isn't
+       there within the integration time plus hegemone.read.budget: the
+       measurement is then stopped and the sweep has failed */
+    public boolean awaitMeasurement() {
+        if (interrupt != null) {
+            if (awaitInterrupt(integrationNanos + MEASUREMENT_TIMEOUT_MARGIN_NANOS)
+                    && spectralMeasurementReady()) {
+                measured();
+                return true;
+            }
+            logger.debug("No spectral interrupt, polling");
+        }
+        if (pollMeasurement()) {
+            measured();
+            return true;
+        }
+        abandonMeasurement();
+        return false;
+    }
+
+    /* sleep out the integration time plus the lag we've seen before,
+       then poll STATUS2 with a growing pause until the budget runs out */
+    private boolean pollMeasurement() {
+        long remaining = measurementStarted + integrationNanos + readyLagNanos - POLL_FIRST_NANOS
+                - System.nanoTime();
+        if (remaining > 0) {
+            Timing.sleepNanos(remaining);
+        }
+        long deadline = measurementStarted + integrationNanos + READ_BUDGET_NANOS;
+        long pause = POLL_FIRST_NANOS;
         while(!spectralMeasurementReady()) {
-            Utils.suspend(400);
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+            Timing.sleepNanos(Math.min(pause, left));
+            pause = Math.min(pause * 2, POLL_MAX_NANOS);
         }
+        long lag = System.nanoTime() - measurementStarted - integrationNanos;
+        readyLagNanos += (Math.max(0, lag) - readyLagNanos) / 8;
+        return true;
+    }
+
+    private void measured() {
+        if (timingOut) {
+            timingOut = false;
+            logger.info("Spectrometer at 0x{} measures again", Integer.toHexString(address));
+        }
+    }
+
+    /* a measurement that never completed, e.g. the chip NACKs or was reset:
+       stop it, and configure the chip and rewrite its registers next sweep */
+    private void abandonMeasurement() {
+        timeouts.increment();
+        if (!timingOut) {
+            timingOut = true;
+            logger.warn("Spectrometer at 0x{} gave no result within {} ms of integrating, giving up on the sweep",
+                    Integer.toHexString(address), Settings.READ_BUDGET);
+        }
+        synchronized (bus) {
+            sweepFailed = true;
+            configured = false;
+            shadow.invalidate();
+            try {
+                register_write_byte(ENABLE_REG, POWER_ON);
+            } catch (IOException e) {
+                /* not answering, configure() will try again */
+            }
+        }
+    }
+
+    private boolean awaitInterrupt(long timeoutNanos) {
+        try {
+            if (interrupt.await(timeoutNanos)) {
+                clearInterrupts();
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /* STATUS is write-one-to-clear, this releases the INT pin */
+    private void clearInterrupts() {
+        try {
+            register_write_byte(STATUS_REG, CLEAR_ALL_STATUS);
+        } catch (IOException e) {
+            System.err.println("Couldn't clear spectrometer interrupt status");
+        }
+    }
+
+    /* F1-F6 from ADC0-5 into flux[0..5] */
+    public void readF1F6(int[] flux) {
+        logger.trace("F1F6");
+        readChannels(flux, 0, 6);
+    }
+
+    /* F7, F8, NIR, Clear from ADC0-3 into flux[6..9] */
+    public void readF7F8NIRClear(int[] flux) {
         logger.trace("F7F8NIRCLEAR");
-        for(int i=0; i< mem_chan.length-2; i++) {
-            twoBuf.clear();
-            var currentAddress = mem_chan[i];
-            var bytes = register_read_bytes(currentAddress, twoBuf);
-            ret[6+i]  = getUnsignedIntFromLittleEndianByte2(bytes);
-            logger.trace("Read A: 0x" + Integer.toHexString(currentAddress).toUpperCase()
-                    + "->[" + Utils.byteString(bytes) +"] = " + ret[6+i]);
-        }
-        logger.trace("-------------");
-        return ret;
+        readChannels(flux, 6, 4);
+        completeSweep();
     }
 
+    /* ASTATUS and ADC0..count-1 in one transaction, the register pointer
+       auto-increments and the ASTATUS read latches the data */
+    private void readChannels(int[] flux, int offset, int count) {
+        int length = 1 + 2 * count;
+        synchronized (bus) {
+            try {
+                bus.readRegisters(address, ASTATUS_REG, channelBuf, length);
+            } catch (IOException e) {
+                System.err.println("Failed to read spectrometer channels");
+                sweepFailed = true;
+                return;
+            }
+            lastAStatus = channelBuf[0] & 0xFF;
+            for (int i = 0; i < count; i++) {
+                flux[offset + i] = (0xFF & channelBuf[2 + 2 * i]) << 8 | (0xFF & channelBuf[1 + 2 * i]);
+                sweepMax = Math.max(sweepMax, flux[offset + i]);
+            }
+            sweepSaturated |= saturated() || (lastStatus2 & (ASAT_DIGITAL | ASAT_ANALOG)) != 0;
+            if (logger.isTraceEnabled()) {
+                logger.trace("Read 0x94-0x{}: {}", Integer.toHexString(ASTATUS_REG + length - 1).toUpperCase(),
+                        Utils.byteString(java.util.Arrays.copyOf(channelBuf, length)));
+            }
+        }
+    }
 
+    /* true if the last channel read saturated (ASTATUS ASAT) */
+    public boolean saturated() {
+        return (lastAStatus & ASAT_STATUS) != 0;
+    }
 
+    /* AVALID, the saturation bits next to it may be set too */
     private boolean spectralMeasurementReady() {
-        oneBuf.clear();
-        var avalid = (register_read_bytes(STATUS2_REG, oneBuf))[0];
-        return (avalid == VALID_SPECTRAL);
+        int status2 = register_read_byte(STATUS2_REG);
+        if ((status2 & VALID_SPECTRAL) == 0) {
+            return false;
+        }
+        lastStatus2 = status2;
+        return true;
+    }
+
+    /* the range for this sweep, set while SP_EN is off after the SMUX load.
+       Unchanged registers are skipped by the shadow */
+    private void applyRange() {
+        synchronized (bus) {
+            sweepRange = range;
+            sweepMax = 0;
+            sweepSaturated = false;
+            sweepFailed = false;
+            lastStatus2 = 0;
+            setIntegrationTime();
+            setGain();
+        }
+    }
+
+    /* both halves read: remember the range they were taken with and pick the next */
+    private void completeSweep() {
+        synchronized (bus) {
+            if (sweepFailed) {
+                /* neither the counts nor the range say anything */
+                return;
+            }
+            completedRange = sweepRange;
+            if (!autoRange) {
+                return;
+            }
+            int next = nextRange(sweepRange, sweepMax, sweepSaturated);
+            if (next != range) {
+                rangeChanges++;
+                logger.debug("Range {} -> {}: max {} of {}{}", describe(range), describe(next), sweepMax,
+                        fullScale(sweepRange), sweepSaturated ? " saturated" : "");
+                range = next;
+            }
+        }
     }
-    private static int getUnsignedIntFromLittleEndianByte2(byte[] arr) {
+
+    /* keep the current range while its brightest channel is within RANGE_LOW..RANGE_HIGH
+       of full scale and no shorter integration would be; otherwise the first range, in
+       shortest integration then lowest gain order, whose expected counts are in band.
+       Counts scale with gain x integration time, a saturated sweep is assumed to be
+       SATURATED_GUESS times over */
+    static int nextRange(int current, int max, boolean saturated) {
+        double counts = saturated ? SATURATED_GUESS * fullScale(current) : max;
+        double perUnit = counts / sensitivity(current);
+        boolean currentInBand = !saturated && inBand(current, counts);
+        for (int i = 0; i < RANGES.length; i++) {
+            if (currentInBand && integrationSteps(i) >= integrationSteps(current)) {
+                return current;
+            }
+            if (inBand(i, perUnit * sensitivity(i))) {
+                return i;
+            }
+        }
+        if (currentInBand) {
+            return current;
+        }
+        /* nothing in band: as dim or as bright as we can go */
+        int last = RANGES.length - 1;
+        return perUnit * sensitivity(last) < RANGE_LOW * fullScale(last) ? last : 0;
+    }
+
+    private static boolean inBand(int range, double counts) {
+        return counts >= RANGE_LOW * fullScale(range) && counts <= RANGE_HIGH * fullScale(range);
+    }
+
+    private static int[][] ranges() {
+        int[][] ranges = new int[RANGE_TIMES.length * (MAX_GAIN + 1)][];
+        int i = 0;
+        for (int[] t : RANGE_TIMES) {
+            for (int gain = 0; gain <= MAX_GAIN; gain++) {
+                ranges[i++] = new int[]{t[0], t[1], gain};
+            }
+        }
+        return ranges;
+    }
+
+    private static int range(int atime, int astep, int gain) {
+        for (int i = 0; i < RANGES.length; i++) {
+            if (RANGES[i][0] == atime && RANGES[i][1] == astep && RANGES[i][2] == gain) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No range " + atime + "/" + astep + "/" + gain);
+    }
+
+    private static long integrationSteps(int range) {
+        return (RANGES[range][0] + 1L) * (RANGES[range][1] + 1L);
+    }
+
+    /* the ADC counts one per integration step */
+    private static int fullScale(int range) {
+        return (int) Math.min(65535, integrationSteps(range));
+    }
+
+    private static double sensitivity(int range) {
+        return gain(RANGES[range][2]) * integrationSteps(range);
+    }
+
+    /* AGAIN code to gain factor */
+    static double gain(int code) {
+        return code == 0 ? 0.5 : 1 << (code - 1);
+    }
+
+    /* counts per ms of integration at 1x gain, comparable across ranges */
+    static double basicCount(int raw, int gainCode, long integrationSteps) {
+        return raw / (gain(gainCode) * integrationSteps * ASTEP_NANOS / 1e6);
+    }
+
+    private static String describe(int range) {
+        int code = RANGES[range][2];
+        return String.format("%.1fms@%sx", integrationSteps(range) * ASTEP_NANOS / 1e6,
+                code == 0 ? "0.5" : Integer.toString(1 << (code - 1)));
+    }
+
+    /* off by default: the fixed 100 ms at 4x keeps readings comparable without recalibration */
+    public void setAutoRange(boolean on) {
+        synchronized (bus) {
+            autoRange = on;
+            if (!on) {
+                range = FIXED_RANGE;
+            }
+        }
+    }
+
+    public boolean autoRanging() {
+        return autoRange;
+    }
+
+    /* AGAIN and integration steps the last complete spectrum was taken with */
+    public int gainCode() {
+        return RANGES[completedRange][2];
+    }
+
+    public long integrationSteps() {
+        return integrationSteps(completedRange);
+    }
+
+    public long integrationNanos() {
+        return integrationNanos;
+    }
+    static int getUnsignedIntFromLittleEndianByte2(byte[] arr) {
             return (0xFF & arr[1]) <<8 | (0xFF & arr[0]);
     }
     public void enableMeasurement() {
         try {
+            if (interrupt != null) {
+                register_write_byte(STATUS_REG, CLEAR_ALL_STATUS);
+                interrupt.clear();
+            }
             register_write_byte(ENABLE_REG, SPM_ENABLE);
+            measurementStarted = System.nanoTime();
         }
         catch (IOException e) {
             System.err.println("Couldn't enable spectral measurement");
@@ -348,33 +773,31 @@ set to “1”.
         0x13, SMUX_NOP
      */
 
+    private static final byte[] F1F6_SMUX = smuxBurst(new int[] {
+        (ADC_2<<4),                 // F3
+        ADC_0,                      // F1
+        SMUX_NONE,
+        SMUX_NONE,
+        ADC_5,                      // F6
+        ( ADC_3<<4 | ADC_1 ),       // F4 F2
+        ( ADC_4<<4 ),               // F5
+        SMUX_NONE,
+        SMUX_NONE,
+        ( ADC_4<<4 ),               // F5
+        SMUX_NONE,
+        SMUX_NONE,
+        ( ADC_1<<4 ),               // F2
+        ADC_3,                      // F4
+        ( ADC_5<<4 ),               // F6
+        ( ADC_2<<4 ),               // F3
+        ADC_0,                      // F1
+        SMUX_NONE,
+        SMUX_NONE,
+        SMUX_NONE,
+    });
+
     private void setF1F6SMUX() {
-        int[] smuxConfig = new int[20];
-        smuxConfig[0] = (ADC_2<<4);                 // F3
-        smuxConfig[1] = ADC_0;                      // F1
-        smuxConfig[2] = SMUX_NONE;
-        smuxConfig[3] = SMUX_NONE;
-        smuxConfig[4] = ADC_5;                      // F6
-        smuxConfig[5] = ( ADC_3<<4 | ADC_1 );       // F4 F2
-        smuxConfig[6] = ( ADC_4<<4 );               // F5
-        smuxConfig[7] = SMUX_NONE;
-        smuxConfig[8] = SMUX_NONE;
-        smuxConfig[9] = ( ADC_4<<4 );               // F5
-        smuxConfig[10] = SMUX_NONE;
-        smuxConfig[11] = SMUX_NONE;
-        smuxConfig[12] = ( ADC_1<<4 );              // F2
-        smuxConfig[13] = ADC_3;                     // F4
-        smuxConfig[14] = ( ADC_5<<4 );              // F6
-        smuxConfig[15] = ( ADC_2<<4 );              // F3
-        smuxConfig[16] = ADC_0;                     // F1
-        smuxConfig[17] = SMUX_NONE;
-        smuxConfig[18] = SMUX_NONE;
-        smuxConfig[19] = SMUX_NONE;
-        I2CBuffer smuxRAM = new I2CBuffer(20);
-        for(int i=0; i<smuxConfig.length; i++) {
-            smuxRAM.set(i, smuxConfig[i]);
-        }
-        writeSmux(smuxRAM);
+        writeSmux(F1F6_SMUX);
     }
     /*
      * F7 630 nm   50 nm   14,20            0x07 [2:0], 0x0A [2:0]  LOW,  LOW
@@ -382,104 +805,267 @@ set to “1”.
      * NIR 910 nm   n/a    38               0x13 [2:0]              LOW
      * Clear non-filtered  17,35            0x08 [6:4], 0x11 [6:4]  HIGH, HIGH
      */
+    private static final byte[] F7F8NIRCLEAR_SMUX = smuxBurst(new int[] {
+        SMUX_NONE,
+        SMUX_NONE,
+        SMUX_NONE,
+        (ADC_1<<4),     // F8 to ADC1
+        SMUX_NONE,
+        SMUX_NONE,
+        SMUX_NONE,
+        ADC_0,          // F7 to ADC0
+        (ADC_3<<4),     // Clear to ADC3
+        SMUX_NONE,
+        ADC_0,          // F7 to ADC0
+        SMUX_NONE,
+        SMUX_NONE,
+        SMUX_NONE,
+        ADC_1,          // F8 to ADC1
+        SMUX_NONE,
+        SMUX_NONE,
+        (ADC_3<<4),     // Clear to ADC3
+        SMUX_NONE,
+        ADC_2,          // NIR to ADC2
+    });
+
     private void setF7F8NIRCLEARSMUX() {
-        int[] smuxConfig = new int[20];
-        smuxConfig[0] = SMUX_NONE;
-        smuxConfig[1] = SMUX_NONE;
-        smuxConfig[2] = SMUX_NONE;
-        smuxConfig[3] = (ADC_1<<4);     // F8 to ADC1
-        smuxConfig[4] = SMUX_NONE;
-        smuxConfig[5] = SMUX_NONE;
-        smuxConfig[6] = SMUX_NONE;
-        smuxConfig[7] = ADC_0;          // F7 to ADC0
-        smuxConfig[8] = (ADC_3<<4);     // Clear to ADC3
-        smuxConfig[9] = SMUX_NONE;
-        smuxConfig[10] = ADC_0;         // F7 to ADC0
-        smuxConfig[11] = SMUX_NONE;
-        smuxConfig[12] = SMUX_NONE;
-        smuxConfig[13] = SMUX_NONE;
-        smuxConfig[14] = ADC_1;         // F8 to ADC1
-        smuxConfig[15] = SMUX_NONE;
-        smuxConfig[16] = SMUX_NONE;
-        smuxConfig[17] = (ADC_3<<4);    // Clear to ADC3
-        smuxConfig[18] = SMUX_NONE;
-        smuxConfig[19] = ADC_2;         // NIR to ADC2
-        I2CBuffer smuxRAM = new I2CBuffer(20);
-        for(int i=0; i<smuxConfig.length; i++) {
-            smuxRAM.set(i, smuxConfig[i]);
-        }
-        writeSmux(smuxRAM);
+        writeSmux(F7F8NIRCLEAR_SMUX);
+    }
+
+    /* SMUX RAM image as one burst write: the start register 0x00, then the
+       20 RAM bytes, which the chip stores to consecutive registers */
+    private static byte[] smuxBurst(int[] smuxConfig) {
+        byte[] burst = new byte[1 + SMUX_RAM_SIZE];
+        burst[0] = 0x00;
+        for (int i = 0; i < SMUX_RAM_SIZE; i++) {
+            burst[1 + i] = (byte) smuxConfig[i];
+        }
+        return burst;
     }
     private boolean setSmuxHighBank() {
         return false;
     }
 
-    /* write 20 bytes to SMUX
-    * TODO: figure out why setting interrupts isn't working
+    /* load a SMUX burst (see smuxBurst) into the chain
+    * SMUX completion is signalled on INT when we have the line (SINT_SMUX
+    * and SIEN are set in configure()), otherwise we poll SMUXEN in ENABLE.
+    * Register writes go through the shadow, so CFG6, CFG0 and a RAM image
+    * that is already loaded cost nothing after the first time.
     * */
-    private void writeSmux(I2CBuffer memoryBytes) {
+    private void writeSmux(byte[] smuxBurst) {
         /* power on b0 1 in ENABLE_REG
-         *  enable SINT_SMUX in CFG9 ; nope! apparently something breaks
-         *  enable SIEN in INTENAB   ; nope! apparently something breaks
          *  write SMUX CFG cmd in CFG6
          *  0x00,0x01,0x02,0x03,0x04
          *  0x04,0x05,0x06,0x07...*/
+        synchronized (bus) {
+            try {
+                /* stops SP_EN, the SMUX must not change during a measurement */
+                register_write_byte(ENABLE_REG, POWER_ON);
+                register_write_byte(CFG6_REG, WRITE_SMUX_CONF);
+                shadow.writeBurst(smuxBurst);
+                register_write_byte(CFG0_REG, BLANK_CFG0_SET);
+                if (interrupt != null) {
+                    register_write_byte(STATUS_REG, CLEAR_ALL_STATUS);
+                    interrupt.clear();
+                }
+                register_write_byte(ENABLE_REG, START_SMUXEN_PON);
+            } catch (IOException e) {
+                System.err.println("Failed to write SMUX configuration to spectrometer.");
+                return;
+            }
+        }
+        boolean loaded = awaitSmux();
+        synchronized (bus) {
+            if (loaded) {
+                /* SMUXEN has cleared itself, ENABLE is back to PON */
+                shadow.assume(ENABLE_REG, POWER_ON);
+            } else {
+                shadow.invalidate();
+            }
+        }
+    }
+
+    private boolean awaitSmux() {
+        if (interrupt != null) {
+            if (awaitInterrupt(SMUX_TIMEOUT_NANOS)) {
+                return true;
+            }
+            logger.debug("No SMUX interrupt, polling");
+        }
+        /* SMUXEN clears itself once the SMUX command has run */
+        long pause = SMUX_POLL_FIRST_US;
+        for (int i = 0; i < SMUX_MAX_POLLS; i++) {
+            Utils.suspend(pause);
+            if ((register_read_byte(ENABLE_REG) & SMUXEN) == 0) {
+                return true;
+            }
+            pause *= 2;
+        }
+        System.err.println("Spectrometer SMUX command did not complete");
+        return false;
+    }
 
+    /* measure back to back into the FIFO instead of one sweep at a time.
+       Only one SMUX profile fits a measurement, visible picks F1-F6 (six
+       ADCs), otherwise F7, F8, NIR and Clear (four). Each cycle takes
+       (atime + 1) x (astep + 1) x 2.78µs at the current gain, 2.78 ms for
+       0 and 999, so a 128 entry FIFO holds 89 ms of four channels. Sweeps
+       can't be taken until stopContinuous() */
+    public void startContinuous(boolean visible, int atime, int astep) {
+        ensureConfigured();
+        writeSmux(visible ? F1F6_SMUX : F7F8NIRCLEAR_SMUX);
+        synchronized (bus) {
+            int channels = visible ? 6 : 4;
+            try {
+                write_astep(astep);
+                register_write_byte(ATIME_REG, atime);
+                register_write_byte(GAIN_REG, RANGES[range][2]);
+                register_write_byte(FIFO_MAP_REG, ((1 << channels) - 1) << 1);
+                if (interrupt != null) {
+                    /* an interrupt every cycle would only keep the line busy */
+                    register_write_byte(INTENAB_REG, SIEN_ENABLE);
+                }
+                register_write_byte(CONTROL_REG, FIFO_CLR);
+                register_write_byte(ENABLE_REG, SPM_ENABLE);
+            } catch (IOException e) {
+                System.err.println("Couldn't start continuous spectral measurement");
+                shadow.invalidate();
+                return;
+            }
+            fifoChannels = channels;
+            fifoOffset = visible ? 0 : 6;
+            fifoPeriodNanos = (atime + 1L) * (astep + 1L) * ASTEP_NANOS;
+            measurementStarted = System.nanoTime();
+            lastDrainNanos = measurementStarted;
+        }
+    }
 
-        if (memoryBytes.length != 20)
-            return;
-        try {
-            bus.selectSlave(ADAFRUIT_SPECTROMETER);
-            register_write_byte(ENABLE_REG, POWER_ON);
-        //    register_write_byte(CFG9_REG, SINT_SMUX_ENABLE);
-        //    register_write_byte(INTENAB_REG, SIEN_ENABLE);
-            register_write_byte(CFG6_REG, WRITE_SMUX_CONF);
-            for (int i = 0; i < memoryBytes.length; i++) {
-                var b = memoryBytes.get(i);
-                register_write_byte(i, b);
+    /* back to single sweeps, configure() restores the registers */
+    public void stopContinuous() {
+        synchronized (bus) {
+            try {
+                register_write_byte(ENABLE_REG, POWER_ON);
+                register_write_byte(FIFO_MAP_REG, 0);
+                register_write_byte(CONTROL_REG, FIFO_CLR);
+            } catch (IOException e) {
+                System.err.println("Couldn't stop continuous spectral measurement");
             }
-            register_write_byte(CFG0_REG, BLANK_CFG0_SET);
-            register_write_byte(ENABLE_REG, START_SMUXEN_PON);
-            Utils.suspend(500); /* TODO: should poll for interrupt flag */
-            register_write_byte(ENABLE_REG, POWER_ON);
-        } catch (IOException e) {
-            System.err.println("Failed to write SMUX configuration to spectrometer.");
+            fifoChannels = 0;
+        }
+        configure();
+    }
+
+    public boolean continuous() {
+        return fifoChannels != 0;
+    }
+
+    public int fifoChannels() {
+        return fifoChannels;
+    }
+
+    public int fifoOffset() {
+        return fifoOffset;
+    }
+
+    public long fifoPeriodNanos() {
+        return fifoPeriodNanos;
+    }
+
+    /* move the FIFO into ring once it is half full: FIFO_LVL, then every
+       complete sample in one FDATA burst, so polling more often than that
+       costs a one byte read. Partial samples
+       stay for the next drain so entries never lose their channel. A full FIFO
+       may have overflowed, then which samples it kept is unknown, so it is
+       cleared and everything since the last drain counted as lost. The newest
+       sample is taken as finished half a cycle ago, earlier ones a cycle
+       apart. Returns the samples added */
+    public int drainFifo(SpectralRing ring) {
+        synchronized (bus) {
+            int channels = fifoChannels;
+            if (channels == 0) {
+                return 0;
+            }
+            int level = register_read_byte(FIFO_LVL_REG);
+            long now = System.nanoTime();
+            if (level >= FIFO_ENTRIES && (register_read_byte(STATUS6_REG) & FIFO_OV) != 0) {
+                long cycles = (now - lastDrainNanos) / fifoPeriodNanos;
+                ring.markLost(Math.max(1, cycles));
+                try {
+                    register_write_byte(CONTROL_REG, FIFO_CLR);
+                } catch (IOException e) {
+                    System.err.println("Couldn't clear spectrometer FIFO");
+                }
+                lastDrainNanos = now;
+                return 0;
+            }
+            int samples = level / channels;
+            if (samples == 0 || samples < FIFO_ENTRIES / channels / 2) {
+                return 0;
+            }
+            int bytes = samples * channels * 2;
+            try {
+                bus.readRegisters(address, FDATA_REG, fifoBuf, bytes);
+            } catch (IOException e) {
+                System.err.println("Failed to read spectrometer FIFO");
+                return 0;
+            }
+            for (int i = 0; i < samples * channels; i++) {
+                fifoCounts[i] = (0xFF & fifoBuf[2 * i + 1]) << 8 | (0xFF & fifoBuf[2 * i]);
+            }
+            ring.append(fifoCounts, samples, now - fifoPeriodNanos / 2, fifoPeriodNanos);
+            lastDrainNanos = now;
+            return samples;
         }
     }
 
+    /* through the shadow, a write that changes nothing is skipped */
     private void register_write_byte(int reg_addr, int reg_byte) throws IOException {
         synchronized (bus) {
-            twoBuf.clear();
-            twoBuf.set(0, reg_addr);
-            twoBuf.set(1, reg_byte);
-            bus.selectSlave(ADAFRUIT_SPECTROMETER);
-            bus.write(twoBuf);
-            twoBuf.clear();
-        }
-    }
-
-    private byte[] register_read_bytes(int reg_addr, I2CBuffer buf) {
-        I2CTransaction transaction = new I2CTransaction(2);
-        oneBuf.set(0, reg_addr);
-        transaction.getMessage(0)
-                .setAddress(ADAFRUIT_SPECTROMETER)
-                .setBuffer(oneBuf);
-        transaction.getMessage(1)
-                .setAddress(ADAFRUIT_SPECTROMETER)
-                .setFlags(new I2CFlags().set(I2CFlag.READ))
-                .setBuffer(buf);
+            shadow.write(reg_addr, reg_byte);
+        }
+    }
+
+    /* ASTEP is latched on its low byte, so both bytes go in one burst
+       (ASTEP_LSB_REG then ASTEP_MSB_REG) with nothing between them */
+    private void write_astep(int astep) throws IOException {
+        synchronized (bus) {
+            astepBurst[1] = (byte) astep;
+            astepBurst[2] = (byte) (astep >> 8);
+            shadow.writeBurst(astepBurst);
+        }
+    }
+
+    /* shadow statistics, writes made and skipped, and the range if auto-ranging */
+    public String registerReport() {
+        synchronized (bus) {
+            if (!autoRange) {
+                return shadow.report();
+            }
+            return shadow.report() + " range=" + describe(completedRange) + " changes=" + rangeChanges;
+        }
+    }
+
+    /* one register, without the copy register_read_bytes makes */
+    private int register_read_byte(int reg_addr) {
         synchronized (bus) {
             try {
-                bus.doTransaction(transaction);
+                bus.readRegisters(address, reg_addr, oneBuf, 1);
             } catch (IOException e) {
                 System.err.println("Failed to execute register read transaction on spectrometer");
+                return 0;
             }
+            return oneBuf[0] & 0xFF;
         }
-        byte[] b = new byte[buf.length];
-        for (int i = 0; i < buf.length; i++) {
-            b[i] = (byte) buf.get(i);
+    }
 
+    private byte[] register_read_bytes(int reg_addr, byte[] buf) {
+        synchronized (bus) {
+            try {
+                bus.readRegisters(address, reg_addr, buf, buf.length);
+            } catch (IOException e) {
+                System.err.println("Failed to execute register read transaction on spectrometer");
+            }
+            return buf.clone();
         }
-        return b;
     }
-}
\ No newline at end of file
+}
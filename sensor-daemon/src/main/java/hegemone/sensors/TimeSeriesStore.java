@@ -0,0 +1,231 @@
+package hegemone.sensors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* the last hours of every reading, for QueryServer.
+ *
+ * Each station gets a Series per sensor, allocated up front: the times the
+ * sensor was read and one float array per channel, sized to hold hours of
+ * readings at the sensor's sampling period (or the frame period, if that is
+ * longer), so memory is fixed at startup and bytes() says how much.
+ * Readings are taken from published frames, once per read however many
+ * frames repeat them. One thread records, any number query; a query that
+ * finds the recorder lapped it while reading starts again further on.
+ */
+class TimeSeriesStore {
+    /* times and channel values of one sensor, a ring by sequence number */
+    static final class Series {
+        private final String[] channels;
+        private final long[] times;
+        private final float[][] values;
+        private final int capacity;
+        private final AtomicLong written = new AtomicLong();
+        /* sampledAt of the last reading recorded, recorder only */
+        private long last;
+
+        Series(int capacity, String... channels) {
+            this.channels = channels;
+            this.capacity = capacity;
+            times = new long[capacity];
+            values = new float[channels.length][capacity];
+        }
+
+        String[] channels() {
+            return channels;
+        }
+
+        int capacity() {
+            return capacity;
+        }
+
+        long bytes() {
+            return (long) capacity * (Long.BYTES + channels.length * Float.BYTES);
+        }
+
+        int channel(String name) {
+            for (int i = 0; i < channels.length; i++) {
+                if (channels[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /* record channel values taken at sampledAt, unless that reading is in already */
+        private boolean begin(long sampledAt) {
+            return sampledAt != 0 && sampledAt != last;
+        }
+
+        private void set(int channel, double value) {
+            values[channel][(int) (written.get() % capacity)] = (float) value;
+        }
+
+        private void commit(long sampledAt) {
+            long w = written.get();
+            times[(int) (w % capacity)] = sampledAt;
+            last = sampledAt;
+            written.lazySet(w + 1);
+        }
+
+        long written() {
+            return written.get();
+        }
+
+        long oldest() {
+            return Math.max(0, written.get() - capacity);
+        }
+
+        /* whether sequence seq has been overwritten (or is about to be) */
+        boolean lapped(long seq) {
+            /* the recorder may be writing the slot after the newest */
+            return seq < written.get() + 1 - capacity;
+        }
+
+        long time(long seq) {
+            return times[(int) (seq % capacity)];
+        }
+
+        float value(int channel, long seq) {
+            return values[channel][(int) (seq % capacity)];
+        }
+
+        /* first sequence at or after time, written() if none */
+        long find(long time) {
+            long lo = oldest();
+            long hi = written.get();
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                if (time(mid) < time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    /* one station's sensors, null where it has none */
+    static final class Station {
+        private final String name;
+        private final Series soil;
+        private final Series ambient;
+        private final Series light;
+        private final Series spectral;
+
+        Station(String name, Series soil, Series ambient, Series light, Series spectral) {
+            this.name = name;
+            this.soil = soil;
+            this.ambient = ambient;
+            this.light = light;
+            this.spectral = spectral;
+        }
+
+        String name() {
+            return name;
+        }
+
+        List<Series> series() {
+            var all = new ArrayList<Series>(4);
+            for (var s : new Series[] {soil, ambient, light, spectral}) {
+                if (s != null) {
+                    all.add(s);
+                }
+            }
+            return all;
+        }
+
+        /* the series holding channel, null if the station has none */
+        Series find(String channel) {
+            for (var s : series()) {
+                if (s.channel(channel) >= 0) {
+                    return s;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Station[] stations;
+
+    /* hours of history for each of stations */
+    TimeSeriesStore(List<Sensors> stations, double hours) {
+        this.stations = new Station[stations.size()];
+        for (int i = 0; i < this.stations.length; i++) {
+            var s = stations.get(i);
+            this.stations[i] = new Station(s.getStation(),
+                    s.hasSoilSensor() ? new Series(capacity(hours, Settings.SOIL_PERIOD), "moisture", "soil_temp") : null,
+                    s.hasTemperatureProbe() ? new Series(capacity(hours, Settings.W1_PERIOD), "ambient_temp") : null,
+                    s.hasLightSensor() ? new Series(capacity(hours, Settings.LIGHT_PERIOD), "lux") : null,
+                    s.hasSpectralSensor() ? new Series(capacity(hours, spectralPeriod()), SensorFrame.CHANNEL_NAMES) : null);
+        }
+    }
+
+    private static long spectralPeriod() {
+        return "continuous".equals(Settings.ACQUISITION) ? Settings.FIFO_DRAIN : Settings.SPECTRAL_PERIOD;
+    }
+
+    /* readings in hours: a frame carries at most one per sensor, and pipelined frames read every sensor */
+    private static int capacity(double hours, long period) {
+        long interval = "pipelined".equals(Settings.ACQUISITION) ? Settings.FRAME_PERIOD
+                : Math.max(period, Settings.FRAME_PERIOD);
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, (long) Math.ceil(hours * 3_600_000 / interval)));
+    }
+
+    /* the station named, or the only one when name is null */
+    Station station(String name) {
+        for (var s : stations) {
+            if (name == null ? stations.length == 1 : name.equals(s.name())) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    List<Station> stations() {
+        return List.of(stations);
+    }
+
+    long bytes() {
+        long total = 0;
+        for (var station : stations) {
+            for (var s : station.series()) {
+                total += s.bytes();
+            }
+        }
+        return total;
+    }
+
+    /* the frame's new readings, publishing thread only */
+    void record(SensorFrame frame) {
+        var station = station(frame.station);
+        if (station == null) {
+            return;
+        }
+        var soil = station.soil;
+        if (soil != null && soil.begin(frame.soilSampledAt)) {
+            soil.set(0, frame.moisture);
+            soil.set(1, frame.soilTemp);
+            soil.commit(frame.soilSampledAt);
+        }
+        var ambient = station.ambient;
+        if (ambient != null && ambient.begin(frame.ambientSampledAt)) {
+            ambient.set(0, frame.ambientTemp);
+            ambient.commit(frame.ambientSampledAt);
+        }
+        var light = station.light;
+        if (light != null && light.begin(frame.luxSampledAt)) {
+            light.set(0, frame.lux);
+            light.commit(frame.luxSampledAt);
+        }
+        var spectral = station.spectral;
+        if (spectral != null && spectral.begin(frame.spectralSampledAt)) {
+            for (int i = 0; i < SensorFrame.CHANNELS; i++) {
+                spectral.set(i, frame.spectral[i]);
+            }
+            spectral.commit(frame.spectralSampledAt);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/* low cpu precise waits.
+ *
+ * The bulk of a wait is spent in LockSupport.parkNanos, which on Linux
+ * wakes up late by roughly the thread's timer slack (50µs by default) plus
+ * scheduler latency. We park for the requested time minus that expected
+ * lateness and spin only the last stretch, so short I2C settle times stay
+ * as accurate as the old busy loop while the core is mostly idle.
+ *
+ * The expected lateness is measured at startup and then tracked as a moving
+ * average of what every park actually overshot.
+ */
+class Timing {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.timing");
+    /* spin at least this long before the deadline, covers jitter around the average */
+    private static final long SPIN_MARGIN_NS = 20_000L;
+    /* never trust an estimate above this, a loaded box would otherwise stop parking */
+    private static final long MAX_SLACK_NS = 2_000_000L;
+    private static final int CALIBRATION_ROUNDS = 64;
+    private static volatile long slackNanos;
+    private static final LongAdder waits = new LongAdder();
+    private static final LongAdder overshootNanos = new LongAdder();
+    private static final AtomicLong maxOvershootNanos = new AtomicLong();
+    private static final LongAdder parkedNanos = new LongAdder();
+    private static final LongAdder spunNanos = new LongAdder();
+
+    static {
+        calibrate();
+    }
+
+    /* suspend x microseconds */
+    static void suspend(long us) {
+        sleepNanos(us * 1000);
+    }
+
+    static void sleepNanos(long ns) {
+        long start = System.nanoTime();
+        long deadline = start + ns;
+        long remaining = ns;
+        if (remaining > SPIN_MARGIN_NS && remaining <= slackNanos + SPIN_MARGIN_NS) {
+            /* too short to park with the current estimate, let it drift down
+               so one bad stretch can't turn every wait into a spin */
+            slackNanos -= slackNanos / 64;
+        }
+        while (remaining > slackNanos + SPIN_MARGIN_NS) {
+            long request = remaining - slackNanos;
+            long before = System.nanoTime();
+            LockSupport.parkNanos(request);
+            long after = System.nanoTime();
+            /* a park can also return early (spurious wakeup, unpark), only learn from late ones */
+            long late = (after - before) - request;
+            if (late > 0) {
+                learn(late);
+            }
+            remaining = deadline - after;
+        }
+        long spinStart = System.nanoTime();
+        while (deadline - System.nanoTime() > 0) {
+            Thread.onSpinWait();
+        }
+        long end = System.nanoTime();
+        parkedNanos.add(spinStart - start);
+        spunNanos.add(end - spinStart);
+        record(end - deadline);
+    }
+
+    /* moving average over ~8 parks, single outliers (page faults, a busy
+       core) are clipped so they nudge the estimate instead of resetting it */
+    private static void learn(long late) {
+        long s = slackNanos;
+        long sample = Math.min(late, 2 * s + SPIN_MARGIN_NS);
+        slackNanos = Math.min(MAX_SLACK_NS, s + (sample - s) / 8);
+    }
+
+    private static void record(long overshoot) {
+        waits.increment();
+        overshootNanos.add(overshoot);
+        long max = maxOvershootNanos.get();
+        while (overshoot > max && !maxOvershootNanos.compareAndSet(max, overshoot)) {
+            max = maxOvershootNanos.get();
+        }
+    }
+
+    /* estimate park lateness from a burst of short parks, seeded from the
+       kernel's view of our timer slack */
+    static void calibrate() {
+        long kernelSlack = kernelTimerSlack();
+        long[] late = new long[CALIBRATION_ROUNDS];
+        for (int i = 0; i < late.length; i++) {
+            long request = 50_000L;
+            long before = System.nanoTime();
+            LockSupport.parkNanos(request);
+            late[i] = Math.max(0, System.nanoTime() - before - request);
+        }
+        Arrays.sort(late);
+        /* upper quartile, the margin spin absorbs the rest */
+        long measured = late[late.length * 3 / 4];
+        slackNanos = Math.min(MAX_SLACK_NS, measured > 0 ? measured : Math.max(0, kernelSlack));
+        logger.debug("Timer slack: kernel {} ns, measured park lateness {} ns, using {} ns",
+                kernelSlack, measured, slackNanos);
+    }
+
+    private static long kernelTimerSlack() {
+        try {
+            return Long.parseLong(Files.readString(Path.of("/proc/self/timerslack_ns")).trim());
+        } catch (IOException | NumberFormatException | SecurityException e) {
+            return -1;
+        }
+    }
+
+    static long slackNanos() {
+        return slackNanos;
+    }
+
+    static String report() {
+        long n = waits.sum();
+        long parked = parkedNanos.sum();
+        long spun = spunNanos.sum();
+        return String.format("waits=%d slack=%dns overshoot mean=%dns max=%dns spin=%.1f%%",
+                n, slackNanos, n == 0 ? 0 : overshootNanos.sum() / n, maxOvershootNanos.get(),
+                parked + spun == 0 ? 0.0 : 100.0 * spun / (parked + spun));
+    }
+}
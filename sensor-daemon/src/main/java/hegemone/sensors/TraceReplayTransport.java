@@ -0,0 +1,274 @@
+package hegemone.sensors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/* I2CTransport that plays back an ftrace capture of the i2c events, as in
+ * dumps/hegemone-debug-log.txt:
+ *
+ *   echo 1 > /sys/kernel/debug/tracing/events/i2c/enable
+ *   cat /sys/kernel/debug/tracing/trace
+ *
+ * Each request is matched against the next recorded transaction of the same
+ * shape and address (skipping a few if the code has drifted from the trace),
+ * reads are answered from the recorded i2c_reply and negative results are
+ * raised as IOExceptions. speed 1.0 replays at the captured pace, 2.0 twice
+ * as fast and 0 as fast as possible. Matching statistics are kept so a change
+ * in the bus traffic of the acquisition loop shows up against an old trace.
+ */
+class TraceReplayTransport implements I2CTransport {
+    private static final Logger logger = LoggerFactory.getLogger("hegemone.sensors.replay");
+    /* how many recorded transactions we may skip to find a match */
+    private static final int LOOKAHEAD = 16;
+    private static final Pattern EVENT = Pattern.compile(
+            "^\\s*\\S+\\s+\\[\\d+\\]\\s+\\S+\\s+(\\d+\\.\\d+):\\s+i2c_(write|read|reply|result):\\s+\\S+\\s+(.*)$");
+    private static final Pattern MESSAGE = Pattern.compile(
+            "#(\\d+) a=([0-9a-fA-F]+) f=([0-9a-fA-F]+) l=(\\d+)(?: \\[([0-9a-fA-F-]*)\\])?.*");
+    private static final Pattern RESULT = Pattern.compile("n=(\\d+) ret=(-?\\d+).*");
+
+    static final class Message {
+        final int address;
+        final boolean read;
+        final int length;
+        byte[] data;
+
+        Message(int address, boolean read, int length, byte[] data) {
+            this.address = address;
+            this.read = read;
+            this.length = length;
+            this.data = data;
+        }
+    }
+
+    static final class Transaction {
+        final long timestamp;
+        final List<Message> messages = new ArrayList<>(2);
+        int ret;
+
+        Transaction(long timestamp) {
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final String path;
+    private final List<Transaction> trace;
+    private final double speed;
+    private final boolean loop;
+    private int cursor;
+    private long replayStart = -1;
+    private long matched;
+    private long skipped;
+    private long unmatched;
+    private long divergent;
+
+    TraceReplayTransport(String path, List<Transaction> trace, double speed, boolean loop) {
+        this.path = path;
+        this.trace = trace;
+        this.speed = speed;
+        this.loop = loop;
+    }
+
+    static TraceReplayTransport load(String path, double speed, boolean loop) throws IOException {
+        var trace = parse(path);
+        if (trace.isEmpty()) {
+            throw new IOException("No i2c events in trace " + path);
+        }
+        logger.info("Replaying {} I2C transactions from {} at speed {}", trace.size(), path, speed);
+        return new TraceReplayTransport(path, trace, speed, loop);
+    }
+
+    static List<Transaction> parse(String path) throws IOException {
+        var trace = new ArrayList<Transaction>();
+        Transaction current = null;
+        try (var reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher ev = EVENT.matcher(line);
+                if (!ev.matches()) {
+                    continue;
+                }
+                long ts = (long) (Double.parseDouble(ev.group(1)) * 1e9);
+                String kind = ev.group(2);
+                if (kind.equals("result")) {
+                    Matcher r = RESULT.matcher(ev.group(3));
+                    if (current != null && r.matches()) {
+                        current.ret = Integer.parseInt(r.group(2));
+                        trace.add(current);
+                    }
+                    current = null;
+                    continue;
+                }
+                Matcher m = MESSAGE.matcher(ev.group(3));
+                if (!m.matches()) {
+                    continue;
+                }
+                int index = Integer.parseInt(m.group(1));
+                int address = Integer.parseInt(m.group(2), 16);
+                int length = Integer.parseInt(m.group(4));
+                byte[] data = parseBytes(m.group(5));
+                if (current == null) {
+                    current = new Transaction(ts);
+                }
+                switch (kind) {
+                    case "write":
+                        current.messages.add(new Message(address, false, length, data));
+                        break;
+                    case "read":
+                        current.messages.add(new Message(address, true, length, null));
+                        break;
+                    case "reply":
+                        if (index < current.messages.size()) {
+                            current.messages.get(index).data = data;
+                        }
+                        break;
+                    default:
+                }
+            }
+        }
+        return trace;
+    }
+
+    private static byte[] parseBytes(String hex) {
+        if (hex == null || hex.isEmpty()) {
+            return new byte[0];
+        }
+        String[] parts = hex.split("-");
+        byte[] b = new byte[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            b[i] = (byte) Integer.parseInt(parts[i], 16);
+        }
+        return b;
+    }
+
+    @Override
+    public synchronized void write(int address, byte[] data, int length) throws IOException {
+        var t = next(address, length, -1);
+        if (t != null && !sameBytes(t.messages.get(0).data, data, length)) {
+            divergent++;
+        }
+        complete(t);
+    }
+
+    @Override
+    public synchronized void read(int address, byte[] data, int length) throws IOException {
+        var t = next(address, -1, length);
+        fill(t == null ? null : t.messages.get(0), data, length);
+        complete(t);
+    }
+
+    @Override
+    public synchronized void writeRead(int address, byte[] out, int outLength, byte[] in, int inLength) throws IOException {
+        var t = next(address, outLength, inLength);
+        if (t != null && !sameBytes(t.messages.get(0).data, out, outLength)) {
+            divergent++;
+        }
+        fill(t == null ? null : t.messages.get(1), in, inLength);
+        complete(t);
+    }
+
+    /* find the next recorded transaction with the requested shape,
+       outLength or inLength of -1 means no such message */
+    private Transaction next(int address, int outLength, int inLength) throws IOException {
+        if (cursor >= trace.size()) {
+            if (!loop) {
+                throw new IOException("End of I2C trace " + path);
+            }
+            cursor = 0;
+            replayStart = -1;
+        }
+        int end = Math.min(trace.size(), cursor + LOOKAHEAD);
+        for (int i = cursor; i < end; i++) {
+            var t = trace.get(i);
+            if (shapeMatches(t, address, outLength, inLength)) {
+                skipped += i - cursor;
+                matched++;
+                cursor = i + 1;
+                return t;
+            }
+        }
+        unmatched++;
+        logger.debug("No recorded transaction for a=0x{} near #{}", Integer.toHexString(address), cursor);
+        return null;
+    }
+
+    private static boolean shapeMatches(Transaction t, int address, int outLength, int inLength) {
+        var msgs = t.messages;
+        int expected = (outLength >= 0 ? 1 : 0) + (inLength >= 0 ? 1 : 0);
+        if (msgs.size() != expected) {
+            return false;
+        }
+        int i = 0;
+        if (outLength >= 0) {
+            var m = msgs.get(i++);
+            if (m.read || m.address != address || m.length != outLength) {
+                return false;
+            }
+        }
+        if (inLength >= 0) {
+            var m = msgs.get(i);
+            return m.read && m.address == address && m.length == inLength;
+        }
+        return true;
+    }
+
+    private static boolean sameBytes(byte[] recorded, byte[] data, int length) {
+        if (recorded == null || recorded.length != length) {
+            return recorded == null;
+        }
+        for (int i = 0; i < length; i++) {
+            if (recorded[i] != data[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void fill(Message m, byte[] data, int length) {
+        for (int i = 0; i < length; i++) {
+            data[i] = (m != null && m.data != null && i < m.data.length) ? m.data[i] : 0;
+        }
+    }
+
+    /* hold the caller until the recorded time of t, then report its result */
+    private void complete(Transaction t) throws IOException {
+        if (t == null) {
+            return;
+        }
+        if (speed > 0) {
+            long now = System.nanoTime();
+            if (replayStart < 0) {
+                replayStart = now - (long) ((t.timestamp - trace.get(0).timestamp) / speed);
+            }
+            long due = replayStart + (long) ((t.timestamp - trace.get(0).timestamp) / speed);
+            if (due - now > 0) {
+                Timing.sleepNanos(due - now);
+            }
+        }
+        if (t.ret < 0) {
+            throw new IOException("Replayed I2C error " + t.ret);
+        }
+    }
+
+    synchronized String stats() {
+        return String.format("matched=%d skipped=%d unmatched=%d divergent=%d position=%d/%d",
+                matched, skipped, unmatched, divergent, cursor, trace.size());
+    }
+
+    @Override
+    public String name() {
+        return REPLAY_PREFIX + path;
+    }
+
+    @Override
+    public void close() {
+        logger.info("I2C replay of {} finished: {}", path, stats());
+    }
+}
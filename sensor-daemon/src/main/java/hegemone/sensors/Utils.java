@@ -1,17 +1,11 @@
 package hegemone.sensors;
 
-import io.helins.linux.i2c.*;
-
 import java.io.IOException;
 
 class Utils {
-	/* suspend x microseconds */
+	/* suspend x microseconds, parks and only spins the tail (see Timing) */
 	public static void suspend(long us) {
-		long t = System.nanoTime() + (us * 1000);
-		/* spin cpu */
-		while (t > System.nanoTime()){
-			;
-		}
+		Timing.suspend(us);
 	}
 
 	public static String byteString(byte[] bytes) {
@@ -24,28 +18,18 @@ class Utils {
 		return sb.toString();
 	}
 
-	public static byte[] read_register(I2CBus bus, int device, int register, int len) throws IOException {
-		var tx = new I2CTransaction(2);
-		/* we have to wrap the reads in a two-step
-		   NO_START transaction using this API
-		   or we get nothing back from the device
-		*/
-		var readout = new I2CBuffer(len);
-		tx.getMessage(0).setAddress(device)
-				.setFlags(new I2CFlags().set(I2CFlag.NO_START))
-				.setBuffer(new I2CBuffer(1).set(0,register));
-		tx.getMessage(1).setAddress(device)
-				.setFlags(new I2CFlags().set(I2CFlag.READ))
-				.setBuffer(readout);
-		synchronized(bus) {
-			bus.doTransaction(tx);
-		}
+	public static byte[] read_register(I2CTransport bus, int device, int register, int len) throws IOException {
 		byte[] b = new byte[len];
-		for (int i=0;i<len;i++) {
-			b[i] = (byte) readout.get(i);
+		read_register(bus, device, register, b, len);
+		return b;
+	}
 
+	/* same into a caller's buffer. We have to wrap the reads in a two-step
+	   NO_START write-register/read transaction or we get nothing back from the
+	   device; len > 1 reads consecutive registers in that one transaction */
+	public static void read_register(I2CTransport bus, int device, int register, byte[] into, int len) throws IOException {
+		synchronized(bus) {
+			bus.readRegisters(device, register, into, len);
 		}
-		return b;
 	}
 }
-
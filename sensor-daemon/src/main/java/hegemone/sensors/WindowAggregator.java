@@ -0,0 +1,286 @@
+package hegemone.sensors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/* summarises frames over time windows before they reach DataSubmitter, so
+ * sensors can be sampled often without posting every frame.
+ *
+ * A window is a length and a hop in ms: equal they tumble, a shorter hop
+ * makes them slide, a new window starting every hop. Windows are aligned to
+ * the epoch so every station's close together. For each field of the frame
+ * a window keeps count, min, max, mean and variance (Welford) and p50/p95
+ * from a QuantileSketch, so its memory is fixed however many frames it
+ * sees. A field only takes a value when its sensor was read again, frames
+ * repeating the latest reading don't weigh it.
+ *
+ * Each station has length / hop accumulators per window. A window is
+ * summarised by the first frame of its station past its end, and the
+ * summary submitted as JSON text. Whether the frames go out as well is up
+ * to the caller.
+ * Only the publishing thread calls accept().
+ */
+class WindowAggregator {
+    private static final double[] QUANTILES = {0.5, 0.95};
+    static final String[] FIELD_NAMES = new String[4 + SensorFrame.CHANNELS];
+    private static final int MOISTURE = 0;
+    private static final int SOIL_TEMP = 1;
+    private static final int AMBIENT_TEMP = 2;
+    private static final int LUX = 3;
+    private static final int SPECTRAL = 4;
+
+    static {
+        FIELD_NAMES[MOISTURE] = "moisture";
+        FIELD_NAMES[SOIL_TEMP] = "soil_temp";
+        FIELD_NAMES[AMBIENT_TEMP] = "ambient_temp";
+        FIELD_NAMES[LUX] = "lux";
+        System.arraycopy(SensorFrame.CHANNEL_NAMES, 0, FIELD_NAMES, SPECTRAL, SensorFrame.CHANNELS);
+    }
+
+    /* length and hop in ms, hop divides length */
+    record Window(long length, long hop) {
+        Window {
+            if (hop <= 0 || length < hop || length % hop != 0) {
+                throw new IllegalArgumentException("Window of " + length + " ms can't hop by " + hop + " ms");
+            }
+        }
+
+        /* "length" tumbling or "length/hop" sliding, in ms */
+        static Window parse(String spec) {
+            int slash = spec.indexOf('/');
+            if (slash < 0) {
+                long length = Long.parseLong(spec.trim());
+                return new Window(length, length);
+            }
+            return new Window(Long.parseLong(spec.substring(0, slash).trim()),
+                    Long.parseLong(spec.substring(slash + 1).trim()));
+        }
+
+        /* comma separated, as in hegemone.windows; empty for none */
+        static List<Window> parseList(String specs) {
+            var windows = new ArrayList<Window>();
+            for (var spec : specs.split(",")) {
+                if (!spec.isBlank()) {
+                    windows.add(parse(spec));
+                }
+            }
+            return windows;
+        }
+    }
+
+    /* statistics of every field over one window */
+    static final class Stats {
+        private final long[] count = new long[FIELD_NAMES.length];
+        private final double[] mean = new double[FIELD_NAMES.length];
+        private final double[] m2 = new double[FIELD_NAMES.length];
+        private final double[] min = new double[FIELD_NAMES.length];
+        private final double[] max = new double[FIELD_NAMES.length];
+        private final QuantileSketch[] sketches = new QuantileSketch[FIELD_NAMES.length];
+        private long start = Long.MIN_VALUE;
+        private long frames;
+
+        Stats() {
+            for (int i = 0; i < sketches.length; i++) {
+                sketches[i] = new QuantileSketch(QUANTILES);
+            }
+        }
+
+        void reset(long start) {
+            this.start = start;
+            frames = 0;
+            for (int i = 0; i < count.length; i++) {
+                count[i] = 0;
+                mean[i] = 0;
+                m2[i] = 0;
+                sketches[i].clear();
+            }
+        }
+
+        void add(int field, double x) {
+            long n = ++count[field];
+            double delta = x - mean[field];
+            mean[field] += delta / n;
+            m2[field] += delta * (x - mean[field]);
+            if (n == 1 || x < min[field]) {
+                min[field] = x;
+            }
+            if (n == 1 || x > max[field]) {
+                max[field] = x;
+            }
+            sketches[field].add(x);
+        }
+
+        long count(int field) {
+            return count[field];
+        }
+
+        double mean(int field) {
+            return mean[field];
+        }
+
+        /* sample variance, 0 for a single value */
+        double variance(int field) {
+            return count[field] < 2 ? 0 : m2[field] / (count[field] - 1);
+        }
+
+        double min(int field) {
+            return min[field];
+        }
+
+        double max(int field) {
+            return max[field];
+        }
+
+        double quantile(int field, double q) {
+            return sketches[field].quantile(q);
+        }
+
+        long start() {
+            return start;
+        }
+
+        long frames() {
+            return frames;
+        }
+    }
+
+    /* one station's accumulators and the reading times its last frame carried */
+    private static final class Station {
+        final Stats[][] windows;
+        long soilAt;
+        long ambientAt;
+        long luxAt;
+        long spectralAt;
+
+        Station(List<Window> specs) {
+            windows = new Stats[specs.size()][];
+            for (int w = 0; w < windows.length; w++) {
+                var spec = specs.get(w);
+                windows[w] = new Stats[(int) (spec.length() / spec.hop())];
+                for (int i = 0; i < windows[w].length; i++) {
+                    windows[w][i] = new Stats();
+                }
+            }
+        }
+    }
+
+    private final Window[] windows;
+    private final Map<String, Station> stations = new HashMap<>();
+    private final StringBuilder json = new StringBuilder(2048);
+    private long summaries;
+
+    WindowAggregator(List<Window> windows) {
+        this.windows = windows.toArray(new Window[0]);
+    }
+
+    /* the windows in hegemone.windows, null if there are none */
+    static WindowAggregator fromSettings() {
+        var windows = Window.parseList(Settings.WINDOWS);
+        return windows.isEmpty() ? null : new WindowAggregator(windows);
+    }
+
+    void accept(SensorFrame frame) {
+        var station = stations.computeIfAbsent(frame.station, s -> new Station(List.of(windows)));
+        long now = frame.timestamp;
+        for (int w = 0; w < windows.length; w++) {
+            var slots = station.windows[w];
+            long hop = windows[w].hop();
+            long newest = Math.floorDiv(now, hop) * hop;
+            /* every window holding now started within the last length */
+            for (int k = 0; k < slots.length; k++) {
+                long start = newest - k * hop;
+                var stats = slots[(int) Math.floorMod(start / hop, (long) slots.length)];
+                if (stats.start() != start) {
+                    if (stats.frames() > 0) {
+                        submit(frame.station, windows[w], stats);
+                    }
+                    stats.reset(start);
+                }
+                add(stats, station, frame);
+            }
+        }
+        station.soilAt = frame.soilSampledAt;
+        station.ambientAt = frame.ambientSampledAt;
+        station.luxAt = frame.luxSampledAt;
+        station.spectralAt = frame.spectralSampledAt;
+    }
+
+    private static void add(Stats stats, Station station, SensorFrame frame) {
+        stats.frames++;
+        if (frame.soilSampledAt != 0 && frame.soilSampledAt != station.soilAt) {
+            stats.add(MOISTURE, frame.moisture);
+            stats.add(SOIL_TEMP, frame.soilTemp);
+        }
+        if (frame.ambientSampledAt != 0 && frame.ambientSampledAt != station.ambientAt) {
+            stats.add(AMBIENT_TEMP, frame.ambientTemp);
+        }
+        if (frame.luxSampledAt != 0 && frame.luxSampledAt != station.luxAt) {
+            stats.add(LUX, frame.lux);
+        }
+        if (frame.hasSpectrum() && frame.spectralSampledAt != station.spectralAt) {
+            for (int i = 0; i < SensorFrame.CHANNELS; i++) {
+                stats.add(SPECTRAL + i, frame.spectral[i]);
+            }
+        }
+    }
+
+    private void submit(String station, Window window, Stats stats) {
+        DataSubmitter.submit(toJSON(station, window, stats));
+        summaries++;
+    }
+
+    /* {"station":..,"window":{"start":..,"end":..},"frames":n,"fields":{"lux":{"count":..,...},..}},
+       fields without a reading in the window are left out */
+    String toJSON(String station, Window window, Stats stats) {
+        json.setLength(0);
+        json.append('{');
+        if (station != null) {
+            json.append("\"station\":\"").append(station).append("\",");
+        }
+        json.append("\"window\":{\"start\":").append(stats.start())
+                .append(",\"end\":").append(stats.start() + window.length())
+                .append("},\"frames\":").append(stats.frames())
+                .append(",\"fields\":{");
+        boolean first = true;
+        for (int f = 0; f < FIELD_NAMES.length; f++) {
+            if (stats.count(f) == 0) {
+                continue;
+            }
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(FIELD_NAMES[f]).append("\":{\"count\":").append(stats.count(f));
+            appendNumber(",\"min\":", stats.min(f));
+            appendNumber(",\"max\":", stats.max(f));
+            appendNumber(",\"mean\":", stats.mean(f));
+            appendNumber(",\"variance\":", stats.variance(f));
+            appendNumber(",\"p50\":", stats.quantile(f, 0.5));
+            appendNumber(",\"p95\":", stats.quantile(f, 0.95));
+            json.append('}');
+        }
+        json.append("}}");
+        return json.toString();
+    }
+
+    /* six decimals at most, as FrameJsonWriter writes them */
+    private void appendNumber(String key, double v) {
+        json.append(key);
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            json.append("null");
+            return;
+        }
+        double rounded = Math.round(v * 1e6) / 1e6;
+        if (rounded == Math.rint(rounded) && Math.abs(rounded) < 1e15) {
+            json.append((long) rounded);
+        } else {
+            json.append(rounded);
+        }
+    }
+
+    String report() {
+        return "stations=" + stations.size() + " summaries=" + summaries;
+    }
+}
@@ -0,0 +1,131 @@
+package hegemone.sensors;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArchiveCodecTest {
+
+    private static ByteBuffer copy(ArchiveCodec.Column column) {
+        var out = ByteBuffer.allocate(column.length());
+        column.copyTo(out);
+        return out;
+    }
+
+    @Test
+    void timesRoundTrip() {
+        var rnd = new Random(1);
+        var times = new long[5000];
+        long t = 1_700_000_000_000L;
+        for (int i = 0; i < times.length; i++) {
+            /* mostly a steady period, with jitter, gaps and a clock going back now and then */
+            t += switch (rnd.nextInt(20)) {
+                case 0 -> rnd.nextInt(100_000);
+                case 1 -> -rnd.nextInt(5_000);
+                case 2 -> rnd.nextLong() >> 20;
+                default -> 1000 + rnd.nextInt(3);
+            };
+            times[i] = t;
+        }
+        var encoder = new ArchiveCodec.TimeEncoder();
+        for (long time : times) {
+            encoder.add(time);
+        }
+        var decoder = new ArchiveCodec.TimeDecoder();
+        decoder.reset(copy(encoder), 0, encoder.length());
+        for (long time : times) {
+            assertEquals(time, decoder.next());
+        }
+    }
+
+    @Test
+    void steadyTimesTakeABitEach() {
+        var encoder = new ArchiveCodec.TimeEncoder();
+        for (int i = 0; i < 800; i++) {
+            encoder.add(1_700_000_000_000L + i * 1000L);
+        }
+        /* the first two carry the start and the step, every other one is a '0' */
+        assertTrue(encoder.length() < 130, "steady times took " + encoder.length() + " bytes");
+    }
+
+    @Test
+    void doublesRoundTripBitForBit() {
+        var rnd = new Random(2);
+        var values = new double[3000];
+        double v = 21.5;
+        for (int i = 0; i < values.length; i++) {
+            v = switch (rnd.nextInt(10)) {
+                case 0 -> Double.NaN;
+                case 1 -> -v;
+                case 2 -> rnd.nextDouble() * 1e9;
+                case 3 -> 0.0;
+                default -> v + (rnd.nextBoolean() ? 0 : rnd.nextGaussian() * 0.1);
+            };
+            values[i] = v;
+        }
+        var encoder = new ArchiveCodec.DoubleEncoder();
+        for (double value : values) {
+            encoder.add(value);
+        }
+        var decoder = new ArchiveCodec.DoubleDecoder();
+        decoder.reset(copy(encoder), 0, encoder.length());
+        for (double value : values) {
+            assertEquals(Double.doubleToRawLongBits(value), Double.doubleToRawLongBits(decoder.next()));
+        }
+    }
+
+    @Test
+    void integersRoundTrip() {
+        var rnd = new Random(3);
+        var values = new long[3000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = switch (rnd.nextInt(8)) {
+                case 0 -> Long.MIN_VALUE;
+                case 1 -> Long.MAX_VALUE;
+                case 2 -> rnd.nextLong();
+                default -> 600 + rnd.nextInt(5);
+            };
+        }
+        var encoder = new ArchiveCodec.IntEncoder();
+        for (long value : values) {
+            encoder.add(value);
+        }
+        var decoder = new ArchiveCodec.IntDecoder();
+        decoder.reset(copy(encoder), 0, encoder.length());
+        for (long value : values) {
+            assertEquals(value, decoder.next());
+        }
+    }
+
+    @Test
+    void reusedEncoderStartsFromZero() {
+        var encoder = new ArchiveCodec.IntEncoder();
+        encoder.add(1234);
+        encoder.add(1240);
+        encoder.reset();
+        encoder.add(7);
+        var decoder = new ArchiveCodec.IntDecoder();
+        decoder.reset(copy(encoder), 0, encoder.length());
+        assertEquals(7, decoder.next());
+    }
+
+    @Test
+    void truncatedColumnIsAnError() {
+        var encoder = new ArchiveCodec.DoubleEncoder();
+        for (int i = 0; i < 100; i++) {
+            encoder.add(i * 0.37);
+        }
+        var decoder = new ArchiveCodec.DoubleDecoder();
+        decoder.reset(copy(encoder), 0, encoder.length() / 2);
+        assertThrows(IllegalStateException.class, () -> {
+            for (int i = 0; i < 100; i++) {
+                decoder.next();
+            }
+        });
+    }
+}
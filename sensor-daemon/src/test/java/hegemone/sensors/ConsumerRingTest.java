@@ -0,0 +1,186 @@
+package hegemone.sensors;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+import static hegemone.sensors.TestFrames.intact;
+import static hegemone.sensors.TestFrames.numbered;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConsumerRingTest {
+    private static final int CAPACITY = 8;
+
+    /* takes frames on the ring's worker, slowly if asked to, and notes their
+       numbers and any that arrived torn or out of order */
+    private static class Recorder implements DataConsumer {
+        final long[] seen;
+        final AtomicInteger count = new AtomicInteger();
+        volatile int torn;
+        volatile int outOfOrder;
+        final long pauseNanos;
+        /* the first frame waits here, once it has been counted as entered */
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release;
+
+        Recorder(int capacity, long pauseNanos, boolean holdFirst) {
+            seen = new long[capacity];
+            this.pauseNanos = pauseNanos;
+            release = new CountDownLatch(holdFirst ? 1 : 0);
+        }
+
+        @Override
+        public FrameFormat format() {
+            return null;
+        }
+
+        @Override
+        public void accept(String data) {
+        }
+
+        @Override
+        public void accept(SensorFrame frame, byte[] data, int length) {
+            int n = count.get();
+            if (!intact(frame)) {
+                torn++;
+            }
+            if (n > 0 && frame.timestamp <= seen[n - 1]) {
+                outOfOrder++;
+            }
+            seen[n] = frame.timestamp;
+            count.set(n + 1);
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (pauseNanos > 0) {
+                LockSupport.parkNanos(pauseNanos);
+            }
+        }
+
+        long[] seen() {
+            return Arrays.copyOf(seen, count.get());
+        }
+    }
+
+    private static long count(ConsumerRing ring, String key) {
+        var m = Pattern.compile(" " + key + "=(\\d+)").matcher(ring.report());
+        assertTrue(m.find(), ring.report());
+        return Long.parseLong(m.group(1));
+    }
+
+    /* publish frames first to last from a thread of their own, the ring's one producer */
+    private static void produce(ConsumerRing ring, long first, long last) throws InterruptedException {
+        var producer = new Thread(() -> {
+            var frame = new SensorFrame();
+            for (long n = first; n <= last; n++) {
+                ring.publish(numbered(n, frame));
+            }
+        }, "producer");
+        producer.start();
+        producer.join();
+    }
+
+    private static long[] range(long first, long last) {
+        var numbers = new long[(int) (last - first + 1)];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = first + i;
+        }
+        return numbers;
+    }
+
+    private static long[] concat(long[] a, long[] b) {
+        var both = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+
+    /* the worker holds frame 0 while 1 to 99 are published into a ring of 8 */
+    private static void overflow(ConsumerRing ring, Recorder recorder) throws InterruptedException {
+        produce(ring, 0, 0);
+        assertTrue(recorder.entered.await(5, TimeUnit.SECONDS));
+        produce(ring, 1, 99);
+        assertEquals(CAPACITY, ring.lag());
+        recorder.release.countDown();
+        ring.close(5_000);
+    }
+
+    @Test
+    void dropNewestKeepsWhatWasQueued() throws InterruptedException {
+        var recorder = new Recorder(100, 0, true);
+        var ring = new ConsumerRing(recorder, CAPACITY, ConsumerRing.OverflowPolicy.DROP_NEWEST);
+        overflow(ring, recorder);
+        assertArrayEquals(range(0, CAPACITY), recorder.seen());
+        assertEquals(CAPACITY + 1, count(ring, "delivered"));
+        assertEquals(99 - CAPACITY, count(ring, "dropped"));
+        assertEquals(0, ring.lag());
+    }
+
+    @Test
+    void dropOldestKeepsTheNewest() throws InterruptedException {
+        var recorder = new Recorder(100, 0, true);
+        var ring = new ConsumerRing(recorder, CAPACITY, ConsumerRing.OverflowPolicy.DROP_OLDEST);
+        overflow(ring, recorder);
+        assertArrayEquals(concat(new long[] {0}, range(100 - CAPACITY, 99)), recorder.seen());
+        assertEquals(CAPACITY + 1, count(ring, "delivered"));
+        assertEquals(99 - CAPACITY, count(ring, "dropped"));
+        assertEquals(0, ring.lag());
+    }
+
+    @Test
+    void blockLosesNothing() throws InterruptedException {
+        int frames = 5_000;
+        var recorder = new Recorder(frames, 20_000, false);
+        var ring = new ConsumerRing(recorder, CAPACITY, ConsumerRing.OverflowPolicy.BLOCK);
+        produce(ring, 0, frames - 1);
+        ring.close(5_000);
+        assertArrayEquals(range(0, frames - 1), recorder.seen());
+        assertEquals(0, recorder.torn);
+        assertEquals(frames, count(ring, "delivered"));
+        assertEquals(0, count(ring, "dropped"));
+        assertTrue(count(ring, "max") <= CAPACITY);
+    }
+
+    @Test
+    void dropOldestUnderLoadNeverTearsOrRepeats() throws InterruptedException {
+        int frames = 200_000;
+        var recorder = new Recorder(frames, 0, false);
+        var ring = new ConsumerRing(recorder, CAPACITY, ConsumerRing.OverflowPolicy.DROP_OLDEST);
+        produce(ring, 0, frames - 1);
+        ring.close(5_000);
+        var seen = recorder.seen();
+        assertEquals(0, recorder.torn);
+        assertEquals(0, recorder.outOfOrder);
+        assertEquals(frames - 1, seen[seen.length - 1]);
+        assertEquals(seen.length, count(ring, "delivered"));
+        assertEquals(frames, seen.length + count(ring, "dropped"));
+    }
+
+    @Test
+    void everyFrameWakesAParkedWorker() throws InterruptedException {
+        /* one at a time, so the worker parks between frames; a missed
+           unpark leaves a frame waiting for the next publish */
+        var recorder = new Recorder(2_000, 0, false);
+        var ring = new ConsumerRing(recorder, CAPACITY, ConsumerRing.OverflowPolicy.BLOCK);
+        var frame = new SensorFrame();
+        for (int n = 0; n < 2_000; n++) {
+            ring.publish(numbered(n, frame));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (recorder.count.get() <= n) {
+                assertTrue(System.nanoTime() < deadline, "frame " + n + " never taken");
+                Thread.onSpinWait();
+            }
+        }
+        ring.close(5_000);
+        assertArrayEquals(range(0, 1_999), recorder.seen());
+    }
+}
@@ -0,0 +1,140 @@
+package hegemone.sensors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import static hegemone.sensors.TestFrames.assertFrame;
+import static hegemone.sensors.TestFrames.copy;
+import static hegemone.sensors.TestFrames.frames;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameArchiveTest {
+    @TempDir
+    Path dir;
+
+    private FrameArchive archive(List<SensorFrame> frames) throws IOException {
+        var archive = FrameArchive.open(dir.toString(), 100, 0);
+        for (var frame : frames) {
+            archive.accept(frame, null, 0);
+        }
+        return archive;
+    }
+
+    private List<SensorFrame> read(String station, long from, long to) throws IOException {
+        var read = new ArrayList<SensorFrame>();
+        new FrameArchive.Reader(dir.toString()).read(station, from, to, frame -> read.add(copy(frame)));
+        return read;
+    }
+
+    private static List<SensorFrame> of(List<SensorFrame> frames, String station) {
+        return frames.stream().filter(f -> Objects.equals(f.station, station)).toList();
+    }
+
+    private File[] dataFiles() {
+        var files = dir.toFile().listFiles((d, name) -> name.endsWith(".hga"));
+        Arrays.sort(files);
+        return files;
+    }
+
+    @Test
+    void roundTripAcrossDaysAndStations() throws IOException {
+        var frames = frames(1000, null, "bed1");
+        archive(frames).close();
+        assertEquals(2, dataFiles().length);
+        for (var station : new String[] {null, "bed1"}) {
+            var expected = of(frames, station);
+            var read = read(station, 0, Long.MAX_VALUE / 2);
+            assertEquals(expected.size(), read.size());
+            for (int i = 0; i < read.size(); i++) {
+                assertFrame(expected.get(i), read.get(i));
+            }
+        }
+        assertEquals(0, read("bed2", 0, Long.MAX_VALUE / 2).size());
+    }
+
+    @Test
+    void rangeIsInclusiveAndVisitorCanStop() throws IOException {
+        var frames = frames(1000, "bed1");
+        archive(frames).close();
+        long from = frames.get(100).timestamp;
+        long to = frames.get(299).timestamp;
+        var read = read("bed1", from, to);
+        assertEquals(200, read.size());
+        assertFrame(frames.get(100), read.get(0));
+        assertFrame(frames.get(299), read.get(199));
+
+        long stop = frames.get(109).timestamp;
+        long n = new FrameArchive.Reader(dir.toString()).read("bed1", from, to, f -> f.timestamp < stop);
+        assertEquals(10, n);
+    }
+
+    @Test
+    void openBlocksAreOnlyOnDiskOnceClosed() throws IOException {
+        var frames = frames(150, "bed1");
+        /* all before midnight: a full block of 100 and 50 still open */
+        var archive = archive(frames.subList(0, 140));
+        assertEquals(100, read("bed1", 0, Long.MAX_VALUE / 2).size());
+        archive.close();
+        assertEquals(140, read("bed1", 0, Long.MAX_VALUE / 2).size());
+    }
+
+    @Test
+    void tornTailIsDroppedAndAppendingCarriesOn() throws IOException {
+        var frames = frames(1000, "bed1");
+        archive(frames).close();
+        var last = dataFiles()[1];
+        long before = read("bed1", 0, Long.MAX_VALUE / 2).size();
+        /* a power cut halfway through writing the last block */
+        try (var file = new RandomAccessFile(last, "rw")) {
+            file.setLength(file.length() - 10);
+        }
+        var reader = new FrameArchive.Reader(dir.toString());
+        long torn = reader.read("bed1", 0, Long.MAX_VALUE / 2, f -> true);
+        assertEquals(1, reader.corrupt());
+        assertTrue(torn < before);
+
+        var next = copy(frames.get(frames.size() - 1));
+        next.timestamp += 1000;
+        var archive = FrameArchive.open(dir.toString(), 100, 0);
+        archive.accept(next, null, 0);
+        archive.close();
+
+        reader = new FrameArchive.Reader(dir.toString());
+        var read = new ArrayList<SensorFrame>();
+        reader.read("bed1", 0, Long.MAX_VALUE / 2, f -> read.add(copy(f)));
+        assertEquals(0, reader.corrupt());
+        assertEquals(torn + 1, read.size());
+        assertFrame(next, read.get(read.size() - 1));
+        for (int i = 0; i < torn; i++) {
+            assertFrame(frames.get(i), read.get(i));
+        }
+    }
+
+    @Test
+    void corruptBlockIsSkippedOnRead() throws IOException {
+        var frames = frames(1000, "bed1");
+        archive(frames).close();
+        var first = dataFiles()[0];
+        /* flip a byte inside the first block's body */
+        try (var file = new RandomAccessFile(first, "rw")) {
+            file.seek(8 + 28 + 40);
+            int b = file.read();
+            file.seek(8 + 28 + 40);
+            file.write(b ^ 0xFF);
+        }
+        var reader = new FrameArchive.Reader(dir.toString());
+        long n = reader.read("bed1", 0, Long.MAX_VALUE / 2, f -> true);
+        assertEquals(1, reader.corrupt());
+        assertEquals(frames.size() - 100, n);
+    }
+}
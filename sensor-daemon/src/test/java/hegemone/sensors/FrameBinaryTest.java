@@ -0,0 +1,110 @@
+package hegemone.sensors;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static hegemone.sensors.TestFrames.assertEncoded;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameBinaryTest {
+
+    /* the test frames of three stations, one unnamed, with some readings stale */
+    private static List<SensorFrame> frames(int n) {
+        var frames = TestFrames.frames(n, null, "bed1", "bed2");
+        var rnd = new Random(4);
+        for (var frame : frames) {
+            frame.stale = rnd.nextInt(1 << SensorFrame.STALE_NAMES.length);
+            if (!frame.hasSpectrum()) {
+                frame.stale &= ~SensorFrame.STALE_SPECTRAL;
+            }
+        }
+        return frames;
+    }
+
+    @Test
+    void streamRoundTrip() throws IOException {
+        var frames = frames(200);
+        var writer = new FrameBinaryWriter();
+        writer.begin();
+        for (var frame : frames) {
+            writer.write(frame);
+        }
+        var reader = new FrameBinaryReader(writer.buffer(), 0, writer.length());
+        var read = new SensorFrame();
+        for (var frame : frames) {
+            assertTrue(reader.next(read));
+            assertEncoded(frame, read);
+        }
+        assertFalse(reader.next(read));
+    }
+
+    @Test
+    void singleFrameStreams() throws IOException {
+        var writer = new FrameBinaryWriter();
+        var read = new SensorFrame();
+        for (var frame : frames(20)) {
+            writer.begin();
+            int length = writer.write(frame);
+            assertEquals(writer.length(), length);
+            var reader = new FrameBinaryReader(Arrays.copyOf(writer.buffer(), length), 0, length);
+            assertTrue(reader.next(read));
+            assertEncoded(frame, read);
+            assertFalse(reader.next(read));
+        }
+    }
+
+    @Test
+    void missingValuesReadBack() throws IOException {
+        var frame = new SensorFrame();
+        frame.timestamp = TestFrames.START;
+        frame.soilTemp = Double.NaN;
+        frame.ambientTemp = Double.NaN;
+        var writer = new FrameBinaryWriter();
+        writer.begin();
+        writer.write(frame);
+        var read = new SensorFrame();
+        read.station = "left over";
+        Arrays.fill(read.spectral, 7);
+        new FrameBinaryReader(writer.buffer(), 0, writer.length()).next(read);
+        assertNull(read.station);
+        assertTrue(Double.isNaN(read.soilTemp));
+        assertTrue(Double.isNaN(read.ambientTemp));
+        assertFalse(read.hasSpectrum());
+        assertArrayEquals(new int[SensorFrame.CHANNELS], read.spectral);
+        assertEquals(0, read.stale);
+    }
+
+    @Test
+    void rejectsForeignAndNewerStreams() {
+        var writer = new FrameBinaryWriter();
+        int length = writer.begin();
+        var newer = Arrays.copyOf(writer.buffer(), length);
+        newer[FrameBinaryWriter.MAGIC.length] = (byte) (FrameBinaryWriter.VERSION + 1);
+        assertThrows(IOException.class, () -> new FrameBinaryReader(newer, 0, length));
+        var foreign = Arrays.copyOf(writer.buffer(), length);
+        foreign[0] = '{';
+        assertThrows(IOException.class, () -> new FrameBinaryReader(foreign, 0, length));
+        assertThrows(IOException.class, () -> new FrameBinaryReader(foreign, 0, 2));
+    }
+
+    @Test
+    void unknownStaleBitsAreAnError() throws IOException {
+        var frame = new SensorFrame();
+        frame.timestamp = TestFrames.START;
+        frame.stale = 1 << SensorFrame.STALE_NAMES.length;
+        var writer = new FrameBinaryWriter();
+        writer.begin();
+        writer.write(frame);
+        var reader = new FrameBinaryReader(writer.buffer(), 0, writer.length());
+        assertThrows(IOException.class, () -> reader.next(new SensorFrame()));
+    }
+}
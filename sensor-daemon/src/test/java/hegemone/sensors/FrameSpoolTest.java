@@ -0,0 +1,148 @@
+package hegemone.sensors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static hegemone.sensors.TestFrames.assertEncoded;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameSpoolTest {
+    private static final int HEADER_SIZE = 4096;
+    private static final int SEGMENT_SIZE = 1024;
+
+    @TempDir
+    Path dir;
+
+    private String path() {
+        return dir.resolve("spool.dmp").toString();
+    }
+
+    private static final List<SensorFrame> FRAMES = TestFrames.frames(200, "bed1");
+
+    private static SensorFrame frame(int i) {
+        return FRAMES.get(i);
+    }
+
+    /* everything the spool holds, committed as it goes */
+    private static List<SensorFrame> drain(FrameSpool spool) {
+        var batch = new SensorFrame[8];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new SensorFrame();
+        }
+        var read = new ArrayList<SensorFrame>();
+        while (!spool.isEmpty()) {
+            int n = spool.peek(batch);
+            for (int i = 0; i < n; i++) {
+                read.add(TestFrames.copy(batch[i]));
+            }
+            spool.commit(n);
+        }
+        return read;
+    }
+
+    /* read is some, not all, of the last of frame(0) to frame(appended - 1) */
+    private static void assertTail(int appended, List<SensorFrame> read) {
+        assertFalse(read.isEmpty());
+        assertTrue(read.size() < appended);
+        int first = appended - read.size();
+        for (int i = 0; i < read.size(); i++) {
+            assertEncoded(frame(first + i), read.get(i));
+        }
+    }
+
+    @Test
+    void framesComeBackInOrderAcrossRestarts() throws IOException {
+        try (var spool = FrameSpool.open(path(), 4, SEGMENT_SIZE)) {
+            for (int i = 0; i < 40; i++) {
+                spool.append(frame(i));
+            }
+        }
+        try (var spool = FrameSpool.open(path(), 4, SEGMENT_SIZE)) {
+            var read = drain(spool);
+            assertEquals(40, read.size());
+            for (int i = 0; i < read.size(); i++) {
+                assertEncoded(frame(i), read.get(i));
+            }
+        }
+        try (var spool = FrameSpool.open(path(), 4, SEGMENT_SIZE)) {
+            assertTrue(spool.isEmpty());
+        }
+    }
+
+    @Test
+    void uncommittedFramesArePeekedAgain() throws IOException {
+        try (var spool = FrameSpool.open(path(), 4, SEGMENT_SIZE)) {
+            for (int i = 0; i < 5; i++) {
+                spool.append(frame(i));
+            }
+            var batch = new SensorFrame[] {new SensorFrame(), new SensorFrame()};
+            assertEquals(2, spool.peek(batch));
+            assertEquals(2, spool.peek(batch));
+            assertEncoded(frame(0), batch[0]);
+            spool.commit(2);
+            assertEquals(2, spool.peek(batch));
+            assertEncoded(frame(2), batch[0]);
+        }
+    }
+
+    @Test
+    void fullRingDropsTheOldest() throws IOException {
+        try (var spool = FrameSpool.open(path(), 2, SEGMENT_SIZE)) {
+            for (int i = 0; i < 200; i++) {
+                spool.append(frame(i));
+            }
+            var read = drain(spool);
+            assertTail(200, read);
+            assertTrue(spool.report().contains("dropped=" + (200 - read.size())), spool.report());
+        }
+    }
+
+    @Test
+    void tornLengthSkipsToTheNextSegment() throws IOException {
+        try (var spool = FrameSpool.open(path(), 4, SEGMENT_SIZE)) {
+            for (int i = 0; i < 40; i++) {
+                spool.append(frame(i));
+            }
+        }
+        /* a length running past the end of the first segment */
+        try (var file = new RandomAccessFile(path(), "rw")) {
+            file.seek(HEADER_SIZE);
+            file.writeShort(0xFFFF);
+        }
+        try (var spool = FrameSpool.open(path(), 4, SEGMENT_SIZE)) {
+            var read = drain(spool);
+            assertTail(40, read);
+            assertTrue(spool.report().contains("corrupt=1"), spool.report());
+            assertTrue(spool.isEmpty());
+        }
+    }
+
+    @Test
+    void corruptPayloadSkipsToTheNextSegment() throws IOException {
+        try (var spool = FrameSpool.open(path(), 4, SEGMENT_SIZE)) {
+            for (int i = 0; i < 40; i++) {
+                spool.append(frame(i));
+            }
+        }
+        /* the first record's payload, past its length and crc */
+        try (var file = new RandomAccessFile(path(), "rw")) {
+            file.seek(HEADER_SIZE + 6 + 8);
+            int b = file.read();
+            file.seek(HEADER_SIZE + 6 + 8);
+            file.write(b ^ 0xFF);
+        }
+        try (var spool = FrameSpool.open(path(), 4, SEGMENT_SIZE)) {
+            var read = drain(spool);
+            assertTail(40, read);
+            assertTrue(spool.report().contains("corrupt=1"), spool.report());
+        }
+    }
+}
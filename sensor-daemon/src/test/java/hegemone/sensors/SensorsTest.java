@@ -0,0 +1,82 @@
+package hegemone.sensors;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SensorsTest {
+
+    /* a VEML7700 reading a white count of 0x1234, until it stops answering */
+    private static final class LightBus implements I2CTransport {
+        volatile boolean failing;
+
+        @Override
+        public void write(int address, byte[] data, int length) throws IOException {
+            answer();
+        }
+
+        @Override
+        public void read(int address, byte[] data, int length) throws IOException {
+            answer();
+        }
+
+        @Override
+        public void writeRead(int address, byte[] out, int outLength, byte[] in, int inLength) throws IOException {
+            answer();
+            in[0] = 0x34;
+            in[1] = 0x12;
+        }
+
+        private void answer() throws IOException {
+            if (failing) {
+                throw new IOException("NACK");
+            }
+        }
+
+        @Override
+        public String name() {
+            return "light";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    void failedLightReadKeepsTheLastLuxAndGoesStale() throws InterruptedException {
+        var bus = new LightBus();
+        var sensors = new Sensors("stale-lux", null, new AmbientLight(bus), null, null);
+        sensors.expectEvery(0, 0, 1, 0);
+        var frame = new SensorFrame();
+
+        sensors.sampleAmbientLight();
+        sensors.latestFrame(frame);
+        long sampledAt = frame.luxSampledAt;
+        assertEquals(0x1234, frame.lux);
+        assertEquals(0, frame.stale);
+
+        bus.failing = true;
+        sensors.sampleAmbientLight();
+        sensors.latestFrame(frame);
+        assertEquals(0x1234, frame.lux);
+        assertEquals(sampledAt, frame.luxSampledAt);
+
+        /* past the period and the read budget */
+        Thread.sleep(Settings.READ_BUDGET + 100);
+        sensors.sampleAmbientLight();
+        sensors.latestFrame(frame);
+        assertEquals(0x1234, frame.lux);
+        assertEquals(SensorFrame.STALE_LUX, frame.stale);
+        assertTrue(frame.timestamp - frame.luxSampledAt > Settings.READ_BUDGET);
+
+        bus.failing = false;
+        sensors.sampleAmbientLight();
+        sensors.latestFrame(frame);
+        assertEquals(0, frame.stale);
+        assertTrue(frame.luxSampledAt > sampledAt);
+    }
+}
@@ -0,0 +1,128 @@
+package hegemone.sensors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/* frames for the tests, and comparing them after they went somewhere */
+final class TestFrames {
+    static final long DAY = 86_400_000L;
+    /* a couple of minutes before midnight, so a thousand frames span two days */
+    static final long START = (1_700_000_000_000L / DAY + 1) * DAY - 150_000L;
+
+    private TestFrames() {
+    }
+
+    /* n frames a second apart for each station in turn, readings wandering
+       the way real ones do. Now and then a temperature is missing or a frame
+       has no spectrum, every other spectrum has its range. Same every call */
+    static List<SensorFrame> frames(int n, String... stations) {
+        var rnd = new Random(1);
+        var frames = new ArrayList<SensorFrame>();
+        double temp = 21.5;
+        for (int i = 0; i < n; i++) {
+            if (i % 5 == 0) {
+                temp += rnd.nextGaussian() * 0.1;
+            }
+            for (var station : stations) {
+                var frame = new SensorFrame();
+                frame.station = station;
+                frame.timestamp = START + i * 1000L + rnd.nextInt(3);
+                frame.moisture = 600 + rnd.nextInt(5);
+                frame.soilTemp = i % 70 == 69 ? Double.NaN : temp;
+                frame.soilSampledAt = frame.timestamp - frame.timestamp % 5000;
+                frame.ambientTemp = i % 50 == 49 ? Double.NaN : Math.round(temp * 16) / 16.0;
+                frame.ambientSampledAt = frame.timestamp - frame.timestamp % 10_000;
+                frame.lux = 3000 + rnd.nextInt(100);
+                frame.luxSampledAt = frame.timestamp - 3;
+                if (i % 4 != 3) {
+                    for (int c = 0; c < SensorFrame.CHANNELS; c++) {
+                        frame.spectral[c] = 1000 * c + rnd.nextInt(50);
+                    }
+                    frame.spectralSampledAt = frame.timestamp - 7;
+                    if (i % 2 == 0) {
+                        frame.spectralGain = 9;
+                        frame.spectralSteps = 599;
+                    }
+                }
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+
+    /* frame number n, every field derived from n so a torn copy shows */
+    static SensorFrame numbered(long n, SensorFrame frame) {
+        frame.timestamp = n;
+        frame.moisture = (int) n;
+        frame.soilTemp = n / 2.0;
+        frame.ambientTemp = n / 4.0;
+        frame.lux = (int) (n * 7);
+        for (int c = 0; c < SensorFrame.CHANNELS; c++) {
+            frame.spectral[c] = (int) n + c;
+        }
+        frame.spectralSampledAt = n + 1;
+        return frame;
+    }
+
+    /* whether frame is whole, as numbered() left it */
+    static boolean intact(SensorFrame frame) {
+        long n = frame.timestamp;
+        boolean intact = frame.moisture == (int) n && frame.soilTemp == n / 2.0 && frame.ambientTemp == n / 4.0
+                && frame.lux == (int) (n * 7) && frame.spectralSampledAt == n + 1;
+        for (int c = 0; c < SensorFrame.CHANNELS; c++) {
+            intact &= frame.spectral[c] == (int) n + c;
+        }
+        return intact;
+    }
+
+    static SensorFrame copy(SensorFrame frame) {
+        var copy = new SensorFrame();
+        copy.copyFrom(frame);
+        return copy;
+    }
+
+    /* every field the same */
+    static void assertFrame(SensorFrame expected, SensorFrame actual) {
+        assertEquals(expected.station, actual.station);
+        assertEquals(expected.timestamp, actual.timestamp);
+        assertEquals(expected.moisture, actual.moisture);
+        assertEquals(expected.soilTemp, actual.soilTemp);
+        assertEquals(expected.soilSampledAt, actual.soilSampledAt);
+        assertEquals(expected.ambientTemp, actual.ambientTemp);
+        assertEquals(expected.ambientSampledAt, actual.ambientSampledAt);
+        assertEquals(expected.lux, actual.lux);
+        assertEquals(expected.luxSampledAt, actual.luxSampledAt);
+        assertArrayEquals(expected.spectral, actual.spectral);
+        assertEquals(expected.spectralSampledAt, actual.spectralSampledAt);
+        assertEquals(expected.spectralGain, actual.spectralGain);
+        assertEquals(expected.spectralSteps, actual.spectralSteps);
+        assertEquals(expected.stale, actual.stale);
+    }
+
+    /* what a FrameBinaryWriter stream keeps: temperatures to the millidegree,
+       no sample times but those of stale readings, and no range without a spectrum */
+    static void assertEncoded(SensorFrame expected, SensorFrame actual) {
+        assertEquals(expected.station, actual.station);
+        assertEquals(expected.timestamp, actual.timestamp);
+        assertEquals(expected.moisture, actual.moisture);
+        assertEquals(expected.soilTemp, actual.soilTemp, 0.0005);
+        assertEquals(expected.ambientTemp, actual.ambientTemp, 0.0005);
+        assertEquals(expected.lux, actual.lux);
+        assertEquals(expected.hasSpectrum(), actual.hasSpectrum());
+        assertArrayEquals(expected.spectral, actual.spectral);
+        if (expected.hasSpectrum()) {
+            assertEquals(expected.spectralGain, actual.spectralGain);
+            assertEquals(expected.spectralSteps, actual.spectralSteps);
+        }
+        assertEquals(expected.stale, actual.stale);
+        for (int i = 0; i < SensorFrame.STALE_NAMES.length; i++) {
+            if ((expected.stale & (1 << i)) != 0) {
+                assertEquals(expected.age(i), actual.age(i), SensorFrame.STALE_NAMES[i]);
+            }
+        }
+    }
+}